@@ -2,23 +2,36 @@ package io.bluemacaw.msgsvr.changestream.handler;
 
 import com.alibaba.fastjson.JSON;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.UpdateDescription;
 import io.bluemacaw.msgsvr.changestream.ChangeStreamHandler;
 import io.bluemacaw.msgsvr.entity.Message;
 import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageEvent;
+import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageStatusEvent;
+import io.bluemacaw.msgsvr.entity.mq.MessageStatusDelta;
 import io.bluemacaw.msgsvr.enums.ChangeStreamOperationType;
 import io.bluemacaw.msgsvr.util.MessageConverter;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.Document;
 import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Component;
 
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 /**
  * message_ 开头的 collection 的 Change Stream 处理器
@@ -27,6 +40,11 @@ import java.util.List;
  * - 监听所有 message_YYYYMM 表的变更
  * - 将变更事件缓存，达到批次大小或调度结束时发送到 RabbitMQ
  * - 由 MQ 消费者负责批量同步到 ClickHouse
+ * - 只更新 status / update_time 的 update 事件（撤回等，见 MessageService.updateMessageStatus）
+ *   不发送完整文档，合并为 ChangeStreamMessageStatusEvent 发送到状态变更 Exchange。
+ *   status / update_time 取自 updateDescription（事件发生时写入的值）；UPDATE_LOOKUP 的 fullDocument
+ *   是查询时的最新文档，可能已被之后的更新覆盖或为空（文档已删除），不使用。
+ *   channel_id / seq / msg_time 先从 documentKey 取（按这些字段分片时包含），没有时按 _id 投影查询
  *
  * @author shzhou.michael
  */
@@ -37,15 +55,27 @@ public class MessageCollectionHandler implements ChangeStreamHandler {
     @Resource
     private RabbitTemplate rabbitTemplate;
 
+    @Resource
+    private MongoTemplate mongoTemplate;
+
     @Resource
     private io.bluemacaw.msgsvr.changestream.ChangeStreamManager changeStreamManager;
 
     @Value("${spring.rabbitmq.exchangeChangeStreamMessage}")
     private String exchangeChangeStreamMessage;
 
+    @Value("${spring.rabbitmq.exchangeChangeStreamMessageStatus:ex.changestream.message.status.fanout}")
+    private String exchangeChangeStreamMessageStatus;
+
+    /**
+     * 状态变更只涉及的字段
+     */
+    private static final Set<String> STATUS_FIELDS = Set.of("status", "update_time");
+
     // 事件缓存 - 按操作类型分组
     private final List<Message> insertCache = new ArrayList<>();
     private final List<Message> updateCache = new ArrayList<>();
+    private final List<MessageStatusDelta> statusCache = new ArrayList<>();
 
     /**
      * 初始化时自动注册到路由器
@@ -83,6 +113,20 @@ public class MessageCollectionHandler implements ChangeStreamHandler {
 
     @Override
     public void handleUpdate(String collectionName, ChangeStreamDocument<Document> changeEvent) {
+        if (isStatusOnlyUpdate(changeEvent.getUpdateDescription())) {
+            try {
+                MessageStatusDelta delta = toStatusDelta(collectionName, changeEvent);
+                if (delta != null) {
+                    statusCache.add(delta);
+                    log.debug("Cached status event for collection: {}, id: {}", collectionName, delta.getId());
+                }
+            } catch (Exception e) {
+                log.error("Failed to handle status event for collection: {}, id: {}",
+                        collectionName, changeEvent.getDocumentKey(), e);
+            }
+            return;
+        }
+
         Document fullDocument = changeEvent.getFullDocument();
         if (fullDocument != null) {
             try {
@@ -116,9 +160,109 @@ public class MessageCollectionHandler implements ChangeStreamHandler {
 
     @Override
     public void flush() {
-        log.info("Message insertCache size: {}, updateCache size: {}", insertCache.size(), updateCache.size());
+        log.info("Message insertCache size: {}, updateCache size: {}, statusCache size: {}",
+                insertCache.size(), updateCache.size(), statusCache.size());
         sendToMQ(ChangeStreamOperationType.INSERT, insertCache);
         sendToMQ(ChangeStreamOperationType.UPDATE, updateCache);
+        sendStatusToMQ();
+    }
+
+    /**
+     * 是否只更新了 status / update_time
+     */
+    private boolean isStatusOnlyUpdate(UpdateDescription updateDescription) {
+        if (updateDescription == null || updateDescription.getUpdatedFields() == null) {
+            return false;
+        }
+        if (updateDescription.getRemovedFields() != null && !updateDescription.getRemovedFields().isEmpty()) {
+            return false;
+        }
+        Set<String> updatedFields = updateDescription.getUpdatedFields().keySet();
+        return updatedFields.contains("status") && STATUS_FIELDS.containsAll(updatedFields);
+    }
+
+    /**
+     * 从 update 事件构造状态变更：状态取自 updatedFields，定位字段取自 documentKey 或按 _id 投影查询
+     *
+     * @return 消息已不存在时返回 null
+     */
+    private MessageStatusDelta toStatusDelta(String collectionName, ChangeStreamDocument<Document> changeEvent) {
+        BsonDocument documentKey = changeEvent.getDocumentKey();
+        BsonValue idValue = documentKey != null ? documentKey.get("_id") : null;
+        if (idValue == null) {
+            log.warn("Status event missing document key for collection: {}", collectionName);
+            return null;
+        }
+        BsonDocument updatedFields = changeEvent.getUpdateDescription().getUpdatedFields();
+
+        MessageStatusDelta delta = new MessageStatusDelta();
+        delta.setId(idValue.isObjectId() ? idValue.asObjectId().getValue().toHexString()
+                : idValue.isString() ? idValue.asString().getValue() : idValue.toString());
+        BsonValue status = updatedFields.get("status");
+        delta.setStatus(status != null && status.isNumber() ? status.asNumber().intValue() : null);
+        BsonValue updateTime = updatedFields.get("update_time");
+        if (updateTime != null && updateTime.isDateTime()) {
+            delta.setUpdateTime(toLocalDateTime(updateTime.asDateTime().getValue()));
+        }
+
+        BsonValue channelId = documentKey.get("channel_id");
+        BsonValue seq = documentKey.get("seq");
+        BsonValue msgTime = documentKey.get("msg_time");
+        if (channelId != null && channelId.isString() && seq != null && seq.isNumber()
+                && msgTime != null && msgTime.isDateTime()) {
+            delta.setChannelId(channelId.asString().getValue());
+            delta.setSeq(seq.asNumber().longValue());
+            delta.setMsgTime(toLocalDateTime(msgTime.asDateTime().getValue()));
+            return delta;
+        }
+
+        // channel_id / seq / msg_time 写入后不再变化，投影查询只取这几个字段
+        Query query = Query.query(Criteria.where("_id").is(
+                idValue.isObjectId() ? idValue.asObjectId().getValue() : delta.getId()));
+        query.fields().include("channel_id", "seq", "msg_time");
+        Document located = mongoTemplate.findOne(query, Document.class, collectionName);
+        if (located == null) {
+            log.warn("Status event for missing message, collection: {}, id: {}", collectionName, delta.getId());
+            return null;
+        }
+        delta.setChannelId(located.getString("channel_id"));
+        Object locatedSeq = located.get("seq");
+        delta.setSeq(locatedSeq instanceof Number ? ((Number) locatedSeq).longValue() : null);
+        if (located.get("msg_time") instanceof Date date) {
+            delta.setMsgTime(toLocalDateTime(date.getTime()));
+        }
+        return delta;
+    }
+
+    private static LocalDateTime toLocalDateTime(long epochMilli) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault());
+    }
+
+    /**
+     * 发送状态变更到 MQ（状态变更只有几个字段，一个事件发送全部缓存）
+     */
+    private void sendStatusToMQ() {
+        if (statusCache.isEmpty()) {
+            return;
+        }
+
+        try {
+            ChangeStreamMessageStatusEvent event = ChangeStreamMessageStatusEvent.builder()
+                    .deltas(new ArrayList<>(statusCache))
+                    .timestamp(System.currentTimeMillis())
+                    .build();
+
+            MessageProperties messageProperties = new MessageProperties();
+            messageProperties.setContentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN);
+            rabbitTemplate.send(exchangeChangeStreamMessageStatus, "", new org.springframework.amqp.core.Message(
+                    JSON.toJSONString(event).getBytes(StandardCharsets.UTF_8), messageProperties));
+
+            log.info("Sent Message status events to MQ: count={}", statusCache.size());
+            statusCache.clear();
+
+        } catch (Exception e) {
+            log.error("Failed to send Message status events to MQ, count={}", statusCache.size(), e);
+        }
     }
 
     /**
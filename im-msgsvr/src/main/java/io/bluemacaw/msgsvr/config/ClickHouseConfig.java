@@ -2,6 +2,9 @@ package io.bluemacaw.msgsvr.config;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -16,6 +19,9 @@ import javax.sql.DataSource;
 @Configuration
 public class ClickHouseConfig {
 
+    @Resource
+    private MeterRegistry meterRegistry;
+
     @Value("${clickhouse.url}")
     private String url;
 
@@ -25,7 +31,8 @@ public class ClickHouseConfig {
     @Value("${clickhouse.password}")
     private String password;
 
-    @Value("${clickhouse.hikari.pool-name:ClickHousePool}")
+    // 写入连接池（Change Stream 同步）
+    @Value("${clickhouse.hikari.pool-name:ClickHouseWriterPool}")
     private String poolName;
 
     @Value("${clickhouse.hikari.maximum-pool-size:20}")
@@ -49,10 +56,126 @@ public class ClickHouseConfig {
     @Value("${clickhouse.hikari.connection-test-query:SELECT 1}")
     private String connectionTestQuery;
 
+    // 读取连接池（固定查询、流式导出、健康检查）
+    @Value("${clickhouse.reader.pool-name:ClickHouseReaderPool}")
+    private String readerPoolName;
+
+    @Value("${clickhouse.reader.maximum-pool-size:10}")
+    private int readerMaximumPoolSize;
+
+    @Value("${clickhouse.reader.minimum-idle:2}")
+    private int readerMinimumIdle;
+
+    @Value("${clickhouse.reader.connection-timeout:10000}")
+    private long readerConnectionTimeout;
+
+    // 分析查询专用连接池（自定义SQL），与同步写入隔离
+    @Value("${clickhouse.analytics.pool-name:ClickHouseAnalyticsPool}")
+    private String analyticsPoolName;
+
+    @Value("${clickhouse.analytics.maximum-pool-size:4}")
+    private int analyticsMaximumPoolSize;
+
+    @Value("${clickhouse.analytics.minimum-idle:1}")
+    private int analyticsMinimumIdle;
+
+    @Value("${clickhouse.analytics.connection-timeout:5000}")
+    private long analyticsConnectionTimeout;
+
+    @Value("${clickhouse.analytics.max-execution-time:30}")
+    private int analyticsMaxExecutionTime;
+
+    /**
+     * 写入数据源：Change Stream 同步到 ClickHouse 的批量插入
+     */
     @Bean(name = "clickHouseDataSource", destroyMethod = "close")
     public DataSource clickHouseDataSource() {
-        log.info("Initializing ClickHouse HikariCP DataSource: {}", url);
+        log.info("Initializing ClickHouse writer HikariCP DataSource: {}", url);
+
+        HikariConfig config = createHikariConfig(poolName, maximumPoolSize, minimumIdle, connectionTimeout);
+
+        // ClickHouse特定的连接参数
+        config.addDataSourceProperty("socket_timeout", "30000");
+        config.addDataSourceProperty("connection_timeout", "10000");
+        config.addDataSourceProperty("max_execution_time", "60");
+        config.addDataSourceProperty("compress", "1");
+
+        HikariDataSource dataSource = new HikariDataSource(config);
 
+        log.info("ClickHouse writer HikariCP DataSource initialized successfully - Pool: {}, MaxSize: {}, MinIdle: {}",
+                poolName, maximumPoolSize, minimumIdle);
+
+        return dataSource;
+    }
+
+    /**
+     * 读取数据源：/api/clickhouse 的固定查询、流式导出、健康检查和背压采集
+     *
+     * 与写入连接池分开，查询高峰不会让同步写入等待连接（反之亦然）
+     */
+    @Bean(name = "clickHouseReaderDataSource", destroyMethod = "close")
+    public DataSource clickHouseReaderDataSource() {
+        log.info("Initializing ClickHouse reader HikariCP DataSource: {}", url);
+
+        HikariConfig config = createHikariConfig(readerPoolName, readerMaximumPoolSize, readerMinimumIdle,
+                readerConnectionTimeout);
+
+        // ClickHouse特定的连接参数
+        config.addDataSourceProperty("socket_timeout", "60000");
+        config.addDataSourceProperty("connection_timeout", "10000");
+        config.addDataSourceProperty("max_execution_time", "60");
+        config.addDataSourceProperty("readonly", "2");
+        config.addDataSourceProperty("compress", "1");
+
+        HikariDataSource dataSource = new HikariDataSource(config);
+
+        log.info("ClickHouse reader HikariCP DataSource initialized successfully - Pool: {}, MaxSize: {}, MinIdle: {}",
+                readerPoolName, readerMaximumPoolSize, readerMinimumIdle);
+
+        return dataSource;
+    }
+
+    /**
+     * 分析查询专用数据源（/api/clickhouse/query/custom）
+     *
+     * 与 clickHouseDataSource 分开的小连接池：
+     * 1. 连接数少且获取连接超时短，分析查询排队或失败，不会占满同步写入的连接
+     * 2. readonly=2：只允许读数据，但允许查询级 SETTINGS 修改资源限制
+     * 3. max_execution_time 作为连接级兜底，查询级限制在 MessageService 中追加
+     */
+    @Bean(name = "clickHouseAnalyticsDataSource", destroyMethod = "close")
+    public DataSource clickHouseAnalyticsDataSource() {
+        log.info("Initializing ClickHouse analytics HikariCP DataSource: {}", url);
+
+        HikariConfig config = createHikariConfig(analyticsPoolName, analyticsMaximumPoolSize, analyticsMinimumIdle,
+                analyticsConnectionTimeout);
+
+        // ClickHouse特定的连接参数
+        config.addDataSourceProperty("socket_timeout", String.valueOf((analyticsMaxExecutionTime + 10) * 1000L));
+        config.addDataSourceProperty("connection_timeout", "10000");
+        config.addDataSourceProperty("max_execution_time", String.valueOf(analyticsMaxExecutionTime));
+        config.addDataSourceProperty("readonly", "2");
+        config.addDataSourceProperty("compress", "1");
+
+        HikariDataSource dataSource = new HikariDataSource(config);
+
+        log.info("ClickHouse analytics HikariCP DataSource initialized successfully - Pool: {}, MaxSize: {}, MinIdle: {}",
+                analyticsPoolName, analyticsMaximumPoolSize, analyticsMinimumIdle);
+
+        return dataSource;
+    }
+
+    /**
+     * 各连接池共用的配置
+     *
+     * 指标通过 MicrometerMetricsTrackerFactory 注册到 MeterRegistry（tag pool=连接池名称）：
+     * - hikaricp.connections.acquire：获取连接耗时（Timer）
+     * - hikaricp.connections.usage：连接使用时长（Timer）
+     * - hikaricp.connections.creation：建立连接耗时（Timer）
+     * - hikaricp.connections.timeout：获取连接超时次数（Counter）
+     * - hikaricp.connections.active/idle/pending/max/min：连接数（Gauge）
+     */
+    private HikariConfig createHikariConfig(String name, int maxPoolSize, int minIdle, long connTimeout) {
         HikariConfig config = new HikariConfig();
 
         // 基本连接信息
@@ -62,30 +185,20 @@ public class ClickHouseConfig {
         config.setDriverClassName("com.clickhouse.jdbc.ClickHouseDriver");
 
         // 连接池配置
-        config.setPoolName(poolName);
-        config.setMaximumPoolSize(maximumPoolSize);
-        config.setMinimumIdle(minimumIdle);
-        config.setConnectionTimeout(connectionTimeout);
+        config.setPoolName(name);
+        config.setMaximumPoolSize(maxPoolSize);
+        config.setMinimumIdle(minIdle);
+        config.setConnectionTimeout(connTimeout);
         config.setIdleTimeout(idleTimeout);
         config.setMaxLifetime(maxLifetime);
         config.setAutoCommit(autoCommit);
         config.setConnectionTestQuery(connectionTestQuery);
 
-        // ClickHouse特定的连接参数
-        config.addDataSourceProperty("socket_timeout", "30000");
-        config.addDataSourceProperty("connection_timeout", "10000");
-        config.addDataSourceProperty("max_execution_time", "60");
-        config.addDataSourceProperty("compress", "1");
-
         // 性能优化配置
-        config.setRegisterMbeans(false);  // 禁用JMX监控，避免注册冲突（使用自定义监控接口）
+        config.setRegisterMbeans(false);  // 禁用JMX监控，避免注册冲突（指标通过 MeterRegistry 导出）
         config.setLeakDetectionThreshold(60000);  // 连接泄漏检测阈值(60秒)
+        config.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
 
-        HikariDataSource dataSource = new HikariDataSource(config);
-
-        log.info("ClickHouse HikariCP DataSource initialized successfully - Pool: {}, MaxSize: {}, MinIdle: {}",
-                poolName, maximumPoolSize, minimumIdle);
-
-        return dataSource;
+        return config;
     }
 }
@@ -1,18 +1,38 @@
 package io.bluemacaw.msgsvr.config;
 
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 队列/交换机声明
+ *
+ * 监听器默认使用 starter 的公共监听容器工厂（WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY）和批量 ack，
+ * 实时消息消费者使用单独的 messageListenerContainerFactory（分道并行，乱序完成，自行确认）
+ */
 @Slf4j
 @Configuration
+@Import(WmRabbitMqConfig.class)
 @Getter
 @Setter
 public class RabbitmqConfig {
+    /**
+     * 重试延迟级别消息头（Headers Exchange 路由依据）
+     */
+    public static final String RETRY_TIER_HEADER = "x-retry-tier";
+
     @Value("${spring.rabbitmq.exchangeMessage}")
     private String exchangeMessage;
 
@@ -23,6 +43,21 @@ public class RabbitmqConfig {
     @Value("${spring.rabbitmq.routeMessage}")
     private String routeMessage;
 
+    // 实时消息分片：N 个队列，按 channelId 选择路由键（0 表示不分片，只使用 queueMessage）
+    @Value("${spring.rabbitmq.messageShardCount:0}")
+    private int messageShardCount;
+
+    // 当前实例优先消费 shard % messageShardInstanceCount == messageShardInstanceIndex 的分片，其余分片作为备用订阅
+    @Value("${spring.rabbitmq.messageShardInstanceIndex:0}")
+    private int messageShardInstanceIndex;
+
+    @Value("${spring.rabbitmq.messageShardInstanceCount:1}")
+    private int messageShardInstanceCount;
+
+    // 实时消息消费者的 prefetch（分道并行时决定最大在途消息数）
+    @Value("${spring.rabbitmq.messagePrefetch:16}")
+    private int messagePrefetch;
+
     // 批量消息队列（历史数据导入）
     @Value("${spring.rabbitmq.queueMessageBatch}")
     private String queueMessageBatch;
@@ -30,6 +65,31 @@ public class RabbitmqConfig {
     @Value("${spring.rabbitmq.routeMessageBatch}")
     private String routeMessageBatch;
 
+    // 消费失败重试：延迟队列（TTL + 死信回原队列）和停放队列
+    @Value("${spring.rabbitmq.exchangeRetry:ex.retry.headers}")
+    private String exchangeRetry;
+
+    @Value("${spring.rabbitmq.queueRetryPrefix:queue.retry.delay}")
+    private String queueRetryPrefix;
+
+    @Value("${spring.rabbitmq.queueRetryParking:queue.retry.parking}")
+    private String queueRetryParking;
+
+    @Value("${spring.rabbitmq.retryTierCount:5}")
+    private int retryTierCount;
+
+    @Value("${spring.rabbitmq.retryInitialDelay:1000}")
+    private long retryInitialDelay;
+
+    @Value("${spring.rabbitmq.retryMultiplier:4}")
+    private int retryMultiplier;
+
+    @Value("${spring.rabbitmq.retryMaxAttempts:8}")
+    private int retryMaxAttempts;
+
+    @Value("${spring.rabbitmq.retryConfirmTimeout:5000}")
+    private long retryConfirmTimeout;
+
     // Change Stream 事件队列配置
     // 所有 Collection 都使用 Fanout Exchange（广播模式）
 
@@ -60,12 +120,43 @@ public class RabbitmqConfig {
     @Value("${spring.rabbitmq.queueChangeStreamMessageES}")
     private String queueChangeStreamMessageES;
 
+    @Value("${spring.rabbitmq.queueChangeStreamMessageSyncFeed:queue.changestream.message.syncfeed}")
+    private String queueChangeStreamMessageSyncFeed;
+
+    // Message 状态变更 Fanout Exchange（撤回等，只包含状态字段）
+    @Value("${spring.rabbitmq.exchangeChangeStreamMessageStatus:ex.changestream.message.status.fanout}")
+    private String exchangeChangeStreamMessageStatus;
+
+    @Value("${spring.rabbitmq.queueChangeStreamMessageStatusClickHouse:queue.changestream.message.status.clickhouse}")
+    private String queueChangeStreamMessageStatusClickHouse;
+
+    @Value("${spring.rabbitmq.queueChangeStreamMessageStatusES:queue.changestream.message.status.es}")
+    private String queueChangeStreamMessageStatusES;
+
+    @Value("${spring.rabbitmq.queueChangeStreamMessageStatusRedis:queue.changestream.message.status.redis}")
+    private String queueChangeStreamMessageStatusRedis;
+
     // 原有消息队列配置
     @Bean
     public DirectExchange exchangeMessage() {
         return new DirectExchange(exchangeMessage);
     }
 
+    /**
+     * 实时消息消费者的容器工厂
+     *
+     * 继承 spring.rabbitmq.listener.simple 的全局配置，只单独设置 prefetch：
+     * 分道并行时监听线程只做分发，在途消息数 = prefetch，需要比全局值大才能让各 lane 都有消息可处理
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory messageListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setPrefetchCount(messagePrefetch);
+        return factory;
+    }
+
     // 单条消息队列（实时数据）
     @Bean
     public Queue queueMessage() {
@@ -77,6 +168,112 @@ public class RabbitmqConfig {
         return BindingBuilder.bind(queueMessage()).to(exchangeMessage()).with(routeMessage);
     }
 
+    // ========== 实时消息分片队列 ==========
+
+    /**
+     * 实时消息分片队列及绑定
+     *
+     * - queue.message.single.{i} 通过路由键 route.message.single.{i} 绑定到 ex.message
+     * - 发送方按 channelId 计算分片（resolveMessageRoute），同一 channel 的消息总在同一个队列中
+     * - 队列开启 single-active-consumer：多个实例同时订阅同一个分片时只有一个在消费，
+     *   该实例断开后由下一个订阅者接管，保证 channel 内顺序
+     */
+    @Bean
+    public Declarables messageShardDeclarables() {
+        List<Declarable> declarables = new ArrayList<>();
+        for (int shard = 0; shard < messageShardCount; shard++) {
+            Queue queue = QueueBuilder.durable(getMessageShardQueue(shard))
+                    .singleActiveConsumer()
+                    .build();
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(exchangeMessage()).with(getMessageShardRoute(shard)));
+        }
+        return new Declarables(declarables);
+    }
+
+    /**
+     * 实时消息消费者优先消费的队列
+     *
+     * - 未分片：queueMessage
+     * - 分片：分给当前实例的分片（shard % messageShardInstanceCount == messageShardInstanceIndex），
+     *   以较高的消费者优先级（MessageConsumer 监听的 priority）订阅。
+     *   其他分片由 messageStandbyQueues 以低优先级订阅：分片队列开启了 single-active-consumer，
+     *   Broker（RabbitMQ 3.12+）在订阅者中选优先级最高的作为活跃消费者，
+     *   所以各实例分别消费自己的分片，吞吐随实例数增加；实例宕机后它的分片由备用订阅接管，恢复后切回。
+     *   开启分片前发送到 queueMessage 的消息由 MessageShardDrainer 先消费完，再启动分片监听
+     */
+    @Bean
+    public String[] messageConsumerQueues() {
+        if (!isMessageSharded()) {
+            return new String[]{queueMessage};
+        }
+
+        List<String> queues = new ArrayList<>();
+        for (int shard = 0; shard < messageShardCount; shard++) {
+            if (isOwnedShard(shard)) {
+                queues.add(getMessageShardQueue(shard));
+            }
+        }
+        log.info("Real-time message consumer queues: {}", queues);
+        return queues.toArray(new String[0]);
+    }
+
+    /**
+     * 实时消息消费者备用订阅的队列：未分给当前实例的分片（未分片或只有一个实例时为空）
+     */
+    @Bean
+    public String[] messageStandbyQueues() {
+        List<String> queues = new ArrayList<>();
+        for (int shard = 0; isMessageSharded() && shard < messageShardCount; shard++) {
+            if (!isOwnedShard(shard)) {
+                queues.add(getMessageShardQueue(shard));
+            }
+        }
+        log.info("Real-time message standby queues: {}", queues);
+        return queues.toArray(new String[0]);
+    }
+
+    public boolean isMessageSharded() {
+        return messageShardCount > 0;
+    }
+
+    /**
+     * 是否有备用订阅（分片且多于一个实例）
+     */
+    public boolean isMessageStandby() {
+        return isMessageSharded() && messageShardInstanceCount > 1;
+    }
+
+    private boolean isOwnedShard(int shard) {
+        int instanceCount = Math.max(messageShardInstanceCount, 1);
+        return shard % instanceCount == Math.floorMod(messageShardInstanceIndex, instanceCount);
+    }
+
+    /**
+     * 根据 channelId 计算实时消息的路由键
+     *
+     * 分片 = floorMod(channelId.hashCode(), messageShardCount)：修改 messageShardCount 会让大部分频道换到
+     * 另一个分片，新旧分片中同一频道的消息会被并行消费（seq 乱序）。只能在所有分片队列都消费完、
+     * 暂停发送的情况下修改
+     *
+     * @param channelId ChannelService.generateChannelId 生成的 channelId
+     * @return 未分片时返回 routeMessage，分片时返回对应分片的路由键
+     */
+    public String resolveMessageRoute(String channelId) {
+        if (!isMessageSharded()) {
+            return routeMessage;
+        }
+        return getMessageShardRoute(Math.floorMod(channelId.hashCode(), messageShardCount));
+    }
+
+    public String getMessageShardQueue(int shard) {
+        return queueMessage + "." + shard;
+    }
+
+    public String getMessageShardRoute(int shard) {
+        return routeMessage + "." + shard;
+    }
+
     // 批量消息队列（历史数据导入）
     @Bean
     public Queue queueMessageBatch() {
@@ -88,6 +285,64 @@ public class RabbitmqConfig {
         return BindingBuilder.bind(queueMessageBatch()).to(exchangeMessage()).with(routeMessageBatch);
     }
 
+    // ========== 消费失败重试 ==========
+
+    /**
+     * 重试交换机：Headers Exchange，按消息头 x-retry-tier 路由到对应的延迟队列
+     *
+     * 发送时路由键为原队列名，Headers Exchange 不使用路由键，死信时保留该路由键
+     */
+    @Bean
+    public HeadersExchange exchangeRetry() {
+        return new HeadersExchange(exchangeRetry);
+    }
+
+    /**
+     * 重试延迟队列及停放队列
+     *
+     * - queue.retry.delay.{delay}ms：队列级 TTL，无消费者，到期后死信到默认交换机，
+     *   使用原路由键（原队列名）直接回到原队列
+     * - 按重试次数选择延迟级别，同一队列中的消息 TTL 相同，不会互相阻塞
+     * - queue.retry.parking：超过最大重试次数的消息，等待人工处理后重新投递
+     */
+    @Bean
+    public Declarables retryDeclarables() {
+        List<Declarable> declarables = new ArrayList<>();
+        for (int tier = 0; tier < retryTierCount; tier++) {
+            Queue queue = QueueBuilder.durable(getRetryQueue(tier))
+                    .ttl((int) getRetryDelay(tier))
+                    .deadLetterExchange("")
+                    .build();
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(exchangeRetry())
+                    .where(RETRY_TIER_HEADER).matches(String.valueOf(tier)));
+        }
+        declarables.add(QueueBuilder.durable(queueRetryParking).build());
+        return new Declarables(declarables);
+    }
+
+    /**
+     * 第 tier 级延迟（毫秒）：retryInitialDelay * retryMultiplier^tier
+     */
+    public long getRetryDelay(int tier) {
+        long delay = retryInitialDelay;
+        for (int i = 0; i < tier; i++) {
+            delay *= retryMultiplier;
+        }
+        return delay;
+    }
+
+    public String getRetryQueue(int tier) {
+        return queueRetryPrefix + "." + getRetryDelay(tier) + "ms";
+    }
+
+    /**
+     * 第 retryCount 次重试使用的延迟级别（超过级别数后使用最长延迟）
+     */
+    public int resolveRetryTier(int retryCount) {
+        return Math.min(Math.max(retryCount - 1, 0), retryTierCount - 1);
+    }
+
     // ========== Change Stream 队列配置 ==========
     // 所有 Collection 都使用 Fanout Exchange（广播模式，方便后续扩展）
 
@@ -129,6 +384,17 @@ public class RabbitmqConfig {
         return BindingBuilder.bind(queueChangeStreamUserSubClickHouse()).to(exchangeChangeStreamUserSub());
     }
 
+    // UserSubscription 变更队列 - 未读数（每个实例一个临时队列，其他实例收到的已读上报也能同步到本实例）
+    @Bean
+    public Queue queueChangeStreamUserSubUnread() {
+        return new AnonymousQueue(new Base64UrlNamingStrategy("queue.changestream.usersub.unread."));
+    }
+
+    @Bean
+    public Binding bindingQueueChangeStreamUserSubUnread() {
+        return BindingBuilder.bind(queueChangeStreamUserSubUnread()).to(exchangeChangeStreamUserSub());
+    }
+
     // ========== Message Change Stream 广播配置 ==========
 
     // Message Fanout Exchange
@@ -169,4 +435,74 @@ public class RabbitmqConfig {
     public Binding bindingQueueChangeStreamMessageES() {
         return BindingBuilder.bind(queueChangeStreamMessageES()).to(exchangeChangeStreamMessage());
     }
+
+    // Message 变更队列 - 用户频道变更流
+    // single-active-consumer：多个实例中只有一个在消费，保证变更流只有一个写者
+    @Bean
+    public Queue queueChangeStreamMessageSyncFeed() {
+        return QueueBuilder.durable(queueChangeStreamMessageSyncFeed)
+                .singleActiveConsumer()
+                .build();
+    }
+
+    @Bean
+    public Binding bindingQueueChangeStreamMessageSyncFeed() {
+        return BindingBuilder.bind(queueChangeStreamMessageSyncFeed()).to(exchangeChangeStreamMessage());
+    }
+
+    // 同一个队列也绑定 UserSubscription 变更（已读进度、加入/退出），变更流仍只有一个写者
+    @Bean
+    public Binding bindingQueueChangeStreamUserSubSyncFeed() {
+        return BindingBuilder.bind(queueChangeStreamMessageSyncFeed()).to(exchangeChangeStreamUserSub());
+    }
+
+    // Message 变更队列 - 未读数（每个实例一个临时队列，各实例都收到全部事件，断开后自动删除）
+    @Bean
+    public Queue queueChangeStreamMessageUnread() {
+        return new AnonymousQueue(new Base64UrlNamingStrategy("queue.changestream.message.unread."));
+    }
+
+    @Bean
+    public Binding bindingQueueChangeStreamMessageUnread() {
+        return BindingBuilder.bind(queueChangeStreamMessageUnread()).to(exchangeChangeStreamMessage());
+    }
+
+    // Message 状态变更 Fanout Exchange
+    @Bean
+    public FanoutExchange exchangeChangeStreamMessageStatus() {
+        return new FanoutExchange(exchangeChangeStreamMessageStatus);
+    }
+
+    // Message 状态变更队列 - ClickHouse 消费者
+    @Bean
+    public Queue queueChangeStreamMessageStatusClickHouse() {
+        return new Queue(queueChangeStreamMessageStatusClickHouse, true);
+    }
+
+    @Bean
+    public Binding bindingQueueChangeStreamMessageStatusClickHouse() {
+        return BindingBuilder.bind(queueChangeStreamMessageStatusClickHouse()).to(exchangeChangeStreamMessageStatus());
+    }
+
+    // Message 状态变更队列 - ES 消费者（撤回的消息从全文索引中删除）
+    @Bean
+    public Queue queueChangeStreamMessageStatusES() {
+        return new Queue(queueChangeStreamMessageStatusES, true);
+    }
+
+    @Bean
+    public Binding bindingQueueChangeStreamMessageStatusES() {
+        return BindingBuilder.bind(queueChangeStreamMessageStatusES()).to(exchangeChangeStreamMessageStatus());
+    }
+
+    // Message 状态变更队列 - Redis 消费者（频道最后消息摘要）
+    @Bean
+    public Queue queueChangeStreamMessageStatusRedis() {
+        return new Queue(queueChangeStreamMessageStatusRedis, true);
+    }
+
+    @Bean
+    public Binding bindingQueueChangeStreamMessageStatusRedis() {
+        return BindingBuilder.bind(queueChangeStreamMessageStatusRedis()).to(exchangeChangeStreamMessageStatus());
+    }
 }
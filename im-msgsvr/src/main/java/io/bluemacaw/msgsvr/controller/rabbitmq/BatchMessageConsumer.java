@@ -1,9 +1,13 @@
 package io.bluemacaw.msgsvr.controller.rabbitmq;
 
-import com.alibaba.fastjson.JSON;
 import com.rabbitmq.client.Channel;
-import io.bluemacaw.msgsvr.entity.mq.MqAggregatedMessageData;
+import io.bluemacaw.msgsvr.entity.mq.MqAggregatedMessageBatch;
+import io.bluemacaw.msgsvr.service.MessageImportService;
 import io.bluemacaw.msgsvr.service.MessageService;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.msgsvr.util.MqMessageDecoder;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
@@ -11,19 +15,26 @@ import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
 
-import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 批量消息消费者
  * 用于处理历史数据导入场景
  *
  * 处理流程：
- * 1. 从MQ接收聚合消息(MqAggregatedMessageData)
+ * 1. 从MQ接收聚合消息(MqAggregatedMessageData)，流式解码，逐条转换为 Message 实体
  * 2. 确保 Channel 和 UserSubscription 存在
  * 3. 根据消息日期分配seq（历史数据递减，新数据递增）
  * 4. 批量保存到MongoDB (按月分collection)
  * 5. MongoDB Change Stream 监听到插入事件
  * 6. 同步到 ClickHouse
+ *
+ * 使用公共监听容器工厂：消费者数量随队列积压在 wm.rabbitmq.listener.min/max-concurrency 之间伸缩
+ *
+ * 导入模式（spring.rabbitmq.batchImportMode，见 MessageImportService）：
+ * - 监听线程只解码，批次按 channelId 分组交给导入线程池，同一频道串行、不同频道并行写入
+ * - 批次完成顺序与投递顺序不一致，由每个 Channel 的 DeliveryAckTracker 确认，不使用批量 ack
  */
 @Slf4j
 @Component
@@ -31,35 +42,117 @@ public class BatchMessageConsumer {
     @Resource
     private MessageService messageService;
 
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
+    @Resource
+    private MessageImportService messageImportService;
+
+    /**
+     * 导入模式下每个 Channel 的确认跟踪器（每个 consumer 独占一个 Channel）
+     */
+    private final Map<Channel, DeliveryAckTracker> ackTrackers = new ConcurrentHashMap<>();
+
     @RabbitListener(
         queues = "${spring.rabbitmq.queueMessageBatch}",
-        concurrency = "8"
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
     )
     public void onBatchMessage(Message message, Channel channel) throws Exception {
         long deliveryTag = message.getMessageProperties().getDeliveryTag();
-        byte[] body = message.getBody();
-        String content = new String(body, StandardCharsets.UTF_8);
+
+        if (messageImportService.isEnabled()) {
+            importBatchMessage(message, channel, deliveryTag);
+            return;
+        }
 
         try {
-            MqAggregatedMessageData aggregatedData = JSON.parseObject(content, MqAggregatedMessageData.class);
+            // 直接从 byte[] 流式解码，不构建完整的 MqAggregatedMessageData
+            MqAggregatedMessageBatch batch = MqMessageDecoder.decodeAggregated(message);
 
             // 调用 MessageService 批量保存消息
-            messageService.saveBatchMessages(aggregatedData);
+            if (batch != null) {
+                messageService.saveBatchMessages(batch);
+            }
 
             // 手动确认消息
-            channel.basicAck(deliveryTag, false);
+            wmAckBatcher.ack(channel, deliveryTag);
 
         } catch (DataIntegrityViolationException e) {
             // MongoDB 写冲突异常
-            log.error("MongoDB WriteConflict detected, requeue batch message for retry. deliveryTag: {}", deliveryTag, e);
-            // 负确认，消息重新入队等待重试
-            channel.basicNack(deliveryTag, false, true);
+            log.error("MongoDB WriteConflict detected, retry batch message later. deliveryTag: {}", deliveryTag, e);
+            reject(message, channel, deliveryTag, e);
 
         } catch (Exception e) {
             // 其他未预期的异常
-            log.error("Unexpected error processing batch message, requeue for retry. deliveryTag: {}", deliveryTag, e);
-            // 负确认，消息重新入队等待重试
-            channel.basicNack(deliveryTag, false, true);
+            log.error("Unexpected error processing batch message, retry later. deliveryTag: {}", deliveryTag, e);
+            reject(message, channel, deliveryTag, e);
+        }
+    }
+
+    /**
+     * 导入模式：解码后提交给 MessageImportService，在导入线程上确认
+     */
+    private void importBatchMessage(Message message, Channel channel, long deliveryTag) throws Exception {
+        DeliveryAckTracker tracker = ackTrackers.get(channel);
+        if (tracker == null) {
+            // Channel 重建后 deliveryTag 重新计数，旧 Channel 上未确认的消息会被 Broker 重新投递
+            ackTrackers.keySet().removeIf(c -> !c.isOpen());
+            tracker = ackTrackers.computeIfAbsent(channel, DeliveryAckTracker::new);
+        }
+        tracker.register(deliveryTag);
+
+        MqAggregatedMessageBatch batch;
+        try {
+            batch = MqMessageDecoder.decodeAggregated(message);
+        } catch (Exception e) {
+            log.error("Failed to decode batch message, retry later. deliveryTag: {}", deliveryTag, e);
+            reject(message, tracker, deliveryTag, e);
+            return;
+        }
+
+        if (batch == null || batch.isEmpty()) {
+            tracker.complete(deliveryTag);
+            return;
+        }
+
+        DeliveryAckTracker finalTracker = tracker;
+        try {
+            messageImportService.submit(batch,
+                    () -> finalTracker.complete(deliveryTag),
+                    e -> reject(message, finalTracker, deliveryTag, e));
+        } catch (InterruptedException e) {
+            // 等待在途许可时被中断（容器停止），重新入队
+            Thread.currentThread().interrupt();
+            tracker.fail(deliveryTag);
+        } catch (Exception e) {
+            // 提交失败时回调不会执行，在这里结束该投递，避免 tag 一直在途
+            log.error("Failed to submit batch message, retry later. deliveryTag: {}", deliveryTag, e);
+            reject(message, tracker, deliveryTag, e);
+        }
+    }
+
+    /**
+     * 导入模式的失败处理：转入延迟重试/停放队列后确认原消息，转入失败时负确认重新入队
+     */
+    private void reject(Message message, DeliveryAckTracker tracker, long deliveryTag, Exception cause) {
+        if (mqRetryService.retryOrPark(message, cause)) {
+            tracker.complete(deliveryTag);
+        } else {
+            tracker.fail(deliveryTag);
+        }
+    }
+
+    /**
+     * 处理失败：转入延迟重试/停放队列后确认原消息，转入失败时负确认重新入队
+     */
+    private void reject(Message message, Channel channel, long deliveryTag, Exception cause) throws Exception {
+        if (mqRetryService.retryOrPark(message, cause)) {
+            wmAckBatcher.ack(channel, deliveryTag);
+        } else {
+            wmAckBatcher.nack(channel, deliveryTag, true);
         }
     }
 }
@@ -0,0 +1,99 @@
+package io.bluemacaw.msgsvr.controller.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 投递确认跟踪器
+ *
+ * 消息被分发到多个线程并行处理时，完成顺序与投递顺序（deliveryTag）不一致。
+ * 这里按 deliveryTag 记录在途消息，只有从最小在途 tag 开始连续完成的部分才用一次
+ * basicAck(multiple=true) 确认，避免 multiple ack 误确认仍在处理中的消息。
+ *
+ * - 处理失败的消息立即单条 nack 并重新入队，不阻塞后续确认
+ * - 一个 Channel 对应一个跟踪器（deliveryTag 只在 Channel 内有效）
+ *
+ * @author shzhou.michael
+ */
+@Slf4j
+public class DeliveryAckTracker {
+
+    private final Channel channel;
+
+    /**
+     * deliveryTag -> 是否已处理成功
+     */
+    private final TreeMap<Long, Boolean> inFlight = new TreeMap<>();
+
+    public DeliveryAckTracker(Channel channel) {
+        this.channel = channel;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * 登记一条投递（必须在分发给处理线程之前调用）
+     */
+    public synchronized void register(long deliveryTag) {
+        inFlight.put(deliveryTag, Boolean.FALSE);
+    }
+
+    /**
+     * 标记处理成功，并确认连续完成的前缀
+     */
+    public synchronized void complete(long deliveryTag) {
+        if (inFlight.containsKey(deliveryTag)) {
+            inFlight.put(deliveryTag, Boolean.TRUE);
+        }
+        ackCompletedPrefix();
+    }
+
+    /**
+     * 标记处理失败：单条 nack 重新入队
+     */
+    public synchronized void fail(long deliveryTag) {
+        if (inFlight.remove(deliveryTag) != null) {
+            try {
+                channel.basicNack(deliveryTag, false, true);
+            } catch (Exception e) {
+                log.error("Failed to nack message, deliveryTag: {}", deliveryTag, e);
+            }
+        }
+        ackCompletedPrefix();
+    }
+
+    /**
+     * 在途（未确认）消息数
+     */
+    public synchronized int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private void ackCompletedPrefix() {
+        long ackUpTo = -1;
+        while (!inFlight.isEmpty()) {
+            Map.Entry<Long, Boolean> first = inFlight.firstEntry();
+            if (!first.getValue()) {
+                break;
+            }
+            ackUpTo = first.getKey();
+            inFlight.pollFirstEntry();
+        }
+
+        if (ackUpTo < 0) {
+            return;
+        }
+
+        try {
+            channel.basicAck(ackUpTo, true);
+        } catch (Exception e) {
+            // Channel 已关闭时未确认的消息会被 Broker 重新投递
+            log.error("Failed to ack messages up to deliveryTag: {}", ackUpTo, e);
+        }
+    }
+}
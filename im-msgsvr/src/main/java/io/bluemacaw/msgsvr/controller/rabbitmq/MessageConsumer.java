@@ -1,18 +1,38 @@
 package io.bluemacaw.msgsvr.controller.rabbitmq;
 
-import com.alibaba.fastjson.JSON;
 import com.rabbitmq.client.Channel;
 import io.bluemacaw.msgsvr.entity.mq.MqMessage;
 import io.bluemacaw.msgsvr.entity.mq.MqMessageData;
+import io.bluemacaw.msgsvr.service.MessageDedupService;
 import io.bluemacaw.msgsvr.service.MessageService;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.msgsvr.util.MqMessageDecoder;
+import io.bluemacaw.thread.WmThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
 
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static io.bluemacaw.msgsvr.service.ChannelService.generateChannelId;
 
@@ -28,66 +48,625 @@ import static io.bluemacaw.msgsvr.service.ChannelService.generateChannelId;
  * 5. 保存到MongoDB (按月分collection)
  * 6. MongoDB Change Stream 监听到插入事件
  * 7. 同步到 ClickHouse
+ *
+ * 分道并行（spring.rabbitmq.messageLaneCount > 1）：
+ * - 监听线程只负责解析消息，按 channelId 哈希分发到 N 个单线程的 lane
+ * - 同一 channel 的消息总在同一个 lane 中按投递顺序处理，seq 分配顺序不变
+ * - 不同 channel 的消息在不同 lane 中并行处理
+ * - lane 的完成顺序与投递顺序不一致，由 DeliveryAckTracker 负责确认
+ * - 在途消息数由 prefetch 限制（spring.rabbitmq.messagePrefetch）
+ *
+ * 微批（spring.rabbitmq.messageBatchSize > 1）：
+ * - lane 每次取出队列中已有的消息（最多 messageBatchSize 条，最多等待 messageBatchWaitMs 毫秒）
+ * - 按 channelId 分组，同一频道的消息在一个事务中保存（MessageService.saveMessages）
+ * - 事务提交后再逐条确认对应的 MQ 消息
+ *
+ * 原地重试（spring.rabbitmq.messageRetryAttempts / messageRetryBackoffMs）：
+ * - 保存失败后在当前线程（lane）中退避重试，lane 中同一频道后续的消息等待重试结束，顺序不变；
+ *   WriteConflict、短暂的网络抖动一般在这里恢复，不经过 MQ
+ * - 重试时按重投递处理（查 MongoDB 去重），上一次已保存的消息不会重复保存
+ *
+ * 失败的频道（lane 模式，原地重试用尽后）：
+ * - 频道的一组消息保存失败后，整组 nack 重新入队（Broker 按原位置放回），不转入延迟队列，
+ *   否则同一频道后续的消息会先于失败的消息分配 seq
+ * - 频道保持阻塞，直到失败的第一条消息（按消息体识别）重新投递并处理完：期间该频道的其他投递
+ *   （包括失败之后才从 prefetch 缓冲登记的消息）一律 nack，重新投递后排在失败的消息之后
+ * - 失败的消息重新投递后单独处理，再次失败时才转入延迟重试队列，避免毒消息一直阻塞频道；
+ *   只因连接断开而重新投递（redelivered）的消息第一次失败时仍按上面的方式阻塞频道
+ * - 失败的消息超过 spring.rabbitmq.messageBlockTimeoutMs 仍未回到本实例（例如单活消费者切换到了
+ *   其他实例）时解除阻塞
+ *
+ * 保存模式（mongodb.send-mode）：
+ * - transactional：MessageService.saveMessage / saveMessages，MongoDB事务
+ * - idempotent：MessageService.saveMessageIdempotent，逐条非事务保存，重复投递返回已保存的消息
+ *
+ * 失败重试（MqRetryService）：
+ * - 原地重试用尽后，单线程模式下的消息、lane 模式下重新投递后仍失败的消息转入延迟重试队列后确认，
+ *   超过最大重试次数后停放
+ * - 转入失败时退回到 nack 重新入队
+ *
+ * 去重（MessageDedupService）：
+ * - 保存前按 clientMsgId/oldMsgId 检查，重复消息直接确认，不分配 seq
+ * - 微批中同一频道重复的幂等键只保存第一条
+ *
+ * 消费的队列由 RabbitmqConfig.messageConsumerQueues 决定（未分片时为 queueMessage，
+ * 分片时为分给当前实例的分片，以 OWNED_PRIORITY 订阅），多个队列共用一个 Channel；
+ * 其他分片由 onStandbyMessage 以 STANDBY_PRIORITY 备用订阅（RabbitmqConfig.messageStandbyQueues）。
+ * single-active-consumer 保证每个分片只有一个活跃消费者，并优先选择优先级高的订阅者。
+ * 分片时分片监听不自动启动，旧队列 queueMessage 由 onLegacyMessage 独占消费，
+ * MessageShardDrainer 确认旧队列已消费完后再启动分片监听
  */
 @Slf4j
 @Component
 public class MessageConsumer {
+    public static final String LISTENER_ID = "messageConsumer";
+
+    public static final String LEGACY_LISTENER_ID = "legacyMessageConsumer";
+
+    public static final String STANDBY_LISTENER_ID = "standbyMessageConsumer";
+
+    /**
+     * 分给当前实例的分片的消费者优先级（x-priority）
+     */
+    private static final String OWNED_PRIORITY = "10";
+
+    /**
+     * 备用订阅的消费者优先级
+     */
+    private static final String STANDBY_PRIORITY = "0";
+
+    /**
+     * lane 空闲时检查停止标志的间隔（毫秒）
+     */
+    private static final long LANE_POLL_INTERVAL = 500;
+
+    /**
+     * 原地重试的最大退避时间（毫秒）
+     */
+    private static final long MAX_RETRY_BACKOFF = 2000;
+
     @Resource
     private MessageService messageService;
 
+    @Resource
+    private MessageDedupService messageDedupService;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
+    @Value("${spring.rabbitmq.messageLaneCount:1}")
+    private int laneCount;
+
+    @Value("${spring.rabbitmq.messageBatchSize:1}")
+    private int batchSize;
+
+    @Value("${spring.rabbitmq.messageBatchWaitMs:5}")
+    private long batchWaitMs;
+
+    /**
+     * 保存失败后原地重试的次数（0 表示不重试）
+     */
+    @Value("${spring.rabbitmq.messageRetryAttempts:3}")
+    private int retryAttempts;
+
+    /**
+     * 第一次原地重试前的等待时间（毫秒），之后每次翻倍
+     */
+    @Value("${spring.rabbitmq.messageRetryBackoffMs:100}")
+    private long retryBackoffMs;
+
+    /**
+     * 频道因失败被阻塞的最长时间（毫秒），失败的消息在此期间没有重新投递到本实例时解除阻塞
+     */
+    @Value("${spring.rabbitmq.messageBlockTimeoutMs:60000}")
+    private long blockTimeoutMs;
+
+    /**
+     * 保存模式：transactional（MongoDB事务）/ idempotent（非事务，按唯一键幂等）
+     */
+    @Value("${mongodb.send-mode:transactional}")
+    private String sendMode;
+
+    private List<BlockingQueue<PendingMessage>> laneQueues;
+
+    private final List<Thread> laneThreads = new ArrayList<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * 每个 Channel 的确认跟踪器（分片队列和旧队列各一个监听容器）
+     */
+    private final Map<Channel, DeliveryAckTracker> ackTrackers = new ConcurrentHashMap<>();
+
+    /**
+     * 旧队列监听使用的 Channel
+     */
+    private volatile Channel legacyChannel;
+
+    /**
+     * lane 中因失败被阻塞的频道：失败的第一条消息重新投递之前，该频道的其他投递都 nack
+     */
+    private static final class ChannelBlock {
+        /**
+         * 失败的第一条消息的消息体（重新投递、转入延迟队列再回来时不变）
+         */
+        private final byte[] headBody;
+        private final long blockedAt;
+
+        private ChannelBlock(PendingMessage head) {
+            this.headBody = head.delivery.getBody();
+            this.blockedAt = System.currentTimeMillis();
+        }
+
+        private boolean isHead(PendingMessage pending) {
+            return Arrays.equals(pending.delivery.getBody(), headBody);
+        }
+    }
+
+    /**
+     * 分发到 lane 的消息
+     */
+    private static final class PendingMessage {
+        private final Message delivery;
+        private final MqMessage mqMessage;
+        private final String channelId;
+        private final long deliveryTag;
+        private final boolean redelivered;
+        private final DeliveryAckTracker tracker;
+        private final Map<String, String> mdcContext;
+
+        private PendingMessage(Message delivery, MqMessage mqMessage, String channelId, long deliveryTag,
+                               boolean redelivered, DeliveryAckTracker tracker, Map<String, String> mdcContext) {
+            this.delivery = delivery;
+            this.mqMessage = mqMessage;
+            this.channelId = channelId;
+            this.deliveryTag = deliveryTag;
+            this.redelivered = redelivered;
+            this.tracker = tracker;
+            this.mdcContext = mdcContext;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (laneCount <= 1 && batchSize <= 1) {
+            log.info("MessageConsumer runs in single-thread mode");
+            return;
+        }
+
+        int lanes = Math.max(laneCount, 1);
+        laneQueues = new ArrayList<>(lanes);
+        WmThreadFactory threadFactory = new WmThreadFactory("message-lane");
+        for (int i = 0; i < lanes; i++) {
+            BlockingQueue<PendingMessage> queue = new LinkedBlockingQueue<>();
+            laneQueues.add(queue);
+            Thread thread = threadFactory.newThread(() -> runLane(queue));
+            laneThreads.add(thread);
+            thread.start();
+        }
+        log.info("MessageConsumer runs in lane mode, lanes: {}, batchSize: {}, batchWaitMs: {}",
+                lanes, batchSize, batchWaitMs);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        for (Thread thread : laneThreads) {
+            try {
+                // 未处理完的消息未确认，会被 Broker 重新投递
+                thread.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
     @RabbitListener(
-        queues = "${spring.rabbitmq.queueMessage}",
-        concurrency = "1"
+        id = LISTENER_ID,
+        queues = "#{@messageConsumerQueues}",
+        concurrency = "1",
+        priority = OWNED_PRIORITY,
+        containerFactory = "messageListenerContainerFactory",
+        autoStartup = "#{!@rabbitmqConfig.messageSharded}"
     )
     public void onMessage(Message message, Channel channel) throws Exception {
         long deliveryTag = message.getMessageProperties().getDeliveryTag();
-        byte[] body = message.getBody();
-        String content = new String(body, StandardCharsets.UTF_8);
-        MqMessage mqMessage = JSON.parseObject(content, MqMessage.class);
+        // 从延迟队列回来的消息可能已保存过（与 MQ 重投递一样需要查库去重）
+        boolean redelivered = Boolean.TRUE.equals(message.getMessageProperties().isRedelivered())
+                || MqRetryService.getRetryCount(message) > 0;
+
+        MqMessage mqMessage;
+        String channelId;
+        try {
+            // 直接从 byte[] 解码，不复制成字符串
+            mqMessage = MqMessageDecoder.decode(message, MqMessage.class);
+            channelId = generateChannelId(mqMessage);
+        } catch (Exception e) {
+            log.error("Failed to parse message, retry later. deliveryTag: {}", deliveryTag, e);
+            if (mqRetryService.retryOrPark(message, e)) {
+                channel.basicAck(deliveryTag, false);
+            } else {
+                channel.basicNack(deliveryTag, false, true);
+            }
+            return;
+        }
+
+        if (laneQueues == null) {
+            Exception error = retryInPlace(channelId,
+                    retrying -> process(mqMessage, channelId, deliveryTag, redelivered || retrying));
+            // 确保消息只被确认一次
+            try {
+                if (error == null) {
+                    // 成功处理，确认消息
+                    channel.basicAck(deliveryTag, false);
+                } else if (mqRetryService.retryOrPark(message, error)) {
+                    // 已转入延迟重试/停放队列
+                    channel.basicAck(deliveryTag, false);
+                } else {
+                    // 处理失败，拒绝消息并重新入队
+                    channel.basicNack(deliveryTag, false, true);
+                }
+            } catch (Exception ackException) {
+                log.error("Failed to ack/nack message, deliveryTag: {}", deliveryTag, ackException);
+            }
+            return;
+        }
+
+        DeliveryAckTracker tracker = ackTrackers.get(channel);
+        if (tracker == null) {
+            // Channel 重建后 deliveryTag 重新计数，旧 Channel 上未确认的消息会被 Broker 重新投递
+            ackTrackers.keySet().removeIf(c -> !c.isOpen());
+            tracker = ackTrackers.computeIfAbsent(channel, DeliveryAckTracker::new);
+        }
+
+        tracker.register(deliveryTag);
+        laneQueues.get(Math.floorMod(channelId.hashCode(), laneQueues.size()))
+                .add(new PendingMessage(message, mqMessage, channelId, deliveryTag, redelivered, tracker, MDC.getCopyOfContextMap()));
+    }
+
+    /**
+     * 备用订阅其他实例的分片，分片的高优先级消费者断开后成为活跃消费者
+     *
+     * 不自动启动，由 MessageShardDrainer 与分片监听一起启动（没有备用分片时不启动）
+     */
+    @RabbitListener(
+        id = STANDBY_LISTENER_ID,
+        queues = "#{@messageStandbyQueues}",
+        concurrency = "1",
+        priority = STANDBY_PRIORITY,
+        containerFactory = "messageListenerContainerFactory",
+        autoStartup = "false"
+    )
+    public void onStandbyMessage(Message message, Channel channel) throws Exception {
+        onMessage(message, channel);
+    }
+
+    /**
+     * 开启分片后消费旧队列中剩余的消息
+     *
+     * 独占消费（exclusive）：多个实例中只有一个能订阅成功，其他实例的容器定期重试，
+     * 旧队列中同一频道的消息仍按顺序处理
+     */
+    @RabbitListener(
+        id = LEGACY_LISTENER_ID,
+        queues = "${spring.rabbitmq.queueMessage}",
+        concurrency = "1",
+        exclusive = true,
+        containerFactory = "messageListenerContainerFactory",
+        autoStartup = "#{@rabbitmqConfig.messageSharded}"
+    )
+    public void onLegacyMessage(Message message, Channel channel) throws Exception {
+        legacyChannel = channel;
+        onMessage(message, channel);
+    }
+
+    /**
+     * 旧队列已分发到 lane、尚未确认的消息数（单线程模式下在监听线程中同步处理，为 0）
+     */
+    public int legacyInFlightCount() {
+        Channel channel = legacyChannel;
+        DeliveryAckTracker tracker = channel != null ? ackTrackers.get(channel) : null;
+        return tracker != null ? tracker.inFlightCount() : 0;
+    }
+
+    /**
+     * lane 主循环：取出一批消息，按频道分组处理
+     */
+    private void runLane(BlockingQueue<PendingMessage> queue) {
+        List<PendingMessage> batch = new ArrayList<>();
+        // 只在 lane 线程中访问
+        Map<String, ChannelBlock> blockedChannels = new HashMap<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(LANE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                if (batchSize > 1) {
+                    drain(queue, batch);
+                }
+                processBatch(batch, blockedChannels);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Unexpected error in message lane", e);
+            } finally {
+                batch.clear();
+                MDC.clear();
+            }
+        }
+    }
+
+    /**
+     * 继续取出消息直到达到 batchSize 或等待超过 batchWaitMs
+     */
+    private void drain(BlockingQueue<PendingMessage> queue, List<PendingMessage> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWaitMs);
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0) {
+                break;
+            }
+            PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * 按频道分组处理（同一频道内保持投递顺序）
+     */
+    private void processBatch(List<PendingMessage> batch, Map<String, ChannelBlock> blockedChannels) {
+        Map<String, List<PendingMessage>> byChannel = new LinkedHashMap<>();
+        for (PendingMessage pending : batch) {
+            byChannel.computeIfAbsent(pending.channelId, k -> new ArrayList<>()).add(pending);
+        }
+
+        for (Map.Entry<String, List<PendingMessage>> entry : byChannel.entrySet()) {
+            String channelId = entry.getKey();
+            List<PendingMessage> group = entry.getValue();
+
+            ChannelBlock block = blockedChannels.get(channelId);
+            if (block != null && System.currentTimeMillis() - block.blockedAt > blockTimeoutMs) {
+                log.warn("Channel {} blocked for more than {} ms without redelivery of the failed message, unblock",
+                        channelId, blockTimeoutMs);
+                blockedChannels.remove(channelId);
+                block = null;
+            }
+            if (block != null) {
+                group = processBlockedGroup(channelId, group, block, blockedChannels);
+                if (group.isEmpty()) {
+                    continue;
+                }
+            }
+
+            PendingMessage first = group.get(0);
+            if (first.mdcContext != null) {
+                MDC.setContextMap(first.mdcContext);
+            }
+
+            List<PendingMessage> channelGroup = group;
+            Exception error = retryInPlace(channelId, retrying -> channelGroup.size() == 1
+                    ? process(first.mqMessage, first.channelId, first.deliveryTag, first.redelivered || retrying)
+                    : processChannelGroup(channelId, channelGroup, retrying));
+
+            if (error == null) {
+                // 事务提交后再确认
+                for (PendingMessage pending : group) {
+                    pending.tracker.complete(pending.deliveryTag);
+                }
+                continue;
+            }
+
+            // 阻塞频道，再 nack 整组：失败的消息重新投递并处理完之前，该频道的其他消息都不能保存
+            blockChannel(channelId, first, group, blockedChannels);
+        }
+    }
+
+    /**
+     * 处理被阻塞频道的一组消息
+     *
+     * 失败的消息（head）之前的消息 nack；head 单独处理，成功或转入延迟重试队列后解除阻塞；
+     * 不包含 head 时整组 nack
+     *
+     * @return 解除阻塞后可以继续按正常流程处理的消息（head 之后的部分），仍阻塞时为空
+     */
+    private List<PendingMessage> processBlockedGroup(String channelId, List<PendingMessage> group,
+                                                     ChannelBlock block, Map<String, ChannelBlock> blockedChannels) {
+        int headIndex = -1;
+        for (int i = 0; i < group.size(); i++) {
+            if (group.get(i).redelivered && block.isHead(group.get(i))) {
+                headIndex = i;
+                break;
+            }
+        }
+
+        int skipped = headIndex < 0 ? group.size() : headIndex;
+        for (int i = 0; i < skipped; i++) {
+            PendingMessage pending = group.get(i);
+            pending.tracker.fail(pending.deliveryTag);
+        }
+        if (skipped > 0) {
+            log.warn("Channel {} is blocked by a failed message, requeue {} later messages", channelId, skipped);
+        }
+        if (headIndex < 0) {
+            return Collections.emptyList();
+        }
+
+        PendingMessage head = group.get(headIndex);
+        if (head.mdcContext != null) {
+            MDC.setContextMap(head.mdcContext);
+        }
+        Exception error = retryInPlace(channelId,
+                retrying -> process(head.mqMessage, head.channelId, head.deliveryTag, true));
+
+        List<PendingMessage> rest = group.subList(headIndex + 1, group.size());
+        if (error == null) {
+            blockedChannels.remove(channelId);
+            head.tracker.complete(head.deliveryTag);
+            return rest;
+        }
+
+        // 重新投递后仍失败：转入延迟重试队列，频道继续处理后续消息
+        if (mqRetryService.retryOrPark(head.delivery, error)) {
+            log.warn("Channel {} failed message moved to retry queue after redelivery", channelId);
+            blockedChannels.remove(channelId);
+            head.tracker.complete(head.deliveryTag);
+            return rest;
+        }
+        // 转入失败时重新入队，频道保持阻塞
+        blockChannel(channelId, head, group.subList(headIndex, group.size()), blockedChannels);
+        return Collections.emptyList();
+    }
+
+    /**
+     * 以 head 阻塞频道，并 nack 一组消息
+     */
+    private void blockChannel(String channelId, PendingMessage head, List<PendingMessage> group,
+                              Map<String, ChannelBlock> blockedChannels) {
+        blockedChannels.put(channelId, new ChannelBlock(head));
+        for (PendingMessage pending : group) {
+            pending.tracker.fail(pending.deliveryTag);
+        }
+    }
+
+    /**
+     * 失败后在当前线程中退避重试
+     *
+     * @param attempt 执行一次处理，参数表示是否为重试；返回失败原因，成功时返回 null
+     * @return 最后一次的失败原因，成功时返回 null
+     */
+    private Exception retryInPlace(String channelId, Function<Boolean, Exception> attempt) {
+        Exception error = attempt.apply(false);
+        long backoff = retryBackoffMs;
+        for (int i = 1; error != null && i <= retryAttempts && running; i++) {
+            log.warn("Retry channel {} in place, attempt {}/{} after {} ms", channelId, i, retryAttempts, backoff);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return error;
+            }
+            backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF);
+            error = attempt.apply(true);
+        }
+        return error;
+    }
+
+    /**
+     * 同一频道的多条消息在一个事务中保存
+     *
+     * @param retrying 是否为原地重试（重试时查 MongoDB 去重）
+     * @return 失败原因，处理成功时返回 null
+     */
+    private Exception processChannelGroup(String channelId, List<PendingMessage> group, boolean retrying) {
+        try {
+            // 去掉已保存过的消息和组内重复的消息
+            List<MqMessage> mqMessages = new ArrayList<>(group.size());
+            Set<String> batchKeys = new HashSet<>();
+            for (PendingMessage pending : group) {
+                MqMessageData mqMessageData = pending.mqMessage.getMqMessageData();
+                String key = MessageDedupService.idempotentKey(channelId, mqMessageData);
+                if (key != null && !batchKeys.add(key)) {
+                    log.info("微批内重复消息，跳过保存: channelId={}, clientMsgId={}, oldMsgId={}",
+                            channelId, mqMessageData.getClientMsgId(), mqMessageData.getOldMsgId());
+                    continue;
+                }
+                if (messageDedupService.findDuplicate(channelId, mqMessageData, pending.redelivered || retrying) == null) {
+                    mqMessages.add(pending.mqMessage);
+                }
+            }
+
+            if (mqMessages.isEmpty()) {
+                return null;
+            }
+
+            if (isIdempotentMode()) {
+                // 幂等模式下逐条保存，每条都可以单独重试
+                for (MqMessage mqMessage : mqMessages) {
+                    messageService.saveMessageIdempotent(mqMessage);
+                    messageDedupService.record(channelId, mqMessage.getMqMessageData());
+                }
+            } else {
+                messageService.saveMessages(channelId, mqMessages);
+                for (MqMessage mqMessage : mqMessages) {
+                    messageDedupService.record(channelId, mqMessage.getMqMessageData());
+                }
+            }
+            return null;
+
+        } catch (DataIntegrityViolationException e) {
+            // MongoDB 写冲突异常
+            log.warn("MongoDB WriteConflict detected, retry {} messages later. channelId: {}",
+                    group.size(), channelId, e);
+            return e;
+
+        } catch (Exception e) {
+            // 其他未预期的异常
+            log.error("Unexpected error processing {} messages, retry later. channelId: {}",
+                    group.size(), channelId, e);
+            return e;
+        }
+    }
+
+    /**
+     * 处理单条消息
+     *
+     * @return 失败原因，处理成功时返回 null
+     */
+    private Exception process(MqMessage mqMessage, String channelId, long deliveryTag, boolean redelivered) {
         MqMessageData mqMessageData = mqMessage.getMqMessageData();
 
-        String channelId = generateChannelId(mqMessage);
         int channelType = mqMessageData.getContactType();
         long fromId = mqMessageData.getFromId();
         long toId = mqMessageData.getContactId();
         String clientMsgId = mqMessageData.getClientMsgId();
         String oldMsgId = mqMessageData.getOldMsgId();
-        int contentLength = mqMessageData.getContent() != null ? mqMessageData.getContent().getBytes(StandardCharsets.UTF_8).length : 0;
-        boolean success = false;
 
         try {
-            log.info("onMessage receive: oldMsgId: {}, channelType: {}, fromId: {}, contactId: {}, clientMsgId: {}, content size: {}",
-                    oldMsgId, channelType, fromId, toId, clientMsgId, contentLength);
+            // 日志只记录字符数，不为统计字节数重新编码消息内容
+            log.info("onMessage receive: oldMsgId: {}, channelType: {}, fromId: {}, contactId: {}, clientMsgId: {}, content chars: {}",
+                    oldMsgId, channelType, fromId, toId, clientMsgId,
+                    mqMessageData.getContent() != null ? mqMessageData.getContent().length() : 0);
 
-            io.bluemacaw.msgsvr.entity.Message mongodbMessage = messageService.saveMessage(mqMessage);
+            // 重复消息直接确认，不分配seq
+            if (messageDedupService.findDuplicate(channelId, mqMessageData, redelivered) != null) {
+                return null;
+            }
+
+            io.bluemacaw.msgsvr.entity.Message mongodbMessage = isIdempotentMode()
+                    ? messageService.saveMessageIdempotent(mqMessage)
+                    : messageService.saveMessage(mqMessage);
+            messageDedupService.record(channelId, mqMessageData);
 
             log.info("Message saved successfully: channelId={}, seq={}, oldMsgId={}",
                     channelId, mongodbMessage.getSeq(), mqMessage.getMqMessageData().getOldMsgId());
 
-            success = true;
+            return null;
 
         } catch (DataIntegrityViolationException e) {
             // MongoDB 写冲突异常
-            log.warn("MongoDB WriteConflict detected, requeue message for retry. deliveryTag: {}, channelId: {}, oldMsgId: {}",
+            log.warn("MongoDB WriteConflict detected, retry message later. deliveryTag: {}, channelId: {}, oldMsgId: {}",
                     deliveryTag, channelId, oldMsgId, e);
+            return e;
 
         } catch (Exception e) {
             // 其他未预期的异常
-            log.error("Unexpected error processing message, requeue for retry. deliveryTag: {}, channelId: {}, oldMsgId: {}",
+            log.error("Unexpected error processing message, retry later. deliveryTag: {}, channelId: {}, oldMsgId: {}",
                     deliveryTag, channelId, oldMsgId, e);
-        } finally {
-            // 确保消息只被确认一次
-            try {
-                if (success) {
-                    // 成功处理，确认消息
-                    channel.basicAck(deliveryTag, false);
-                } else {
-                    // 处理失败，拒绝消息并重新入队
-                    channel.basicNack(deliveryTag, false, true);
-                }
-            } catch (Exception ackException) {
-                log.error("Failed to ack/nack message, deliveryTag: {}", deliveryTag, ackException);
-            }
+            return e;
         }
     }
+
+    private boolean isIdempotentMode() {
+        return "idempotent".equalsIgnoreCase(sendMode);
+    }
 }
@@ -0,0 +1,97 @@
+package io.bluemacaw.msgsvr.controller.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import io.bluemacaw.msgsvr.config.RabbitmqConfig;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * 开启实时消息分片后，先消费完旧队列（queueMessage）再启动分片监听
+ *
+ * 开启分片前发送的消息留在旧队列中，分片后同一频道的新消息进入分片队列；
+ * 两边同时消费会让新消息先于旧消息分配 seq。每个实例定期检查：
+ * 1. 旧队列监听运行中：队列没有待投递消息且本实例没有在途消息时停止监听
+ *    （停止时未确认的消息由 Broker 重新入队，下一次检查会看到）
+ * 2. 旧队列监听已停止：队列还有消息则重新启动；
+ *    没有消息且没有消费者（其他实例也已停止）时认为已消费完，启动分片监听
+ *
+ * 只在启动后执行一次迁移，未开启分片时不做任何事。分片监听和备用订阅都在这里启动
+ */
+@Slf4j
+@Component
+public class MessageShardDrainer {
+
+    @Resource
+    private RabbitmqConfig rabbitmqConfig;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Resource
+    private RabbitListenerEndpointRegistry listenerRegistry;
+
+    @Resource
+    private MessageConsumer messageConsumer;
+
+    private volatile boolean drained;
+
+    @Scheduled(fixedDelayString = "${spring.rabbitmq.messageLegacyDrainIntervalMs:5000}")
+    public void checkLegacyQueue() {
+        if (drained || !rabbitmqConfig.isMessageSharded()) {
+            return;
+        }
+
+        MessageListenerContainer legacy = listenerRegistry.getListenerContainer(MessageConsumer.LEGACY_LISTENER_ID);
+        MessageListenerContainer shards = listenerRegistry.getListenerContainer(MessageConsumer.LISTENER_ID);
+        if (legacy == null || shards == null) {
+            return;
+        }
+
+        String queue = rabbitmqConfig.getQueueMessage();
+        AMQP.Queue.DeclareOk state;
+        try {
+            state = rabbitTemplate.execute(channel -> channel.queueDeclarePassive(queue));
+        } catch (Exception e) {
+            log.warn("Failed to check legacy message queue: {}", queue, e);
+            return;
+        }
+        if (state == null) {
+            return;
+        }
+
+        int inFlight = messageConsumer.legacyInFlightCount();
+        if (legacy.isRunning()) {
+            if (state.getMessageCount() == 0 && inFlight == 0) {
+                legacy.stop();
+                log.info("Legacy message queue {} is empty, legacy listener stopped", queue);
+            }
+            return;
+        }
+
+        if (state.getMessageCount() > 0) {
+            log.info("Legacy message queue {} still has {} messages, restart legacy listener",
+                    queue, state.getMessageCount());
+            legacy.start();
+            return;
+        }
+        if (state.getConsumerCount() > 0 || inFlight > 0) {
+            // 其他实例仍在消费旧队列
+            return;
+        }
+
+        drained = true;
+        shards.start();
+        if (rabbitmqConfig.isMessageStandby()) {
+            MessageListenerContainer standby = listenerRegistry.getListenerContainer(MessageConsumer.STANDBY_LISTENER_ID);
+            if (standby != null) {
+                standby.start();
+            }
+        }
+        log.info("Legacy message queue {} drained, shard listeners started", queue);
+    }
+}
@@ -5,6 +5,9 @@ import com.rabbitmq.client.Channel;
 import io.bluemacaw.msgsvr.entity.mq.ChangeStreamChannelEvent;
 import io.bluemacaw.msgsvr.enums.ChangeStreamOperationType;
 import io.bluemacaw.msgsvr.service.ChannelService;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
@@ -24,18 +27,25 @@ import java.nio.charset.StandardCharsets;
 @Component
 public class ChannelConsumer {
 
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
     @Resource
     private ChannelService channelService;
 
     @RabbitListener(
         queues = "${spring.rabbitmq.queueChangeStreamChannelClickHouse}",
-        concurrency = "1"
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
     )
     public void consumeChannelEvent(Message message, Channel channel) throws Exception {
         long deliveryTag = message.getMessageProperties().getDeliveryTag();
         byte[] body = message.getBody();
         String content = new String(body, StandardCharsets.UTF_8);
         boolean success = false;
+        Exception error = null;
 
         try {
             ChangeStreamChannelEvent event = JSON.parseObject(content, ChangeStreamChannelEvent.class);
@@ -60,13 +70,17 @@ public class ChannelConsumer {
 
         } catch (Exception e) {
             log.error("ClickHouse - Failed to consume ChangeStreamChannelEvent, deliveryTag: {}", deliveryTag, e);
+            error = e;
         } finally {
             // 确保消息只被确认一次
             try {
                 if (success) {
-                    channel.basicAck(deliveryTag, false);
+                    wmAckBatcher.ack(channel, deliveryTag);
+                } else if (mqRetryService.retryOrPark(message, error)) {
+                    // 已转入延迟重试/停放队列
+                    wmAckBatcher.ack(channel, deliveryTag);
                 } else {
-                    channel.basicNack(deliveryTag, false, true);
+                    wmAckBatcher.nack(channel, deliveryTag, true);
                 }
             } catch (Exception ackException) {
                 log.error("ClickHouse - Failed to ack/nack Channel message, deliveryTag: {}", deliveryTag, ackException);
@@ -4,32 +4,76 @@ import com.alibaba.fastjson.JSON;
 import com.rabbitmq.client.Channel;
 import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageEvent;
 import io.bluemacaw.msgsvr.enums.ChangeStreamOperationType;
+import io.bluemacaw.msgsvr.monitor.ClickHouseSinkBackpressureService;
+import io.bluemacaw.msgsvr.monitor.ClickHouseSinkBackpressureService.SinkState;
 import io.bluemacaw.msgsvr.service.MessageService;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Change Stream Message 事件消费者 - ClickHouse
  *
  * 消费 Message 集合的变更事件，批量同步到 ClickHouse
  *
+ * 背压（见 ClickHouseSinkBackpressureService）：
+ * - NORMAL：每个 MQ 消息直接写入并确认
+ * - THROTTLED：多个 MQ 消息攒成一批再写入，写入成功后一次性确认（multiple ack）
+ * - PAUSED：写入前阻塞等待，不再消费新消息，积压留在队列中
+ *
+ * 写入失败时，缓冲区对应的 MQ 消息逐条转入延迟重试队列（MqRetryService），转入成功的逐条确认，
+ * 转入失败的逐条 nack 重新入队（不用 multiple，已转入重试队列的消息不会再重新入队一份）；
+ * ClickHouse 故障期间不会反复重新入队空转，超过最大重试次数的消息停放等待重投
+ *
+ * 只同步 insert 事件；撤回等状态变更由 MessageStatusConsumer 消费状态变更事件单独应用
+ *
+ * concurrency = 1，同一时刻只有一个 Channel 上的消息在攒批，multiple ack 不会误确认其他消费者的消息
+ * （使用公共监听容器工厂的 prefetch，但不参与消费者数量伸缩，确认由攒批逻辑自行处理）
+ *
  * @author shzhou.michael
  */
 @Slf4j
 @Component("clickHouseMessageConsumer")
 public class MessageConsumer {
 
+    /**
+     * PAUSED 状态下重新检查状态的间隔（毫秒）
+     */
+    private static final long PAUSE_CHECK_INTERVAL = 1000;
+
     @Resource
     private MessageService messageService;
 
+    @Resource
+    private ClickHouseSinkBackpressureService backpressureService;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
+    /**
+     * 攒批缓冲区，由 lock 保护
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<io.bluemacaw.msgsvr.entity.Message> pendingMessages = new ArrayList<>();
+    private final List<Message> pendingDeliveries = new ArrayList<>();
+    private Channel pendingChannel;
+    private long pendingDeliveryTag = -1;
+    private long pendingSince;
+
     @RabbitListener(
         queues = "${spring.rabbitmq.queueChangeStreamMessageClickHouse}",
-        concurrency = "1"
+        concurrency = "1",
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
     )
     public void consumeMessageEvent(Message message, Channel channel) throws Exception {
         long deliveryTag = message.getMessageProperties().getDeliveryTag();
@@ -46,31 +90,165 @@ public class MessageConsumer {
                 return;
             }
 
-//            log.info("ClickHouse - ChangeStream Message event: operation={}, count={}",
-//                    event.getOperationType(), event.getMessages().size());
-
             // 根据操作类型处理
             ChangeStreamOperationType operationType = ChangeStreamOperationType.fromValue(event.getOperationType());
             if (operationType == ChangeStreamOperationType.INSERT) {
-                messageService.batchInsertMessageToClickHouse(event.getMessages());
-//                log.info("ClickHouse - Synced {} messages", event.getMessages().size());
+                // 加入攒批缓冲区，写入后由 flush 统一确认
+                enqueue(event.getMessages(), message, channel, deliveryTag);
+                return;
             }
-            
+
             success = true;
 
         } catch (Exception e) {
             log.error("ClickHouse - Failed to consume ChangeStreamMessageEvent, deliveryTag: {}", deliveryTag, e);
-        } finally {
-            // 确保消息只被确认一次
             try {
-                if (success) {
+                if (mqRetryService.retryOrPark(message, e)) {
                     channel.basicAck(deliveryTag, false);
                 } else {
                     channel.basicNack(deliveryTag, false, true);
                 }
             } catch (Exception ackException) {
-                log.error("ClickHouse - Failed to ack/nack message, deliveryTag: {}", deliveryTag, ackException);
+                log.error("ClickHouse - Failed to nack message, deliveryTag: {}", deliveryTag, ackException);
+            }
+        } finally {
+            // 空事件/非 INSERT 事件单条确认，不影响缓冲区中的消息
+            if (success) {
+                try {
+                    channel.basicAck(deliveryTag, false);
+                } catch (Exception ackException) {
+                    log.error("ClickHouse - Failed to ack message, deliveryTag: {}", deliveryTag, ackException);
+                }
+            }
+        }
+    }
+
+    /**
+     * 攒批超时检查：消息流量较小时，避免缓冲区中的消息长时间得不到写入和确认
+     *
+     * 使用 tryLock，监听线程正在写入（或 PAUSED 阻塞）时跳过，不占用调度线程
+     */
+    @Scheduled(fixedDelayString = "${clickhouse.sink.backpressure.flush-check-interval:1000}")
+    public void flushIfStale() {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (pendingMessages.isEmpty() || backpressureService.getState() == SinkState.PAUSED) {
+                return;
+            }
+            if (System.currentTimeMillis() - pendingSince >= backpressureService.getMaxFlushWait()) {
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(List<io.bluemacaw.msgsvr.entity.Message> messages, Message delivery,
+                         Channel channel, long deliveryTag) {
+        lock.lock();
+        try {
+            if (pendingChannel != null && pendingChannel != channel) {
+                // Channel 已重建（连接恢复），旧 Channel 上未确认的消息会被 Broker 重新投递
+                log.warn("ClickHouse - Channel changed, dropping {} pending messages (will be redelivered)",
+                        pendingMessages.size());
+                clearPending();
+            }
+
+            if (pendingMessages.isEmpty()) {
+                pendingSince = System.currentTimeMillis();
+            }
+            pendingMessages.addAll(messages);
+            pendingDeliveries.add(delivery);
+            pendingChannel = channel;
+            pendingDeliveryTag = deliveryTag;
+
+            int targetBatchSize = backpressureService.getTargetBatchSize();
+            if (pendingMessages.size() >= targetBatchSize
+                    || System.currentTimeMillis() - pendingSince >= backpressureService.getMaxFlushWait()) {
+                awaitWhilePaused();
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * PAUSED 状态下阻塞监听线程，等待 merge 消化 part
+     */
+    private void awaitWhilePaused() {
+        boolean logged = false;
+        while (backpressureService.getState() == SinkState.PAUSED) {
+            if (!logged) {
+                log.warn("ClickHouse - Sink paused by backpressure, pending messages: {}", pendingMessages.size());
+                logged = true;
+            }
+            try {
+                Thread.sleep(PAUSE_CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (logged) {
+            log.info("ClickHouse - Sink resumed, state: {}", backpressureService.getState());
+        }
+    }
+
+    /**
+     * 写入缓冲区中的消息，成功后确认到最后一个 deliveryTag（包含之前所有消息）
+     *
+     * 调用方必须持有 lock
+     */
+    private void flush() {
+        if (pendingMessages.isEmpty()) {
+            return;
+        }
+
+        Channel channel = pendingChannel;
+        long deliveryTag = pendingDeliveryTag;
+        List<Message> deliveries = new ArrayList<>(pendingDeliveries);
+        Exception error = null;
+
+        try {
+            messageService.batchInsertMessageToClickHouse(pendingMessages);
+        } catch (Exception e) {
+            log.error("ClickHouse - Failed to sync {} messages, deliveryTag: {}", pendingMessages.size(), deliveryTag, e);
+            error = e;
+        } finally {
+            clearPending();
+        }
+
+        if (error == null) {
+            try {
+                channel.basicAck(deliveryTag, true);
+            } catch (Exception ackException) {
+                log.error("ClickHouse - Failed to ack message, deliveryTag: {}", deliveryTag, ackException);
+            }
+            return;
+        }
+
+        // 逐条转入延迟重试队列：转入成功的确认，转入失败的单独重新入队
+        for (Message delivery : deliveries) {
+            long tag = delivery.getMessageProperties().getDeliveryTag();
+            try {
+                if (mqRetryService.retryOrPark(delivery, error)) {
+                    channel.basicAck(tag, false);
+                } else {
+                    channel.basicNack(tag, false, true);
+                }
+            } catch (Exception ackException) {
+                log.error("ClickHouse - Failed to ack/nack message, deliveryTag: {}", tag, ackException);
             }
         }
     }
+
+    private void clearPending() {
+        pendingMessages.clear();
+        pendingDeliveries.clear();
+        pendingChannel = null;
+        pendingDeliveryTag = -1;
+    }
 }
@@ -0,0 +1,80 @@
+package io.bluemacaw.msgsvr.controller.rabbitmq.changestream.clickhouse;
+
+import com.rabbitmq.client.Channel;
+import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageStatusEvent;
+import io.bluemacaw.msgsvr.service.MessageService;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.msgsvr.util.MqMessageDecoder;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Change Stream Message 状态变更消费者 - ClickHouse
+ *
+ * 消费撤回等状态变更（只包含 id、channelId、seq、msgTime、status、updateTime），
+ * 通过 MessageService.applyMessageStatusToClickHouse 作为带版本（updateTime）的行插入 message_status，
+ * 与消息行的写入顺序无关（消息还在 MessageConsumer 的写入缓冲中时状态变更也不会丢失）。
+ * Message 的完整文档 update 事件仍由 MessageConsumer 忽略
+ *
+ * 同一条消息的多次状态变更按 updateTime 取最新，与事件的处理顺序无关
+ */
+@Slf4j
+@Component("clickHouseMessageStatusConsumer")
+public class MessageStatusConsumer {
+
+    @Resource
+    private MessageService messageService;
+
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
+    @RabbitListener(
+        queues = "${spring.rabbitmq.queueChangeStreamMessageStatusClickHouse:queue.changestream.message.status.clickhouse}",
+        concurrency = "1",
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
+    )
+    public void consumeStatusEvent(Message message, Channel channel) throws Exception {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        boolean success = false;
+        Exception error = null;
+
+        try {
+            ChangeStreamMessageStatusEvent event = MqMessageDecoder.decode(message, ChangeStreamMessageStatusEvent.class);
+
+            if (event == null || event.getDeltas() == null || event.getDeltas().isEmpty()) {
+                log.warn("ClickHouse - Received empty ChangeStreamMessageStatusEvent");
+                success = true;
+                return;
+            }
+
+            messageService.applyMessageStatusToClickHouse(event.getDeltas());
+            success = true;
+
+        } catch (Exception e) {
+            log.error("ClickHouse - Failed to apply ChangeStreamMessageStatusEvent, deliveryTag: {}", deliveryTag, e);
+            error = e;
+        } finally {
+            // 确保消息只被确认一次
+            try {
+                if (success) {
+                    wmAckBatcher.ack(channel, deliveryTag);
+                } else if (mqRetryService.retryOrPark(message, error)) {
+                    // 已转入延迟重试/停放队列
+                    wmAckBatcher.ack(channel, deliveryTag);
+                } else {
+                    wmAckBatcher.nack(channel, deliveryTag, true);
+                }
+            } catch (Exception ackException) {
+                log.error("ClickHouse - Failed to ack/nack message, deliveryTag: {}", deliveryTag, ackException);
+            }
+        }
+    }
+}
@@ -4,7 +4,10 @@ import com.alibaba.fastjson.JSON;
 import com.rabbitmq.client.Channel;
 import io.bluemacaw.msgsvr.entity.mq.ChangeStreamUserSubscriptionEvent;
 import io.bluemacaw.msgsvr.enums.ChangeStreamOperationType;
+import io.bluemacaw.msgsvr.service.MqRetryService;
 import io.bluemacaw.msgsvr.service.UserSubscriptionService;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
@@ -24,6 +27,12 @@ import java.nio.charset.StandardCharsets;
 @Component
 public class UserSubscriptionConsumer {
 
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
     @Resource
     private UserSubscriptionService userSubscriptionService;
 
@@ -32,13 +41,14 @@ public class UserSubscriptionConsumer {
      */
     @RabbitListener(
         queues = "${spring.rabbitmq.queueChangeStreamUserSubClickHouse}",
-        concurrency = "1"
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
     )
     public void consumeUserSubscriptionEvent(Message message, Channel channel) throws Exception {
         long deliveryTag = message.getMessageProperties().getDeliveryTag();
         byte[] body = message.getBody();
         String content = new String(body, StandardCharsets.UTF_8);
         boolean success = false;
+        Exception error = null;
 
         try {
             ChangeStreamUserSubscriptionEvent event = JSON.parseObject(content, ChangeStreamUserSubscriptionEvent.class);
@@ -63,13 +73,17 @@ public class UserSubscriptionConsumer {
 
         } catch (Exception e) {
             log.error("ClickHouse - Failed to consume ChangeStreamUserSubscriptionEvent, deliveryTag: {}", deliveryTag, e);
+            error = e;
         } finally {
             // 确保消息只被确认一次
             try {
                 if (success) {
-                    channel.basicAck(deliveryTag, false);
+                    wmAckBatcher.ack(channel, deliveryTag);
+                } else if (mqRetryService.retryOrPark(message, error)) {
+                    // 已转入延迟重试/停放队列
+                    wmAckBatcher.ack(channel, deliveryTag);
                 } else {
-                    channel.basicNack(deliveryTag, false, true);
+                    wmAckBatcher.nack(channel, deliveryTag, true);
                 }
             } catch (Exception ackException) {
                 log.error("ClickHouse - Failed to ack/nack UserSubscription message, deliveryTag: {}", deliveryTag, ackException);
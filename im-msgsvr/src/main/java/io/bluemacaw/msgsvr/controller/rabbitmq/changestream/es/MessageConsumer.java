@@ -2,78 +2,115 @@ package io.bluemacaw.msgsvr.controller.rabbitmq.changestream.es;
 
 import com.alibaba.fastjson.JSON;
 import com.rabbitmq.client.Channel;
+import io.bluemacaw.msgsvr.controller.rabbitmq.DeliveryAckTracker;
 import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageEvent;
 import io.bluemacaw.msgsvr.enums.ChangeStreamOperationType;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.msgsvr.service.search.SearchSyncService;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
+import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.stereotype.Component;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Change Stream Message 事件消费者 - Elasticsearch
  *
- * 消费 Message 集合的变更事件，同步到 ES 用于全文检索
+ * 消费 Message 集合的变更事件，同步到全文索引（SearchIndex，当前为本地 Lucene 实现）
  * 主要用于：
  * - 消息全文检索
  * - 消息内容分析
  * - 关键词搜索等
  *
+ * 监听线程只解析事件，内容解码和分词在 SearchSyncService 的线程池上并行执行。
+ * 事件完成顺序与投递顺序不一致，由每个 Channel 的 DeliveryAckTracker 确认。
+ * 单个 consumer（concurrency = 1）保证同一频道的事件按投递顺序提交
+ *
  * @author shzhou.michael
  */
 @Slf4j
 @Component("esMessageConsumer")
 public class MessageConsumer {
 
+    @Resource
+    private SearchSyncService searchSyncService;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
+    private final Map<Channel, DeliveryAckTracker> ackTrackers = new ConcurrentHashMap<>();
+
     @RabbitListener(
         queues = "${spring.rabbitmq.queueChangeStreamMessageES}",
-        concurrency = "1"
+        concurrency = "1",
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
     )
     public void consumeMessageEvent(Message message, Channel channel) throws Exception {
         long deliveryTag = message.getMessageProperties().getDeliveryTag();
-        byte[] body = message.getBody();
-        String content = new String(body, StandardCharsets.UTF_8);
-        boolean success = false;
+        DeliveryAckTracker tracker = ackTrackers.get(channel);
+        if (tracker == null) {
+            // Channel 重建后 deliveryTag 重新计数，旧 Channel 上未确认的消息会被 Broker 重新投递
+            ackTrackers.keySet().removeIf(c -> !c.isOpen());
+            tracker = ackTrackers.computeIfAbsent(channel, DeliveryAckTracker::new);
+        }
+        tracker.register(deliveryTag);
 
+        ChangeStreamMessageEvent event;
         try {
-            ChangeStreamMessageEvent event = JSON.parseObject(content, ChangeStreamMessageEvent.class);
-
-            if (event == null || event.getMessages() == null || event.getMessages().isEmpty()) {
-                log.warn("ES - Received empty ChangeStreamMessageEvent");
-                success = true;
-                return;
-            }
+            event = JSON.parseObject(new String(message.getBody(), StandardCharsets.UTF_8), ChangeStreamMessageEvent.class);
+        } catch (Exception e) {
+            log.error("ES - Failed to decode ChangeStreamMessageEvent, deliveryTag: {}", deliveryTag, e);
+            reject(message, tracker, deliveryTag, e);
+            return;
+        }
 
-//            log.info("ES - ChangeStream Message event: operation={}, count={}",
-//                    event.getOperationType(), event.getMessages().size());
+        if (event == null || event.getMessages() == null || event.getMessages().isEmpty()) {
+            log.warn("ES - Received empty ChangeStreamMessageEvent");
+            tracker.complete(deliveryTag);
+            return;
+        }
 
-            // 根据操作类型处理
-            ChangeStreamOperationType operationType = ChangeStreamOperationType.fromValue(event.getOperationType());
-            if (operationType == ChangeStreamOperationType.INSERT || operationType == ChangeStreamOperationType.REPLACE) {
-                // TODO: 实现 ES 索引逻辑
-                // 例如：
-                // 1. 批量索引消息到 ES
-                // 2. 更新消息索引
-                // 3. 维护全文检索数据
-//                log.info("ES - TODO: Index {} messages", event.getMessages().size());
-            }
-            
-            success = true;
+        // update 事件带有完整文档（UPDATE_LOOKUP），按ID覆盖写入
+        ChangeStreamOperationType operationType = ChangeStreamOperationType.fromValue(event.getOperationType());
+        if (operationType != ChangeStreamOperationType.INSERT
+                && operationType != ChangeStreamOperationType.REPLACE
+                && operationType != ChangeStreamOperationType.UPDATE) {
+            tracker.complete(deliveryTag);
+            return;
+        }
 
+        DeliveryAckTracker finalTracker = tracker;
+        try {
+            searchSyncService.submit(event.getMessages(),
+                    () -> finalTracker.complete(deliveryTag),
+                    e -> {
+                        log.error("ES - Failed to index ChangeStreamMessageEvent, deliveryTag: {}", deliveryTag, e);
+                        reject(message, finalTracker, deliveryTag, e);
+                    });
+        } catch (InterruptedException e) {
+            // 等待在途许可时被中断（容器停止），重新入队
+            Thread.currentThread().interrupt();
+            tracker.fail(deliveryTag);
         } catch (Exception e) {
-            log.error("ES - Failed to consume ChangeStreamMessageEvent, deliveryTag: {}", deliveryTag, e);
-        } finally {
-            // 确保消息只被确认一次
-            try {
-                if (success) {
-                    channel.basicAck(deliveryTag, false);
-                } else {
-                    channel.basicNack(deliveryTag, false, true);
-                }
-            } catch (Exception ackException) {
-                log.error("ES - Failed to ack/nack message, deliveryTag: {}", deliveryTag, ackException);
-            }
+            // 提交失败时回调不会执行，在这里结束该投递，避免 tag 一直在途
+            log.error("ES - Failed to submit ChangeStreamMessageEvent, deliveryTag: {}", deliveryTag, e);
+            reject(message, tracker, deliveryTag, e);
+        }
+    }
+
+    /**
+     * 处理失败：转入延迟重试/停放队列后确认原消息，转入失败时负确认重新入队
+     */
+    private void reject(Message message, DeliveryAckTracker tracker, long deliveryTag, Exception cause) {
+        if (mqRetryService.retryOrPark(message, cause)) {
+            tracker.complete(deliveryTag);
+        } else {
+            tracker.fail(deliveryTag);
         }
     }
 }
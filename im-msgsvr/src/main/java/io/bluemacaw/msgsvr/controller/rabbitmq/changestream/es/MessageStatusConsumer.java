@@ -0,0 +1,83 @@
+package io.bluemacaw.msgsvr.controller.rabbitmq.changestream.es;
+
+import com.rabbitmq.client.Channel;
+import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageStatusEvent;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.msgsvr.service.search.SearchSyncService;
+import io.bluemacaw.msgsvr.util.MqMessageDecoder;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Change Stream Message 状态变更消费者 - Elasticsearch
+ *
+ * 消费撤回等状态变更，通过 SearchSyncService.applyStatus 把 status 不为 0 的消息从全文索引中删除。
+ * 只更新 status 的变更不会进入 Message 变更队列，ES MessageConsumer 收不到
+ */
+@Slf4j
+@Component("esMessageStatusConsumer")
+public class MessageStatusConsumer {
+
+    @Resource
+    private SearchSyncService searchSyncService;
+
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
+    @RabbitListener(
+        queues = "${spring.rabbitmq.queueChangeStreamMessageStatusES:queue.changestream.message.status.es}",
+        concurrency = "1",
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
+    )
+    public void consumeStatusEvent(Message message, Channel channel) throws Exception {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        boolean success = false;
+        Exception error = null;
+
+        try {
+            ChangeStreamMessageStatusEvent event = MqMessageDecoder.decode(message, ChangeStreamMessageStatusEvent.class);
+
+            if (event == null || event.getDeltas() == null || event.getDeltas().isEmpty()) {
+                log.warn("ES - Received empty ChangeStreamMessageStatusEvent");
+            } else {
+                searchSyncService.applyStatus(event.getDeltas());
+            }
+            success = true;
+
+        } catch (InterruptedException e) {
+            // 等待在途许可或删除完成时被中断（容器停止），重新入队
+            Thread.currentThread().interrupt();
+            try {
+                wmAckBatcher.nack(channel, deliveryTag, true);
+            } catch (Exception ackException) {
+                log.error("ES - Failed to nack message, deliveryTag: {}", deliveryTag, ackException);
+            }
+            return;
+        } catch (Exception e) {
+            log.error("ES - Failed to apply ChangeStreamMessageStatusEvent, deliveryTag: {}", deliveryTag, e);
+            error = e;
+        }
+
+        // 确保消息只被确认一次
+        try {
+            if (success) {
+                wmAckBatcher.ack(channel, deliveryTag);
+            } else if (mqRetryService.retryOrPark(message, error)) {
+                // 已转入延迟重试/停放队列
+                wmAckBatcher.ack(channel, deliveryTag);
+            } else {
+                wmAckBatcher.nack(channel, deliveryTag, true);
+            }
+        } catch (Exception ackException) {
+            log.error("ES - Failed to ack/nack message, deliveryTag: {}", deliveryTag, ackException);
+        }
+    }
+}
@@ -4,6 +4,11 @@ import com.alibaba.fastjson.JSON;
 import com.rabbitmq.client.Channel;
 import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageEvent;
 import io.bluemacaw.msgsvr.enums.ChangeStreamOperationType;
+import io.bluemacaw.msgsvr.service.ChannelLastMessageService;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
+import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
@@ -17,7 +22,8 @@ import java.nio.charset.StandardCharsets;
  * 消费 Message 集合的变更事件，同步到 Redis 缓存
  * 主要用于：
  * - 缓存最新消息
- * - 维护频道最后消息
+ * - 维护频道最后消息（ChannelLastMessageService，存储在 MongoDB channel_last_message，
+ *   撤回等状态变更由 MessageStatusConsumer 维护）
  * - 更新消息状态等
  *
  * @author shzhou.michael
@@ -26,15 +32,25 @@ import java.nio.charset.StandardCharsets;
 @Component("redisMessageConsumer")
 public class MessageConsumer {
 
+    @Resource
+    private ChannelLastMessageService channelLastMessageService;
+
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
     @RabbitListener(
         queues = "${spring.rabbitmq.queueChangeStreamMessageRedis}",
-        concurrency = "1"
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
     )
     public void consumeMessageEvent(Message message, Channel channel) throws Exception {
         long deliveryTag = message.getMessageProperties().getDeliveryTag();
         byte[] body = message.getBody();
         String content = new String(body, StandardCharsets.UTF_8);
         boolean success = false;
+        Exception error = null;
 
         try {
             ChangeStreamMessageEvent event = JSON.parseObject(content, ChangeStreamMessageEvent.class);
@@ -50,26 +66,32 @@ public class MessageConsumer {
 
             // 根据操作类型处理
             ChangeStreamOperationType operationType = ChangeStreamOperationType.fromValue(event.getOperationType());
-            if (operationType == ChangeStreamOperationType.INSERT || operationType == ChangeStreamOperationType.REPLACE) {
+            if (operationType == ChangeStreamOperationType.INSERT
+                    || operationType == ChangeStreamOperationType.REPLACE
+                    || operationType == ChangeStreamOperationType.UPDATE) {
+                // 更新频道最后消息（update 事件带有完整文档，seq 相同时覆盖）
+                channelLastMessageService.onMessages(event.getMessages());
+
                 // TODO: 实现 Redis 缓存逻辑
-                // 例如：
                 // 1. 缓存最新消息到 Redis
-                // 2. 更新频道最后消息
-                // 3. 维护消息索引
-//                log.info("Redis - TODO: Cache {} messages", event.getMessages().size());
+                // 2. 维护消息索引
             }
-            
+
             success = true;
 
         } catch (Exception e) {
             log.error("Redis - Failed to consume ChangeStreamMessageEvent, deliveryTag: {}", deliveryTag, e);
+            error = e;
         } finally {
             // 确保消息只被确认一次
             try {
                 if (success) {
-                    channel.basicAck(deliveryTag, false);
+                    wmAckBatcher.ack(channel, deliveryTag);
+                } else if (mqRetryService.retryOrPark(message, error)) {
+                    // 已转入延迟重试/停放队列
+                    wmAckBatcher.ack(channel, deliveryTag);
                 } else {
-                    channel.basicNack(deliveryTag, false, true);
+                    wmAckBatcher.nack(channel, deliveryTag, true);
                 }
             } catch (Exception ackException) {
                 log.error("Redis - Failed to ack/nack message, deliveryTag: {}", deliveryTag, ackException);
@@ -0,0 +1,76 @@
+package io.bluemacaw.msgsvr.controller.rabbitmq.changestream.redis;
+
+import com.rabbitmq.client.Channel;
+import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageStatusEvent;
+import io.bluemacaw.msgsvr.service.ChannelLastMessageService;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.msgsvr.util.MqMessageDecoder;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Change Stream Message 状态变更消费者 - Redis
+ *
+ * 消费撤回等状态变更，更新频道最后消息摘要（ChannelLastMessageService.onStatusChanged）。
+ * 状态变更可能先于该消息的 insert 事件到达，由摘要上记录的 status_seq / status_update_time 保证
+ * 两者任意顺序处理的结果一致（见 ChannelLastMessageService）
+ */
+@Slf4j
+@Component("redisMessageStatusConsumer")
+public class MessageStatusConsumer {
+
+    @Resource
+    private ChannelLastMessageService channelLastMessageService;
+
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
+    @RabbitListener(
+        queues = "${spring.rabbitmq.queueChangeStreamMessageStatusRedis:queue.changestream.message.status.redis}",
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
+    )
+    public void consumeStatusEvent(Message message, Channel channel) throws Exception {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        boolean success = false;
+        Exception error = null;
+
+        try {
+            ChangeStreamMessageStatusEvent event = MqMessageDecoder.decode(message, ChangeStreamMessageStatusEvent.class);
+
+            if (event == null || event.getDeltas() == null || event.getDeltas().isEmpty()) {
+                log.warn("Redis - Received empty ChangeStreamMessageStatusEvent");
+                success = true;
+                return;
+            }
+
+            channelLastMessageService.onStatusChanged(event.getDeltas());
+            success = true;
+
+        } catch (Exception e) {
+            log.error("Redis - Failed to apply ChangeStreamMessageStatusEvent, deliveryTag: {}", deliveryTag, e);
+            error = e;
+        } finally {
+            // 确保消息只被确认一次
+            try {
+                if (success) {
+                    wmAckBatcher.ack(channel, deliveryTag);
+                } else if (mqRetryService.retryOrPark(message, error)) {
+                    // 已转入延迟重试/停放队列
+                    wmAckBatcher.ack(channel, deliveryTag);
+                } else {
+                    wmAckBatcher.nack(channel, deliveryTag, true);
+                }
+            } catch (Exception ackException) {
+                log.error("Redis - Failed to ack/nack message, deliveryTag: {}", deliveryTag, ackException);
+            }
+        }
+    }
+}
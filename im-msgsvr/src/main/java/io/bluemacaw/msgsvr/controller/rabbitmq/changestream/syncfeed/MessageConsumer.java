@@ -0,0 +1,133 @@
+package io.bluemacaw.msgsvr.controller.rabbitmq.changestream.syncfeed;
+
+import com.rabbitmq.client.Channel;
+import io.bluemacaw.msgsvr.config.RabbitmqConfig;
+import io.bluemacaw.msgsvr.entity.UserSubscription;
+import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageEvent;
+import io.bluemacaw.msgsvr.entity.mq.ChangeStreamUserSubscriptionEvent;
+import io.bluemacaw.msgsvr.enums.ChangeStreamOperationType;
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import io.bluemacaw.msgsvr.service.UserChannelFeedService;
+import io.bluemacaw.msgsvr.util.MqMessageDecoder;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Change Stream Message 事件消费者 - 用户频道变更流
+ *
+ * 消费 Message 集合的插入事件，把有新消息的频道记录到订阅用户的变更流（UserChannelFeedService），
+ * 用于设备增量同步。一个事件中的消息按频道去重后一起处理
+ *
+ * 同一个队列还绑定了 UserSubscription 变更事件（按来源交换机区分）：已读进度、加入/退出只影响
+ * 该用户自己的订阅，只记录到该用户的变更流，其他设备增量同步时能拿到新的已读进度
+ *
+ * 变更流要求单写者：两类事件走同一个队列，队列开启 single-active-consumer，并且 concurrency = 1
+ */
+@Slf4j
+@Component("syncFeedMessageConsumer")
+public class MessageConsumer {
+
+    @Resource
+    private UserChannelFeedService userChannelFeedService;
+
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @Resource
+    private MqRetryService mqRetryService;
+
+    @Resource
+    private RabbitmqConfig rabbitmqConfig;
+
+    @RabbitListener(
+        queues = "${spring.rabbitmq.queueChangeStreamMessageSyncFeed:queue.changestream.message.syncfeed}",
+        concurrency = "1",
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
+    )
+    public void consumeMessageEvent(Message message, Channel channel) throws Exception {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        boolean success = false;
+        Exception error = null;
+
+        try {
+            if (rabbitmqConfig.getExchangeChangeStreamUserSub().equals(message.getMessageProperties().getReceivedExchange())) {
+                markUserSubscriptionsChanged(MqMessageDecoder.decode(message, ChangeStreamUserSubscriptionEvent.class));
+                success = true;
+                return;
+            }
+
+            ChangeStreamMessageEvent event = MqMessageDecoder.decode(message, ChangeStreamMessageEvent.class);
+
+            if (event == null || event.getMessages() == null || event.getMessages().isEmpty()) {
+                log.warn("SyncFeed - Received empty ChangeStreamMessageEvent");
+                success = true;
+                return;
+            }
+
+            ChangeStreamOperationType operationType = ChangeStreamOperationType.fromValue(event.getOperationType());
+            if (operationType == ChangeStreamOperationType.INSERT || operationType == ChangeStreamOperationType.REPLACE) {
+                Set<String> channelIds = new LinkedHashSet<>();
+                for (io.bluemacaw.msgsvr.entity.Message msg : event.getMessages()) {
+                    if (msg.getChannelId() != null) {
+                        channelIds.add(msg.getChannelId());
+                    }
+                }
+                userChannelFeedService.markChannelsChanged(channelIds);
+            }
+
+            success = true;
+
+        } catch (Exception e) {
+            log.error("SyncFeed - Failed to consume ChangeStreamMessageEvent, deliveryTag: {}", deliveryTag, e);
+            error = e;
+        } finally {
+            // 确保消息只被确认一次
+            try {
+                if (success) {
+                    wmAckBatcher.ack(channel, deliveryTag);
+                } else if (mqRetryService.retryOrPark(message, error)) {
+                    // 已转入延迟重试/停放队列
+                    wmAckBatcher.ack(channel, deliveryTag);
+                } else {
+                    wmAckBatcher.nack(channel, deliveryTag, true);
+                }
+            } catch (Exception ackException) {
+                log.error("SyncFeed - Failed to ack/nack message, deliveryTag: {}", deliveryTag, ackException);
+            }
+        }
+    }
+
+    /**
+     * UserSubscription 变更：记录到对应用户的变更流
+     */
+    private void markUserSubscriptionsChanged(ChangeStreamUserSubscriptionEvent event) {
+        if (event == null || event.getUserSubscriptions() == null || event.getUserSubscriptions().isEmpty()) {
+            return;
+        }
+        ChangeStreamOperationType operationType = ChangeStreamOperationType.fromValue(event.getOperationType());
+        if (operationType != ChangeStreamOperationType.INSERT
+                && operationType != ChangeStreamOperationType.UPDATE
+                && operationType != ChangeStreamOperationType.REPLACE) {
+            return;
+        }
+
+        Map<Long, Set<String>> channelsByUser = new LinkedHashMap<>();
+        for (UserSubscription subscription : event.getUserSubscriptions()) {
+            if (subscription.getUserId() != null && subscription.getChannelId() != null) {
+                channelsByUser.computeIfAbsent(subscription.getUserId(), k -> new LinkedHashSet<>())
+                        .add(subscription.getChannelId());
+            }
+        }
+        userChannelFeedService.markUserChannelsChanged(channelsByUser);
+    }
+}
@@ -0,0 +1,70 @@
+package io.bluemacaw.msgsvr.controller.rabbitmq.changestream.unread;
+
+import com.rabbitmq.client.Channel;
+import io.bluemacaw.msgsvr.entity.mq.ChangeStreamMessageEvent;
+import io.bluemacaw.msgsvr.enums.ChangeStreamOperationType;
+import io.bluemacaw.msgsvr.service.UnreadCountService;
+import io.bluemacaw.msgsvr.util.MqMessageDecoder;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Change Stream Message 事件消费者 - 未读数
+ *
+ * 每个实例一个临时队列，把频道的最新 seq 推给本实例的 UnreadCountService。
+ * 未读数是内存状态，处理失败时只记录日志并确认，由定时对账修正
+ */
+@Slf4j
+@Component("unreadMessageConsumer")
+public class MessageConsumer {
+
+    @Resource
+    private UnreadCountService unreadCountService;
+
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @RabbitListener(
+        queues = "#{queueChangeStreamMessageUnread.name}",
+        concurrency = "1",
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
+    )
+    public void consumeMessageEvent(Message message, Channel channel) throws Exception {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+
+        try {
+            ChangeStreamMessageEvent event = MqMessageDecoder.decode(message, ChangeStreamMessageEvent.class);
+            if (event == null || event.getMessages() == null || event.getMessages().isEmpty()) {
+                return;
+            }
+
+            ChangeStreamOperationType operationType = ChangeStreamOperationType.fromValue(event.getOperationType());
+            if (operationType == ChangeStreamOperationType.INSERT || operationType == ChangeStreamOperationType.REPLACE) {
+                Map<String, Long> channelVersions = new HashMap<>();
+                for (io.bluemacaw.msgsvr.entity.Message msg : event.getMessages()) {
+                    if (msg.getChannelId() != null && msg.getSeq() != null) {
+                        channelVersions.merge(msg.getChannelId(), msg.getSeq(), Math::max);
+                    }
+                }
+                unreadCountService.onMessages(channelVersions);
+            }
+
+        } catch (Exception e) {
+            log.error("Unread - Failed to consume ChangeStreamMessageEvent, deliveryTag: {}", deliveryTag, e);
+        } finally {
+            try {
+                wmAckBatcher.ack(channel, deliveryTag);
+            } catch (Exception ackException) {
+                log.error("Unread - Failed to ack message, deliveryTag: {}", deliveryTag, ackException);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package io.bluemacaw.msgsvr.controller.rabbitmq.changestream.unread;
+
+import com.rabbitmq.client.Channel;
+import io.bluemacaw.msgsvr.entity.mq.ChangeStreamUserSubscriptionEvent;
+import io.bluemacaw.msgsvr.enums.ChangeStreamOperationType;
+import io.bluemacaw.msgsvr.service.UnreadCountService;
+import io.bluemacaw.msgsvr.util.MqMessageDecoder;
+import io.bluemacaw.rabbitmq.WmAckBatcher;
+import io.bluemacaw.rabbitmq.WmRabbitMqConfig;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Change Stream UserSubscription 事件消费者 - 未读数
+ *
+ * 每个实例一个临时队列，把订阅的已读进度、加入/退出推给本实例的 UnreadCountService，
+ * 已读上报只到达一个实例，其他实例通过这里同步。
+ * 未读数是内存状态，处理失败时只记录日志并确认，由定时对账修正
+ */
+@Slf4j
+@Component("unreadUserSubscriptionConsumer")
+public class UserSubscriptionConsumer {
+
+    @Resource
+    private UnreadCountService unreadCountService;
+
+    @Resource
+    private WmAckBatcher wmAckBatcher;
+
+    @RabbitListener(
+        queues = "#{queueChangeStreamUserSubUnread.name}",
+        concurrency = "1",
+        containerFactory = WmRabbitMqConfig.LISTENER_CONTAINER_FACTORY
+    )
+    public void consumeUserSubscriptionEvent(Message message, Channel channel) throws Exception {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+
+        try {
+            ChangeStreamUserSubscriptionEvent event = MqMessageDecoder.decode(message, ChangeStreamUserSubscriptionEvent.class);
+            if (event == null || event.getUserSubscriptions() == null || event.getUserSubscriptions().isEmpty()) {
+                return;
+            }
+
+            ChangeStreamOperationType operationType = ChangeStreamOperationType.fromValue(event.getOperationType());
+            if (operationType == ChangeStreamOperationType.INSERT
+                    || operationType == ChangeStreamOperationType.UPDATE
+                    || operationType == ChangeStreamOperationType.REPLACE) {
+                unreadCountService.onSubscriptions(event.getUserSubscriptions());
+            }
+
+        } catch (Exception e) {
+            log.error("Unread - Failed to consume ChangeStreamUserSubscriptionEvent, deliveryTag: {}", deliveryTag, e);
+        } finally {
+            try {
+                wmAckBatcher.ack(channel, deliveryTag);
+            } catch (Exception ackException) {
+                log.error("Unread - Failed to ack message, deliveryTag: {}", deliveryTag, ackException);
+            }
+        }
+    }
+}
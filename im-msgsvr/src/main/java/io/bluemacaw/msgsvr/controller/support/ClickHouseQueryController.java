@@ -1,12 +1,17 @@
 package io.bluemacaw.msgsvr.controller.support;
 
 import io.bluemacaw.msgsvr.entity.Message;
+import io.bluemacaw.msgsvr.entity.query.CustomQuery;
 import io.bluemacaw.msgsvr.monitor.ClickHousePoolMonitorService;
+import io.bluemacaw.msgsvr.monitor.ClickHouseQueryMonitorService;
 import io.bluemacaw.msgsvr.service.MessageService;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.LocalDateTime;
 import java.util.HashMap;
@@ -27,6 +32,19 @@ public class ClickHouseQueryController {
     @Resource
     private ClickHousePoolMonitorService poolMonitorService;
 
+    @Resource
+    private ClickHouseQueryMonitorService queryMonitorService;
+
+    /**
+     * NDJSON 响应类型
+     */
+    private static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    /**
+     * 流式接口的最大行数
+     */
+    private static final int STREAM_MAX_LIMIT = 1000000;
+
     /**
      * 获取消息总数
      * GET /api/clickhouse/count
@@ -66,18 +84,23 @@ public class ClickHouseQueryController {
 
     /**
      * 根据发送者ID查询消息
-     * GET /api/clickhouse/messages/from/{fromId}?limit=10
+     * GET /api/clickhouse/messages/from/{fromId}?limit=10&summary=false
+     *
+     * summary=true 时只返回摘要列（不含消息内容）
      */
     @GetMapping("/messages/from/{fromId}")
     public Map<String, Object> getMessagesByFromId(
             @PathVariable long fromId,
-            @RequestParam(defaultValue = "10") int limit) {
+            @RequestParam(defaultValue = "10") int limit,
+            @RequestParam(defaultValue = "false") boolean summary) {
 
         if (limit <= 0 || limit > 1000) {
             limit = 10;
         }
 
-        List<Message> messages = messageService.getMessagesByFromId(fromId, limit);
+        List<Message> messages = summary
+                ? messageService.getMessageSummariesByFromId(fromId, limit)
+                : messageService.getMessagesByFromId(fromId, limit);
 
         Map<String, Object> response = new HashMap<>();
         response.put("success", true);
@@ -90,18 +113,23 @@ public class ClickHouseQueryController {
 
     /**
      * 根据联系人ID查询消息
-     * GET /api/clickhouse/messages/contact/{contactId}?limit=10
+     * GET /api/clickhouse/messages/contact/{contactId}?limit=10&summary=false
+     *
+     * summary=true 时只返回摘要列（不含消息内容）
      */
     @GetMapping("/messages/contact/{contactId}")
     public Map<String, Object> getMessagesByContactId(
             @PathVariable long contactId,
-            @RequestParam(defaultValue = "10") int limit) {
+            @RequestParam(defaultValue = "10") int limit,
+            @RequestParam(defaultValue = "false") boolean summary) {
 
         if (limit <= 0 || limit > 1000) {
             limit = 10;
         }
 
-        List<Message> messages = messageService.getMessagesByContactId(contactId, limit);
+        List<Message> messages = summary
+                ? messageService.getMessageSummariesByContactId(contactId, limit)
+                : messageService.getMessagesByContactId(contactId, limit);
 
         Map<String, Object> response = new HashMap<>();
         response.put("success", true);
@@ -138,6 +166,94 @@ public class ClickHouseQueryController {
         return response;
     }
 
+    // ========== 流式查询接口（NDJSON） ==========
+
+    /**
+     * 流式查询最近的消息
+     * GET /api/clickhouse/messages/recent/stream?limit=100000
+     *
+     * 响应为 NDJSON，每行一条消息，服务端不缓存整个结果集
+     */
+    @GetMapping("/messages/recent/stream")
+    public ResponseEntity<StreamingResponseBody> streamRecentMessages(
+            @RequestParam(defaultValue = "10000") int limit) {
+
+        if (limit <= 0 || limit > STREAM_MAX_LIMIT) {
+            limit = 10000;
+        }
+
+        final int finalLimit = limit;
+        StreamingResponseBody body = out -> messageService.streamRecentMessages(finalLimit, out);
+
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * 流式查询时间范围内的消息
+     * GET /api/clickhouse/messages/range/stream?startTime=2025-01-01T00:00:00&endTime=2025-01-31T23:59:59&limit=100000
+     */
+    @GetMapping("/messages/range/stream")
+    public ResponseEntity<StreamingResponseBody> streamMessagesByTimeRange(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime startTime,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime endTime,
+            @RequestParam(defaultValue = "10000") int limit) {
+
+        if (limit <= 0 || limit > STREAM_MAX_LIMIT) {
+            limit = 10000;
+        }
+
+        final int finalLimit = limit;
+        StreamingResponseBody body = out ->
+                messageService.streamMessagesByTimeRange(startTime, endTime, finalLimit, out);
+
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * 流式执行自定义SQL查询（需谨慎使用）
+     * POST /api/clickhouse/query/custom/stream
+     * Body: { "sql": "SELECT * FROM im_message.message LIMIT 100000" }
+     * 可选限制（不超过配置上限）: maxRowsToRead, maxExecutionTime(秒), maxMemoryUsage(字节)
+     */
+    @PostMapping("/query/custom/stream")
+    public ResponseEntity<?> streamCustomQuery(@RequestBody Map<String, String> request) {
+        String sql = request.get("sql");
+
+        if (sql == null || sql.trim().isEmpty()) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("error", "SQL statement is required");
+            return ResponseEntity.badRequest().body(response);
+        }
+
+        // 安全检查：只允许SELECT查询
+        String trimmedSql = sql.trim().toUpperCase();
+        if (!trimmedSql.startsWith("SELECT")) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("error", "Only SELECT queries are allowed");
+            return ResponseEntity.badRequest().body(response);
+        }
+
+        Long maxExecutionTime = parseLong(request.get("maxExecutionTime"));
+
+        // 在开始输出 NDJSON 之前校验并改写SQL，拒绝时返回 400
+        CustomQuery query;
+        try {
+            query = messageService.prepareCustomQuery(sql, parseLong(request.get("maxRowsToRead")),
+                    maxExecutionTime == null ? null : maxExecutionTime.intValue(), parseLong(request.get("maxMemoryUsage")));
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        }
+
+        StreamingResponseBody body = out -> messageService.streamCustomQuery(query, out);
+
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(body);
+    }
+
     /**
      * 按日期统计消息数量
      * GET /api/clickhouse/stats/daily?days=7
@@ -187,6 +303,7 @@ public class ClickHouseQueryController {
      * 执行自定义SQL查询（需谨慎使用）
      * POST /api/clickhouse/query/custom
      * Body: { "sql": "SELECT * FROM im_message.message LIMIT 5" }
+     * 可选限制（不超过配置上限）: maxRowsToRead, maxExecutionTime(秒), maxMemoryUsage(字节)
      */
     @PostMapping("/query/custom")
     public Map<String, Object> executeCustomQuery(@RequestBody Map<String, String> request) {
@@ -209,11 +326,17 @@ public class ClickHouseQueryController {
         }
 
         try {
-            List<Map<String, Object>> result = messageService.executeCustomQuery(sql);
+            Long maxExecutionTime = parseLong(request.get("maxExecutionTime"));
+            long startTime = System.currentTimeMillis();
+            List<Map<String, Object>> result = messageService.executeCustomQuery(sql,
+                    parseLong(request.get("maxRowsToRead")),
+                    maxExecutionTime == null ? null : maxExecutionTime.intValue(),
+                    parseLong(request.get("maxMemoryUsage")));
 
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("count", result.size());
+            response.put("elapsedMs", System.currentTimeMillis() - startTime);
             response.put("data", result);
 
             return response;
@@ -229,6 +352,41 @@ public class ClickHouseQueryController {
         }
     }
 
+    /**
+     * 自定义查询统计
+     * GET /api/clickhouse/query/custom/stats?limit=20
+     *
+     * client: 客户端统计（次数、失败数、耗时、最近查询）
+     * serverSide: system.query_log 中的读取行数、读取字节、内存
+     */
+    @GetMapping("/query/custom/stats")
+    public Map<String, Object> getCustomQueryStats(@RequestParam(defaultValue = "20") int limit) {
+        if (limit <= 0 || limit > 1000) {
+            limit = 20;
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("client", queryMonitorService.getStats());
+        response.put("serverSide", queryMonitorService.getServerSideStats(limit));
+
+        return response;
+    }
+
+    /**
+     * 解析可选的数值参数，空值或非法值返回 null（使用默认限制）
+     */
+    private static Long parseLong(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * 健康检查接口
      * GET /api/clickhouse/health
@@ -258,12 +416,15 @@ public class ClickHouseQueryController {
     // ========== 连接池监控接口 ==========
 
     /**
-     * 获取连接池状态
-     * GET /api/clickhouse/pool/status
+     * 获取连接池状态（不指定 pool 时返回 writer/reader/analytics 全部连接池）
+     * GET /api/clickhouse/pool/status?pool=writer
      */
     @GetMapping("/pool/status")
-    public Map<String, Object> getPoolStatus() {
-        return poolMonitorService.getPoolStatus();
+    public Map<String, Object> getPoolStatus(@RequestParam(required = false) String pool) {
+        if (pool == null || pool.isEmpty()) {
+            return poolMonitorService.getPoolStatus();
+        }
+        return poolMonitorService.getPoolStatus(pool);
     }
 
     /**
@@ -275,33 +436,45 @@ public class ClickHouseQueryController {
         return poolMonitorService.getHealthStatus();
     }
 
+    /**
+     * 获取写入背压状态
+     * GET /api/clickhouse/pool/backpressure
+     */
+    @GetMapping("/pool/backpressure")
+    public Map<String, Object> getSinkBackpressure() {
+        return poolMonitorService.getSinkBackpressureStatus();
+    }
+
     /**
      * 软关闭连接池中的空闲连接
-     * POST /api/clickhouse/pool/evict
+     * POST /api/clickhouse/pool/evict?pool=writer
      */
     @PostMapping("/pool/evict")
-    public Map<String, Object> evictConnections() {
-        log.info("Evicting idle connections from ClickHouse pool");
-        return poolMonitorService.softEvictConnections();
+    public Map<String, Object> evictConnections(
+            @RequestParam(defaultValue = ClickHousePoolMonitorService.POOL_WRITER) String pool) {
+        log.info("Evicting idle connections from ClickHouse {} pool", pool);
+        return poolMonitorService.softEvictConnections(pool);
     }
 
     /**
      * 暂停连接池
-     * POST /api/clickhouse/pool/suspend
+     * POST /api/clickhouse/pool/suspend?pool=writer
      */
     @PostMapping("/pool/suspend")
-    public Map<String, Object> suspendPool() {
-        log.warn("Suspending ClickHouse connection pool");
-        return poolMonitorService.suspendPool();
+    public Map<String, Object> suspendPool(
+            @RequestParam(defaultValue = ClickHousePoolMonitorService.POOL_WRITER) String pool) {
+        log.warn("Suspending ClickHouse {} connection pool", pool);
+        return poolMonitorService.suspendPool(pool);
     }
 
     /**
      * 恢复连接池
-     * POST /api/clickhouse/pool/resume
+     * POST /api/clickhouse/pool/resume?pool=writer
      */
     @PostMapping("/pool/resume")
-    public Map<String, Object> resumePool() {
-        log.info("Resuming ClickHouse connection pool");
-        return poolMonitorService.resumePool();
+    public Map<String, Object> resumePool(
+            @RequestParam(defaultValue = ClickHousePoolMonitorService.POOL_WRITER) String pool) {
+        log.info("Resuming ClickHouse {} connection pool", pool);
+        return poolMonitorService.resumePool(pool);
     }
 }
@@ -0,0 +1,99 @@
+package io.bluemacaw.msgsvr.controller.support;
+
+import io.bluemacaw.msgsvr.entity.sync.SubscriptionSyncItem;
+import io.bluemacaw.msgsvr.entity.sync.SubscriptionSyncResult;
+import io.bluemacaw.msgsvr.service.DeviceSubscriptionService;
+import io.bluemacaw.msgsvr.service.SubscriptionAckService;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 设备同步接口
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/sync")
+public class DeviceSyncController {
+
+    @Resource
+    private DeviceSubscriptionService deviceSubscriptionService;
+
+    @Resource
+    private SubscriptionAckService subscriptionAckService;
+
+    /**
+     * 设备上线同步：返回有变化的订阅
+     * GET /api/sync/subscriptions?userId=123&deviceId=device_abc
+     */
+    @GetMapping("/subscriptions")
+    public Map<String, Object> getChangedSubscriptions(@RequestParam Long userId,
+                                                       @RequestParam String deviceId) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            List<SubscriptionSyncItem> subscriptions = deviceSubscriptionService.getChangedSubscriptions(userId, deviceId);
+            response.put("success", true);
+            response.put("data", subscriptions);
+            response.put("count", subscriptions.size());
+        } catch (Exception e) {
+            log.error("Error syncing subscriptions, userId: {}, deviceId: {}", userId, deviceId, e);
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * 设备增量同步：只返回游标之后有变化的订阅和新的游标（cursor 为空时全量计算）
+     * GET /api/sync/subscriptions/delta?userId=123&deviceId=device_abc&cursor=42
+     */
+    @GetMapping("/subscriptions/delta")
+    public Map<String, Object> syncSubscriptions(@RequestParam Long userId,
+                                                 @RequestParam String deviceId,
+                                                 @RequestParam(required = false) Long cursor) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            SubscriptionSyncResult result = deviceSubscriptionService.syncSubscriptions(userId, deviceId, cursor);
+            response.put("success", true);
+            response.put("data", result);
+        } catch (Exception e) {
+            log.error("Error syncing subscriptions, userId: {}, deviceId: {}, cursor: {}", userId, deviceId, cursor, e);
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * 上报已读/同步进度（合并后定时批量写入）
+     * POST /api/sync/ack?userId=123&deviceId=device_abc&channelId=channel_A&lastReadVersion=100&lastSyncVersion=105
+     */
+    @PostMapping("/ack")
+    public Map<String, Object> ack(@RequestParam Long userId,
+                                   @RequestParam(required = false) String deviceId,
+                                   @RequestParam String channelId,
+                                   @RequestParam(required = false) Long lastReadVersion,
+                                   @RequestParam(required = false) Long lastSyncVersion) {
+        Map<String, Object> response = new HashMap<>();
+        subscriptionAckService.ack(userId, deviceId, channelId, lastReadVersion, lastSyncVersion);
+        response.put("success", true);
+        return response;
+    }
+
+    /**
+     * 获取已读/同步进度合并写入统计
+     * GET /api/sync/ack/stats
+     */
+    @GetMapping("/ack/stats")
+    public Map<String, Object> getAckStats() {
+        return subscriptionAckService.getStats();
+    }
+}
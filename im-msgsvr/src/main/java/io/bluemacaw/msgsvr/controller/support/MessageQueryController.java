@@ -0,0 +1,129 @@
+package io.bluemacaw.msgsvr.controller.support;
+
+import io.bluemacaw.msgsvr.entity.ChannelLastMessage;
+import io.bluemacaw.msgsvr.entity.Message;
+import io.bluemacaw.msgsvr.entity.sync.ChannelSyncRange;
+import io.bluemacaw.msgsvr.entity.sync.ChannelSyncResult;
+import io.bluemacaw.msgsvr.service.ChannelLastMessageService;
+import io.bluemacaw.msgsvr.service.MessageService;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MongoDB 消息查询/状态更新接口
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/message")
+public class MessageQueryController {
+
+    @Resource
+    private MessageService messageService;
+
+    @Resource
+    private ChannelLastMessageService channelLastMessageService;
+
+    /**
+     * 按用户可见范围分页查询历史消息（按seq降序）
+     * GET /api/message/history?userId=123&channelId=100_200&cursorVersion=100015&limit=20
+     */
+    @GetMapping("/history")
+    public Map<String, Object> queryUserHistoryMessages(@RequestParam Long userId,
+                                                        @RequestParam String channelId,
+                                                        @RequestParam(required = false) Long cursorVersion,
+                                                        @RequestParam(defaultValue = "20") int limit) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            List<Message> messages = messageService.queryUserHistoryMessages(userId, channelId, cursorVersion, limit);
+            response.put("success", true);
+            response.put("data", messages);
+            response.put("count", messages.size());
+        } catch (Exception e) {
+            log.error("Error querying history messages, userId: {}, channelId: {}", userId, channelId, e);
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * 批量同步多个频道的缺失消息（每个月份 collection 只查询一次）
+     * POST /api/message/sync
+     * Body: [{"channelId":"100_200","sinceVersion":100010,"untilVersion":100015}, ...]
+     */
+    @PostMapping("/sync")
+    public Map<String, Object> syncMessages(@RequestBody List<ChannelSyncRange> ranges) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            Map<String, ChannelSyncResult> results = messageService.syncMessages(ranges);
+            response.put("success", true);
+            response.put("data", results);
+            response.put("count", results.values().stream().mapToInt(r -> r.getMessages().size()).sum());
+        } catch (Exception e) {
+            log.error("Error syncing messages, channels: {}", ranges.size(), e);
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * 更新消息状态（撤回等）
+     * POST /api/message/status?channelId=100_200&seq=100015&status=1&msgTime=2026-01-15T10:00:00
+     */
+    @PostMapping("/status")
+    public Map<String, Object> updateMessageStatus(@RequestParam String channelId,
+                                                   @RequestParam long seq,
+                                                   @RequestParam int status,
+                                                   @RequestParam(required = false)
+                                                   @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime msgTime) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            Message message = messageService.updateMessageStatus(channelId, seq, status, msgTime);
+            if (message == null) {
+                response.put("success", false);
+                response.put("error", "消息不存在");
+                return response;
+            }
+            response.put("success", true);
+            response.put("data", message);
+        } catch (Exception e) {
+            log.error("Error updating message status, channelId: {}, seq: {}", channelId, seq, e);
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * 会话列表：用户所有订阅频道的最后一条消息（按消息时间降序）
+     * GET /api/message/last?userId=123
+     */
+    @GetMapping("/last")
+    public Map<String, Object> getUserLastMessages(@RequestParam Long userId) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            List<ChannelLastMessage> lastMessages = channelLastMessageService.getUserLastMessages(userId);
+            response.put("success", true);
+            response.put("data", lastMessages);
+            response.put("count", lastMessages.size());
+        } catch (Exception e) {
+            log.error("Error querying last messages, userId: {}", userId, e);
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return response;
+    }
+}
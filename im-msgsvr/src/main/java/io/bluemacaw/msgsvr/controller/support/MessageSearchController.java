@@ -0,0 +1,73 @@
+package io.bluemacaw.msgsvr.controller.support;
+
+import io.bluemacaw.msgsvr.entity.search.MessageSearchResult;
+import io.bluemacaw.msgsvr.service.search.SearchIndex;
+import io.bluemacaw.msgsvr.service.search.SearchSyncService;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 消息全文检索接口
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/search")
+public class MessageSearchController {
+
+    @Resource
+    private SearchIndex searchIndex;
+
+    @Resource
+    private SearchSyncService searchSyncService;
+
+    @Value("${search.max-page-size:100}")
+    private int maxPageSize;
+
+    /**
+     * 检索消息（按消息时间降序，游标分页）
+     * GET /api/search/messages?keyword=报价&channelId=100_200,500001&cursor=1767225600000:6784...&limit=20
+     */
+    @GetMapping("/messages")
+    public Map<String, Object> searchMessages(@RequestParam String keyword,
+                                              @RequestParam(required = false) List<String> channelId,
+                                              @RequestParam(required = false) String cursor,
+                                              @RequestParam(defaultValue = "20") int limit) {
+        Map<String, Object> response = new HashMap<>();
+        if (keyword.isBlank() || limit <= 0) {
+            response.put("success", false);
+            response.put("error", "keyword 不能为空，limit 必须大于 0");
+            return response;
+        }
+        try {
+            MessageSearchResult result = searchIndex.search(keyword, channelId, cursor, Math.min(limit, maxPageSize));
+            response.put("success", true);
+            response.put("data", result);
+        } catch (Exception e) {
+            log.error("Error searching messages, keyword: {}, channelId: {}", keyword, channelId, e);
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * 获取索引和同步统计
+     * GET /api/search/stats
+     */
+    @GetMapping("/stats")
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("index", searchIndex.getStats());
+        stats.put("sync", searchSyncService.getStats());
+        return stats;
+    }
+}
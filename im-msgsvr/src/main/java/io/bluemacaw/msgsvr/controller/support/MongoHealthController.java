@@ -1,6 +1,7 @@
 package io.bluemacaw.msgsvr.controller.support;
 
 import io.bluemacaw.msgsvr.monitor.MongoConnectionService;
+import io.bluemacaw.msgsvr.service.MessageDedupService;
 import jakarta.annotation.Resource;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -20,6 +21,9 @@ public class MongoHealthController {
     @Resource
     private MongoConnectionService mongoConnectionService;
 
+    @Resource
+    private MessageDedupService messageDedupService;
+
     /**
      * 获取连接池使用情况
      */
@@ -68,4 +72,12 @@ public class MongoHealthController {
             ResponseEntity.ok(metrics) : 
             ResponseEntity.status(503).body(metrics);
     }
+
+    /**
+     * 获取实时消息去重统计（布隆过滤器命中/误判、重复消息数）
+     */
+    @GetMapping("/dedup/stats")
+    public ResponseEntity<Map<String, Object>> getDedupStats() {
+        return ResponseEntity.ok(messageDedupService.getStats());
+    }
 }
@@ -0,0 +1,54 @@
+package io.bluemacaw.msgsvr.controller.support;
+
+import io.bluemacaw.msgsvr.service.MqRetryService;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MQ 消费失败重试管理接口
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/mq/retry")
+public class MqRetryController {
+
+    @Resource
+    private MqRetryService mqRetryService;
+
+    /**
+     * 获取重试统计和停放队列消息数
+     * GET /api/mq/retry/status
+     */
+    @GetMapping("/status")
+    public Map<String, Object> getStatus() {
+        return mqRetryService.getStatus();
+    }
+
+    /**
+     * 将停放的消息重新投递到原队列
+     * POST /api/mq/retry/replay?limit=100&queue=queue.message.batch
+     */
+    @PostMapping("/replay")
+    public Map<String, Object> replay(@RequestParam(defaultValue = "100") int limit,
+                                      @RequestParam(required = false) String queue) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            log.info("Replaying parked messages, limit: {}, queue: {}", limit, queue);
+            response.put("success", true);
+            response.put("data", mqRetryService.replayParked(limit, queue));
+        } catch (Exception e) {
+            log.error("Error replaying parked messages", e);
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return response;
+    }
+}
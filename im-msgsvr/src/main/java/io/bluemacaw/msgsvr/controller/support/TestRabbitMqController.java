@@ -8,6 +8,7 @@ import io.bluemacaw.msgsvr.entity.mq.MqMessageData;
 import io.bluemacaw.msgsvr.entity.mq.MqAggregatedMessageData;
 import io.bluemacaw.msgsvr.enums.ChannelType;
 import io.bluemacaw.msgsvr.service.GroupService;
+import io.bluemacaw.msgsvr.service.MessageImportService;
 import io.bluemacaw.msgsvr.service.UserService;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
@@ -25,6 +26,8 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static io.bluemacaw.msgsvr.service.ChannelService.generateChannelId;
+
 
 
 @Slf4j
@@ -43,6 +46,9 @@ public class TestRabbitMqController {
     @Resource
     private GroupService groupService;
 
+    @Resource
+    private MessageImportService messageImportService;
+
     // 批量发送控制标志
     private final AtomicBoolean isSending = new AtomicBoolean(false);
     private final AtomicLong sentCount = new AtomicLong(0);
@@ -74,21 +80,25 @@ public class TestRabbitMqController {
         mqMessageData.setFromCompany("北京市通州区第二中学");
         mqMessageData.setContactCompanyId("");
         mqMessageData.setContactCompany("Wind");
-        mqMessageData.setOldMsgId("1-06FDECB7:06EFC7E1:52897665:20000219{1|117304503}1");
+        // 每次调用生成新的 oldMsgId/clientMsgId，否则第二次调用会被去重
+        mqMessageData.setOldMsgId(String.format("1-%08X:%08X:%08X:%08X{1|%d}%d",
+                random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt(),
+                117304503L, System.nanoTime()));
         mqMessageData.setMsgType(0);
         mqMessageData.setMsgTime(String.valueOf(System.currentTimeMillis()));
         mqMessageData.setDeleted(0);
         mqMessageData.setStatus(0);
         mqMessageData.setContent("1.1|0|ODlEIDExMjUxNDAxNS5JQiAyNeaxn+iLj+mTtuihjENEMDE1IEJJRC8tLSAtLS8tLQ0K|5b6u6L2v6ZuF6buR|14|0|0|");
         mqMessageData.setContentVersion(1);
-        mqMessageData.setClientMsgId("LC-1761617601839126400_2-117304503-116377569");
+        mqMessageData.setClientMsgId(String.format("LC-%d_%d-%d-%d",
+                System.nanoTime(), random.nextInt(10), 117304503L, 116377569L));
         mqMessageData.setClientInfo("PC/Windows");
 
         mqMessage.setMqMessageData(mqMessageData);
 
-        // 发送到单条消息队列（实时数据）
+        // 发送到单条消息队列（实时数据），分片时按 channelId 选择路由键
         sendMessageToQueue(config.getExchangeMessage(),
-                          config.getRouteMessage(),
+                          config.resolveMessageRoute(generateChannelId(mqMessage)),
                           JSON.toJSONString(mqMessage));
 
         return "ok";
@@ -198,6 +208,19 @@ public class TestRabbitMqController {
         return response;
     }
 
+    /**
+     * 批量发送和导入进度（导入模式下的压测：sendMessageBatchByDateRange 作为负载，这里对比发送和写入速度）
+     * GET /testRabbitmq/batchImportStatus
+     */
+    @GetMapping("/batchImportStatus")
+    public Map<String, Object> batchImportStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("sending", isSending.get());
+        response.put("sentCount", sentCount.get());
+        response.put("import", messageImportService.getProgress());
+        return response;
+    }
+
     /**
      * 内部方法：为指定日期生成并发送一天的消息（按channel聚合）
      *
@@ -612,6 +635,8 @@ public class TestRabbitMqController {
     private void sendMessageToQueue(String exchangeName, String routeKey, String messageContent) {
         MessageProperties messageProperties = new MessageProperties();
         messageProperties.setContentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN);
+        // 消费端按 contentEncoding 解码，UTF-8 时直接从 byte[] 解析
+        messageProperties.setContentEncoding(StandardCharsets.UTF_8.name());
 
         rabbitTemplate.send(
                 exchangeName,
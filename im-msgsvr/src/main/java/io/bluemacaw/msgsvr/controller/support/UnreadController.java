@@ -0,0 +1,62 @@
+package io.bluemacaw.msgsvr.controller.support;
+
+import io.bluemacaw.msgsvr.service.UnreadCountService;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 未读数接口
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/unread")
+public class UnreadController {
+
+    @Resource
+    private UnreadCountService unreadCountService;
+
+    /**
+     * 获取用户所有频道的未读数
+     * GET /api/unread?userId=123
+     */
+    @GetMapping
+    public Map<String, Object> getUnreadCounts(@RequestParam Long userId) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("success", true);
+            response.put("data", unreadCountService.getUnreadCounts(userId));
+        } catch (Exception e) {
+            log.error("Error getting unread counts, userId: {}", userId, e);
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * 立即执行一次未读数对账
+     * POST /api/unread/reconcile
+     */
+    @PostMapping("/reconcile")
+    public Map<String, Object> reconcile() {
+        unreadCountService.reconcile();
+        return unreadCountService.getStats();
+    }
+
+    /**
+     * 获取未读数服务统计
+     * GET /api/unread/stats
+     */
+    @GetMapping("/stats")
+    public Map<String, Object> getStats() {
+        return unreadCountService.getStats();
+    }
+}
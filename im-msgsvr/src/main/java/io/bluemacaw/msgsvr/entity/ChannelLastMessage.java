@@ -0,0 +1,75 @@
+package io.bluemacaw.msgsvr.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.time.LocalDateTime;
+
+/**
+ * ChannelLastMessage实体 - 频道最后一条消息摘要
+ * 用于会话列表，避免逐个频道查询按月分表的消息
+ * 由 Message Change Stream 增量维护（只接受更大或相同的 seq）
+ */
+@Document("channel_last_message")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ChannelLastMessage {
+    /**
+     * 频道ID
+     */
+    @Id
+    private String channelId;
+
+    /**
+     * 最后一条消息的序号
+     */
+    @Field("seq")
+    private Long seq;
+
+    /**
+     * 消息ID
+     */
+    @Field("message_id")
+    private String messageId;
+
+    /**
+     * 发送者ID
+     */
+    @Field("from_id")
+    private Long fromId;
+
+    /**
+     * 消息类型
+     */
+    @Field("msg_type")
+    private Integer msgType;
+
+    /**
+     * 内容预览（解码后的文本，文件类消息为文件名，超过长度截断）
+     */
+    @Field("preview")
+    private String preview;
+
+    /**
+     * 消息状态(包含撤回状态)
+     */
+    @Field("status")
+    private Integer status;
+
+    /**
+     * 消息时间
+     */
+    @Field("msg_time")
+    private LocalDateTime msgTime;
+
+    /**
+     * 更新时间
+     */
+    @Field("update_time")
+    private LocalDateTime updateTime;
+}
@@ -0,0 +1,31 @@
+package io.bluemacaw.msgsvr.entity.mq;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Change Stream Message 状态变更事件（用于 MQ 传输）
+ *
+ * 只更新 status / update_time 的 update 事件不再发送完整文档，
+ * 而是合并为状态变更列表发送到单独的 Fanout Exchange
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChangeStreamMessageStatusEvent {
+
+    /**
+     * 状态变更列表
+     */
+    private List<MessageStatusDelta> deltas;
+
+    /**
+     * 事件发生时间戳
+     */
+    private Long timestamp;
+}
@@ -0,0 +1,45 @@
+package io.bluemacaw.msgsvr.entity.mq;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 消息状态变更（撤回等），只包含定位消息和新状态需要的字段
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageStatusDelta {
+    /**
+     * 消息ID
+     */
+    private String id;
+
+    /**
+     * 频道ID
+     */
+    private String channelId;
+
+    /**
+     * 消息序号
+     */
+    private Long seq;
+
+    /**
+     * 消息时间（定位月表）
+     */
+    private LocalDateTime msgTime;
+
+    /**
+     * 新状态
+     */
+    private Integer status;
+
+    /**
+     * 状态更新时间
+     */
+    private LocalDateTime updateTime;
+}
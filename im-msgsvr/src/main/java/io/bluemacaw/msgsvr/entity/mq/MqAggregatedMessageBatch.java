@@ -0,0 +1,171 @@
+package io.bluemacaw.msgsvr.entity.mq;
+
+import io.bluemacaw.msgsvr.entity.Message;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.bluemacaw.msgsvr.util.MessageConverter.mqMsgItemToMessage;
+
+/**
+ * 流式解码后的聚合消息（MqAggregatedMessageData 的解码结果）
+ *
+ * 解码时每读出一条 MqMessage 就立即转换为 Message 实体（channelId/seq 在保存时设置），
+ * MqMessage 随即丢弃，整批只保留一份消息数据；
+ * msgTime 只解析一次，保存在 long[] 中，排序时按下标排序，不再反复解析字符串
+ */
+public class MqAggregatedMessageBatch {
+
+    /**
+     * 频道ID
+     */
+    @Getter
+    @Setter
+    private String channelId;
+
+    /**
+     * 频道类型
+     */
+    @Getter
+    @Setter
+    private int channelType;
+
+    /**
+     * 消息日期（yyyy-MM-dd）
+     */
+    @Getter
+    @Setter
+    private String messageDate;
+
+    /**
+     * 预分配容量上限：消息总数来自生产方，超过的部分按实际读出的消息扩容
+     */
+    public static final int MAX_PREALLOCATED_CAPACITY = 10_000;
+
+    private final List<Message> messages = new ArrayList<>();
+
+    private long[] msgTimes = new long[16];
+
+    /**
+     * 预分配容量（消息总数已知时调用），不超过 MAX_PREALLOCATED_CAPACITY
+     */
+    public void ensureCapacity(int capacity) {
+        capacity = Math.min(capacity, MAX_PREALLOCATED_CAPACITY);
+        ((ArrayList<Message>) messages).ensureCapacity(capacity);
+        if (msgTimes.length < capacity) {
+            msgTimes = Arrays.copyOf(msgTimes, capacity);
+        }
+    }
+
+    /**
+     * 转换并加入一条消息，转换失败的消息跳过
+     *
+     * @return 是否加入
+     */
+    public boolean add(MqMessage mqMessage) {
+        Message message = mqMsgItemToMessage(mqMessage, null, null);
+        if (message == null) {
+            return false;
+        }
+
+        int size = messages.size();
+        if (size == msgTimes.length) {
+            msgTimes = Arrays.copyOf(msgTimes, size * 2);
+        }
+        msgTimes[size] = parseMsgTime(mqMessage.getMqMessageData().getMsgTime());
+        messages.add(message);
+        return true;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    /**
+     * 按 msgTime 升序排列后的消息（时间相同或无法解析时保持原顺序，无法解析的排在最后）
+     */
+    public List<Message> sortedMessages() {
+        int size = messages.size();
+        int[] order = new int[size];
+        boolean sorted = true;
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            if (i > 0 && msgTimes[i] < msgTimes[i - 1]) {
+                sorted = false;
+            }
+        }
+
+        // 导入数据通常已按时间排好序，直接返回
+        if (sorted) {
+            return messages;
+        }
+
+        mergeSort(order, new int[size], 0, size, msgTimes);
+        List<Message> result = new ArrayList<>(size);
+        for (int index : order) {
+            result.add(messages.get(index));
+        }
+        return result;
+    }
+
+    /**
+     * 从 MqAggregatedMessageData 构建（非流式解码的调用方使用）
+     */
+    public static MqAggregatedMessageBatch of(MqAggregatedMessageData aggregatedData) {
+        MqAggregatedMessageBatch batch = new MqAggregatedMessageBatch();
+        batch.setChannelId(aggregatedData.getChannelId());
+        batch.setChannelType(aggregatedData.getChannelType());
+        batch.setMessageDate(aggregatedData.getMessageDate());
+        if (aggregatedData.getMessages() != null) {
+            batch.ensureCapacity(aggregatedData.getMessages().size());
+            for (MqMessage mqMessage : aggregatedData.getMessages()) {
+                batch.add(mqMessage);
+            }
+        }
+        return batch;
+    }
+
+    private static long parseMsgTime(String msgTime) {
+        if (msgTime == null || msgTime.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return Long.parseLong(msgTime);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 按 keys[下标] 对下标数组做稳定归并排序 [from, to)
+     */
+    private static void mergeSort(int[] order, int[] buffer, int from, int to, long[] keys) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(order, buffer, from, mid, keys);
+        mergeSort(order, buffer, mid, to, keys);
+        if (keys[order[mid - 1]] <= keys[order[mid]]) {
+            return;
+        }
+
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && keys[buffer[left]] <= keys[buffer[right]])) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+}
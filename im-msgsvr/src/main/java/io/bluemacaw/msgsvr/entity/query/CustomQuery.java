@@ -0,0 +1,28 @@
+package io.bluemacaw.msgsvr.entity.query;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 已校验并追加资源限制的自定义SQL查询（MessageService.prepareCustomQuery）
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CustomQuery {
+    /**
+     * 用户提交的SQL（记录到查询统计）
+     */
+    private String sql;
+
+    /**
+     * 追加 SETTINGS 后实际执行的SQL
+     */
+    private String guardedSql;
+
+    /**
+     * 查询标识（log_comment），用于在 system.query_log 中查找
+     */
+    private String queryTag;
+}
@@ -0,0 +1,45 @@
+package io.bluemacaw.msgsvr.entity.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 写入全文索引的消息（content 已按 contentVersion 解码为文本）
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageDocument {
+    /**
+     * 消息ID
+     */
+    private String id;
+
+    /**
+     * 频道ID
+     */
+    private String channelId;
+
+    /**
+     * 消息序号
+     */
+    private Long seq;
+
+    /**
+     * 发送者ID
+     */
+    private Long fromId;
+
+    /**
+     * 消息时间
+     */
+    private LocalDateTime msgTime;
+
+    /**
+     * 解码后的文本，为 null 时（已删除、没有可检索的文本）从索引中删除
+     */
+    private String text;
+}
@@ -0,0 +1,31 @@
+package io.bluemacaw.msgsvr.entity.search;
+
+import io.bluemacaw.msgsvr.entity.Message;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 消息检索结果（按消息时间降序）
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageSearchResult {
+    /**
+     * 命中的消息（只包含索引中保存的字段：id、channelId、seq、fromId、msgTime，content 为解码后的文本）
+     */
+    private List<Message> messages;
+
+    /**
+     * 下一页游标，没有更多结果时为 null
+     */
+    private String nextCursor;
+
+    /**
+     * 命中总数
+     */
+    private long totalHits;
+}
@@ -0,0 +1,28 @@
+package io.bluemacaw.msgsvr.entity.sync;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量同步消息时一个频道的 seq 区间 (sinceVersion, untilVersion]
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChannelSyncRange {
+    /**
+     * 频道ID
+     */
+    private String channelId;
+
+    /**
+     * 起始版本号(不含)，通常为设备的 last_sync_version
+     */
+    private Long sinceVersion;
+
+    /**
+     * 结束版本号(含)，通常为频道的 channel_version
+     */
+    private Long untilVersion;
+}
@@ -0,0 +1,34 @@
+package io.bluemacaw.msgsvr.entity.sync;
+
+import io.bluemacaw.msgsvr.entity.Message;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 批量同步消息时一个频道的结果
+ *
+ * 每个频道最多返回 mongodb.sync.per-channel-limit 条（区间内 seq 最大的部分），
+ * hasMore 为 true 时用 (sinceVersion, nextUntilVersion] 继续同步更早的消息
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChannelSyncResult {
+    /**
+     * 消息列表(按seq升序)
+     */
+    private List<Message> messages;
+
+    /**
+     * 区间内是否还有更早的消息未返回
+     */
+    private boolean hasMore;
+
+    /**
+     * 下一页的结束版本号(含)，hasMore 为 false 时为 null
+     */
+    private Long nextUntilVersion;
+}
@@ -0,0 +1,46 @@
+package io.bluemacaw.msgsvr.entity.sync;
+
+import lombok.Data;
+
+/**
+ * 设备上线同步返回的订阅（见 flow-device-online-sync-subscription.md）
+ * 只包含有变化的订阅：频道有新消息（channelVersion > deviceLastSyncVersion），
+ * 或其他设备已读进度更新（userLastReadVersion > deviceLastReadVersion），或设备订阅不存在
+ */
+@Data
+public class SubscriptionSyncItem {
+    /**
+     * 频道ID
+     */
+    private String channelId;
+
+    /**
+     * 频道类型
+     */
+    private Integer channelType;
+
+    /**
+     * 频道当前版本号（Channel.messageVersion）
+     */
+    private Long channelVersion;
+
+    /**
+     * 用户级已读版本号
+     */
+    private Long userLastReadVersion;
+
+    /**
+     * 加入时的版本号（客户端拉取消息的下界）
+     */
+    private Long joinVersion;
+
+    /**
+     * 设备级已读版本号，null 表示设备订阅不存在
+     */
+    private Long deviceLastReadVersion;
+
+    /**
+     * 设备级同步版本号，null 表示设备订阅不存在
+     */
+    private Long deviceLastSyncVersion;
+}
@@ -0,0 +1,30 @@
+package io.bluemacaw.msgsvr.entity.sync;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 设备增量同步结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SubscriptionSyncResult {
+    /**
+     * 有变化的订阅
+     */
+    private List<SubscriptionSyncItem> subscriptions;
+
+    /**
+     * 下次同步使用的游标（用户频道变更流的版本号）
+     */
+    private long cursor;
+
+    /**
+     * 是否为全量同步（游标为空时按全部订阅计算）
+     */
+    private boolean fullSync;
+}
@@ -2,6 +2,11 @@ package io.bluemacaw.msgsvr.monitor;
 
 import com.zaxxer.hikari.HikariDataSource;
 import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -9,27 +14,65 @@ import org.springframework.stereotype.Service;
 
 import javax.sql.DataSource;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ClickHouse连接池监控服务
+ *
+ * 连接池：writer（同步写入）、reader（固定查询）、analytics（自定义SQL）
+ * 获取连接耗时、使用时长、超时次数来自 MeterRegistry 中的 hikaricp.* 指标，
+ * 同一份数据也可以通过 /actuator/metrics 查看
  */
 @Slf4j
 @Service
 public class ClickHousePoolMonitorService {
 
+    public static final String POOL_WRITER = "writer";
+    public static final String POOL_READER = "reader";
+    public static final String POOL_ANALYTICS = "analytics";
+
     @Resource
     @Qualifier("clickHouseDataSource")
-    private DataSource dataSource;
+    private DataSource writerDataSource;
+
+    @Resource
+    @Qualifier("clickHouseReaderDataSource")
+    private DataSource readerDataSource;
+
+    @Resource
+    @Qualifier("clickHouseAnalyticsDataSource")
+    private DataSource analyticsDataSource;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private ClickHouseSinkBackpressureService backpressureService;
 
     /**
-     * 获取连接池状态
+     * 获取所有连接池状态
      */
     public Map<String, Object> getPoolStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put(POOL_WRITER, getPoolStatus(POOL_WRITER));
+        status.put(POOL_READER, getPoolStatus(POOL_READER));
+        status.put(POOL_ANALYTICS, getPoolStatus(POOL_ANALYTICS));
+        return status;
+    }
+
+    /**
+     * 获取指定连接池状态
+     *
+     * @param pool writer / reader / analytics
+     */
+    public Map<String, Object> getPoolStatus(String pool) {
         Map<String, Object> status = new HashMap<>();
+        DataSource dataSource = resolveDataSource(pool);
 
         if (!(dataSource instanceof HikariDataSource)) {
-            status.put("error", "DataSource is not HikariDataSource");
+            status.put("error", "Unknown pool or DataSource is not HikariDataSource: " + pool);
             return status;
         }
 
@@ -69,14 +112,83 @@ public class ClickHousePoolMonitorService {
         status.put("utilizationRate", String.format("%.2f%%", utilizationRate));
         status.put("poolUsageRate", String.format("%.2f%%", poolUsageRate));
 
+        // 指标（MeterRegistry）
+        String poolName = hikariDataSource.getPoolName();
+        status.put("acquire", timerSummary("hikaricp.connections.acquire", poolName));
+        status.put("usage", timerSummary("hikaricp.connections.usage", poolName));
+        status.put("creation", timerSummary("hikaricp.connections.creation", poolName));
+        Counter timeout = meterRegistry.find("hikaricp.connections.timeout").tag("pool", poolName).counter();
+        status.put("timeouts", timeout == null ? 0 : (long) timeout.count());
+
         return status;
     }
 
     /**
-     * 获取连接池健康状态
+     * Timer 指标摘要：次数、平均值、最大值、分位数（毫秒）
+     */
+    private Map<String, Object> timerSummary(String name, String poolName) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        Timer timer = meterRegistry.find(name).tag("pool", poolName).timer();
+        if (timer == null) {
+            summary.put("count", 0);
+            return summary;
+        }
+
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        summary.put("count", snapshot.count());
+        summary.put("meanMs", String.format("%.3f", snapshot.mean(TimeUnit.MILLISECONDS)));
+        summary.put("maxMs", String.format("%.3f", snapshot.max(TimeUnit.MILLISECONDS)));
+        for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+            summary.put("p" + Math.round(percentile.percentile() * 100) + "Ms",
+                    String.format("%.3f", percentile.value(TimeUnit.MILLISECONDS)));
+        }
+        return summary;
+    }
+
+    private DataSource resolveDataSource(String pool) {
+        if (POOL_WRITER.equals(pool)) {
+            return writerDataSource;
+        } else if (POOL_READER.equals(pool)) {
+            return readerDataSource;
+        } else if (POOL_ANALYTICS.equals(pool)) {
+            return analyticsDataSource;
+        }
+        return null;
+    }
+
+    /**
+     * 获取连接池健康状态（writer + reader，写入背压）
      */
     public Map<String, Object> getHealthStatus() {
         Map<String, Object> health = new HashMap<>();
+        Map<String, Object> writerHealth = getHealthStatus(POOL_WRITER);
+        Map<String, Object> readerHealth = getHealthStatus(POOL_READER);
+
+        boolean healthy = Boolean.TRUE.equals(writerHealth.get("healthy"))
+                && Boolean.TRUE.equals(readerHealth.get("healthy"));
+        StringBuilder message = new StringBuilder(healthy ? "Healthy" : "Unhealthy");
+
+        // 检查写入背压
+        ClickHouseSinkBackpressureService.SinkState sinkState = backpressureService.getState();
+        if (sinkState != ClickHouseSinkBackpressureService.SinkState.NORMAL) {
+            message.append("; Sink backpressure: ").append(sinkState);
+        }
+
+        health.put("healthy", healthy);
+        health.put("message", message.toString());
+        health.put(POOL_WRITER, writerHealth);
+        health.put(POOL_READER, readerHealth);
+        health.put("sinkState", sinkState.name());
+
+        return health;
+    }
+
+    /**
+     * 获取指定连接池健康状态
+     */
+    private Map<String, Object> getHealthStatus(String pool) {
+        Map<String, Object> health = new HashMap<>();
+        DataSource dataSource = resolveDataSource(pool);
 
         if (!(dataSource instanceof HikariDataSource)) {
             health.put("healthy", false);
@@ -132,15 +244,23 @@ public class ClickHousePoolMonitorService {
         return health;
     }
 
+    /**
+     * 获取写入背压状态（part/merge 数量、当前状态、攒批大小）
+     */
+    public Map<String, Object> getSinkBackpressureStatus() {
+        return backpressureService.getStatus();
+    }
+
     /**
      * 软关闭连接池（优雅关闭）
      */
-    public Map<String, Object> softEvictConnections() {
+    public Map<String, Object> softEvictConnections(String pool) {
         Map<String, Object> result = new HashMap<>();
+        DataSource dataSource = resolveDataSource(pool);
 
         if (!(dataSource instanceof HikariDataSource)) {
             result.put("success", false);
-            result.put("message", "DataSource is not HikariDataSource");
+            result.put("message", "Unknown pool or DataSource is not HikariDataSource: " + pool);
             return result;
         }
 
@@ -173,7 +293,7 @@ public class ClickHousePoolMonitorService {
             result.put("afterIdle", afterIdle);
             result.put("evicted", beforeTotal - afterTotal);
 
-            log.info("Soft evicted connections: {} -> {}", beforeTotal, afterTotal);
+            log.info("Soft evicted connections of {} pool: {} -> {}", pool, beforeTotal, afterTotal);
 
         } catch (Exception e) {
             log.error("Failed to soft evict connections", e);
@@ -187,12 +307,13 @@ public class ClickHousePoolMonitorService {
     /**
      * 暂停连接池
      */
-    public Map<String, Object> suspendPool() {
+    public Map<String, Object> suspendPool(String pool) {
         Map<String, Object> result = new HashMap<>();
+        DataSource dataSource = resolveDataSource(pool);
 
         if (!(dataSource instanceof HikariDataSource)) {
             result.put("success", false);
-            result.put("message", "DataSource is not HikariDataSource");
+            result.put("message", "Unknown pool or DataSource is not HikariDataSource: " + pool);
             return result;
         }
 
@@ -211,7 +332,7 @@ public class ClickHousePoolMonitorService {
             result.put("success", true);
             result.put("message", "Pool suspended successfully");
 
-            log.info("ClickHouse connection pool suspended");
+            log.info("ClickHouse {} connection pool suspended", pool);
 
         } catch (Exception e) {
             log.error("Failed to suspend pool", e);
@@ -225,12 +346,13 @@ public class ClickHousePoolMonitorService {
     /**
      * 恢复连接池
      */
-    public Map<String, Object> resumePool() {
+    public Map<String, Object> resumePool(String pool) {
         Map<String, Object> result = new HashMap<>();
+        DataSource dataSource = resolveDataSource(pool);
 
         if (!(dataSource instanceof HikariDataSource)) {
             result.put("success", false);
-            result.put("message", "DataSource is not HikariDataSource");
+            result.put("message", "Unknown pool or DataSource is not HikariDataSource: " + pool);
             return result;
         }
 
@@ -249,7 +371,7 @@ public class ClickHousePoolMonitorService {
             result.put("success", true);
             result.put("message", "Pool resumed successfully");
 
-            log.info("ClickHouse connection pool resumed");
+            log.info("ClickHouse {} connection pool resumed", pool);
 
         } catch (Exception e) {
             log.error("Failed to resume pool", e);
@@ -0,0 +1,154 @@
+package io.bluemacaw.msgsvr.monitor;
+
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClickHouse 自定义查询监控服务
+ *
+ * 记录每次自定义查询的耗时和返回行数（客户端视角），
+ * 服务端读取行数/内存通过 log_comment 关联 system.query_log 查询
+ */
+@Slf4j
+@Service
+public class ClickHouseQueryMonitorService {
+
+    /**
+     * 自定义查询的 log_comment 前缀，用于在 system.query_log 中筛选
+     */
+    public static final String LOG_COMMENT_PREFIX = "custom-query:";
+
+    /**
+     * 保留的最近查询记录数
+     */
+    private static final int RECENT_QUERY_CAPACITY = 100;
+
+    @Resource
+    @Qualifier("clickHouseAnalyticsDataSource")
+    private DataSource analyticsDataSource;
+
+    private final AtomicLong totalQueries = new AtomicLong(0);
+    private final AtomicLong failedQueries = new AtomicLong(0);
+    private final AtomicLong totalRows = new AtomicLong(0);
+    private final AtomicLong totalElapsedMs = new AtomicLong(0);
+    private final AtomicLong maxElapsedMs = new AtomicLong(0);
+
+    private final Deque<Map<String, Object>> recentQueries = new ArrayDeque<>();
+
+    /**
+     * 记录一次自定义查询
+     *
+     * @param queryTag  查询标识（同时写入 log_comment）
+     * @param sql       SQL语句
+     * @param elapsedMs 耗时(毫秒)
+     * @param rows      返回行数
+     * @param error     失败原因，成功为 null
+     */
+    public void record(String queryTag, String sql, long elapsedMs, long rows, String error) {
+        totalQueries.incrementAndGet();
+        totalElapsedMs.addAndGet(elapsedMs);
+        totalRows.addAndGet(rows);
+        maxElapsedMs.accumulateAndGet(elapsedMs, Math::max);
+        if (error != null) {
+            failedQueries.incrementAndGet();
+        }
+
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("queryTag", queryTag);
+        record.put("sql", sql);
+        record.put("elapsedMs", elapsedMs);
+        record.put("rows", rows);
+        record.put("success", error == null);
+        record.put("error", error);
+        record.put("timestamp", System.currentTimeMillis());
+
+        synchronized (recentQueries) {
+            recentQueries.addFirst(record);
+            if (recentQueries.size() > RECENT_QUERY_CAPACITY) {
+                recentQueries.removeLast();
+            }
+        }
+
+        log.info("Custom query finished: tag={}, elapsedMs={}, rows={}, success={}", queryTag, elapsedMs, rows, error == null);
+    }
+
+    /**
+     * 获取客户端统计及最近查询记录
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long total = totalQueries.get();
+
+        stats.put("totalQueries", total);
+        stats.put("failedQueries", failedQueries.get());
+        stats.put("totalRows", totalRows.get());
+        stats.put("avgElapsedMs", total > 0 ? String.format("%.2f", (double) totalElapsedMs.get() / total) : "0.00");
+        stats.put("maxElapsedMs", maxElapsedMs.get());
+
+        synchronized (recentQueries) {
+            stats.put("recentQueries", new ArrayList<>(recentQueries));
+        }
+        return stats;
+    }
+
+    /**
+     * 从 system.query_log 查询最近自定义查询的服务端统计（读取行数、读取字节、内存）
+     *
+     * 注意：query_log 异步刷新（默认约 7.5 秒），刚执行完的查询可能暂时查不到
+     *
+     * @param limit 返回条数
+     * @return 服务端统计列表
+     */
+    public List<Map<String, Object>> getServerSideStats(int limit) {
+        String sql = "SELECT log_comment, query_duration_ms, read_rows, read_bytes, result_rows, memory_usage, " +
+                "type, exception, event_time " +
+                "FROM system.query_log " +
+                "WHERE log_comment LIKE ? AND type != 'QueryStart' " +
+                "ORDER BY event_time DESC LIMIT ?";
+
+        List<Map<String, Object>> result = new ArrayList<>();
+
+        try (Connection conn = analyticsDataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, LOG_COMMENT_PREFIX + "%");
+            pstmt.setInt(2, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    row.put("queryTag", rs.getString("log_comment").substring(LOG_COMMENT_PREFIX.length()));
+                    row.put("durationMs", rs.getLong("query_duration_ms"));
+                    row.put("readRows", rs.getLong("read_rows"));
+                    row.put("readBytes", rs.getLong("read_bytes"));
+                    row.put("resultRows", rs.getLong("result_rows"));
+                    row.put("memoryUsage", rs.getLong("memory_usage"));
+                    row.put("type", rs.getString("type"));
+                    row.put("exception", rs.getString("exception"));
+                    row.put("eventTime", rs.getTimestamp("event_time"));
+                    result.add(row);
+                }
+            }
+
+        } catch (Exception e) {
+            log.error("Error querying system.query_log for custom queries", e);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,197 @@
+package io.bluemacaw.msgsvr.monitor;
+
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ClickHouse 写入背压服务
+ *
+ * 定时采集目标表的 part 数量和正在进行的 merge 数量，计算写入端的状态：
+ * - NORMAL：正常写入，每个 MQ 消息直接写入
+ * - THROTTLED：part/merge 压力升高，增大攒批大小，减少写入次数（即减少新 part 的产生）
+ * - PAUSED：part 数量接近 parts_to_throw_insert，暂停写入，等待 merge 消化
+ *
+ * part 数量取活跃 part 最多的分区（too many parts 是按分区判断的）
+ *
+ * @author shzhou.michael
+ */
+@Slf4j
+@Service
+public class ClickHouseSinkBackpressureService {
+
+    public enum SinkState {
+        NORMAL,
+        THROTTLED,
+        PAUSED
+    }
+
+    @Resource
+    @Qualifier("clickHouseReaderDataSource")
+    private DataSource dataSource;
+
+    @Value("${clickhouse.database:im_message}")
+    private String database;
+
+    @Value("${clickhouse.table:message}")
+    private String table;
+
+    @Value("${clickhouse.sink.backpressure.enabled:true}")
+    private boolean enabled;
+
+    @Value("${clickhouse.sink.backpressure.parts-throttle-threshold:150}")
+    private int partsThrottleThreshold;
+
+    @Value("${clickhouse.sink.backpressure.parts-pause-threshold:250}")
+    private int partsPauseThreshold;
+
+    @Value("${clickhouse.sink.backpressure.merges-throttle-threshold:8}")
+    private int mergesThrottleThreshold;
+
+    @Value("${clickhouse.sink.backpressure.min-batch-size:1000}")
+    private int minBatchSize;
+
+    @Value("${clickhouse.sink.backpressure.max-batch-size:100000}")
+    private int maxBatchSize;
+
+    @Value("${clickhouse.sink.backpressure.max-flush-wait:5000}")
+    private long maxFlushWait;
+
+    private volatile SinkState state = SinkState.NORMAL;
+    private volatile int targetBatchSize;
+    private volatile int maxPartitionParts;
+    private volatile String hottestPartition;
+    private volatile int activeMerges;
+    private volatile long lastPollTime;
+    private volatile String lastError;
+
+    /**
+     * 定时采集 system.parts / system.merges，更新写入状态
+     */
+    @Scheduled(fixedDelayString = "${clickhouse.sink.backpressure.poll-interval:5000}")
+    public void poll() {
+        if (!enabled) {
+            return;
+        }
+
+        String partsSql = "SELECT partition, count() AS parts FROM system.parts " +
+                "WHERE database = ? AND table = ? AND active " +
+                "GROUP BY partition ORDER BY parts DESC LIMIT 1";
+        String mergesSql = "SELECT count() FROM system.merges WHERE database = ? AND table = ?";
+
+        try (Connection conn = dataSource.getConnection()) {
+            int parts = 0;
+            String partition = null;
+            try (PreparedStatement pstmt = conn.prepareStatement(partsSql)) {
+                pstmt.setString(1, database);
+                pstmt.setString(2, table);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        partition = rs.getString(1);
+                        parts = rs.getInt(2);
+                    }
+                }
+            }
+
+            int merges = 0;
+            try (PreparedStatement pstmt = conn.prepareStatement(mergesSql)) {
+                pstmt.setString(1, database);
+                pstmt.setString(2, table);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        merges = rs.getInt(1);
+                    }
+                }
+            }
+
+            maxPartitionParts = parts;
+            hottestPartition = partition;
+            activeMerges = merges;
+            lastPollTime = System.currentTimeMillis();
+            lastError = null;
+            updateState(parts, merges);
+
+        } catch (Exception e) {
+            // 采集失败时保持上一次的状态，避免监控抖动导致误暂停/误放开
+            lastError = e.getMessage();
+            log.error("Failed to poll ClickHouse parts/merges for {}.{}", database, table, e);
+        }
+    }
+
+    /**
+     * 根据 part/merge 数量调整状态和攒批大小
+     *
+     * THROTTLED 时攒批大小每轮翻倍直到上限，恢复 NORMAL 后每轮减半
+     */
+    private void updateState(int parts, int merges) {
+        SinkState newState;
+        if (parts >= partsPauseThreshold) {
+            newState = SinkState.PAUSED;
+        } else if (parts >= partsThrottleThreshold || merges >= mergesThrottleThreshold) {
+            newState = SinkState.THROTTLED;
+        } else {
+            newState = SinkState.NORMAL;
+        }
+
+        int batchSize = targetBatchSize;
+        if (newState == SinkState.NORMAL) {
+            batchSize = batchSize / 2 < minBatchSize ? 0 : batchSize / 2;
+        } else {
+            batchSize = Math.min(Math.max(batchSize * 2, minBatchSize), maxBatchSize);
+        }
+        targetBatchSize = batchSize;
+
+        if (newState != state) {
+            log.warn("ClickHouse sink state changed: {} -> {}, partition: {}, parts: {}, merges: {}, targetBatchSize: {}",
+                    state, newState, hottestPartition, parts, merges, batchSize);
+            state = newState;
+        }
+    }
+
+    public SinkState getState() {
+        return enabled ? state : SinkState.NORMAL;
+    }
+
+    /**
+     * 当前攒批大小（行数），0 表示不攒批，每个 MQ 消息直接写入
+     */
+    public int getTargetBatchSize() {
+        return enabled ? targetBatchSize : 0;
+    }
+
+    /**
+     * 攒批最长等待时间（毫秒），超时后即使未达到攒批大小也写入
+     */
+    public long getMaxFlushWait() {
+        return maxFlushWait;
+    }
+
+    /**
+     * 获取背压状态
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("enabled", enabled);
+        status.put("state", getState().name());
+        status.put("targetBatchSize", getTargetBatchSize());
+        status.put("hottestPartition", hottestPartition);
+        status.put("maxPartitionParts", maxPartitionParts);
+        status.put("activeMerges", activeMerges);
+        status.put("partsThrottleThreshold", partsThrottleThreshold);
+        status.put("partsPauseThreshold", partsPauseThreshold);
+        status.put("mergesThrottleThreshold", mergesThrottleThreshold);
+        status.put("lastPollTime", lastPollTime);
+        status.put("lastError", lastError);
+        return status;
+    }
+}
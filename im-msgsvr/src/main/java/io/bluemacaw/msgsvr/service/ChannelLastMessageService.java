@@ -0,0 +1,261 @@
+package io.bluemacaw.msgsvr.service;
+
+import com.mongodb.bulk.BulkWriteError;
+import io.bluemacaw.msgsvr.entity.ChannelLastMessage;
+import io.bluemacaw.msgsvr.entity.Message;
+import io.bluemacaw.msgsvr.entity.UserSubscription;
+import io.bluemacaw.msgsvr.entity.mq.MessageStatusDelta;
+import io.bluemacaw.msgsvr.util.MessageContentDecoder;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 频道最后消息摘要（channel_last_message）
+ *
+ * 维护：Message Change Stream 的 insert/update 事件（见 redis MessageConsumer），
+ * 一个事件中每个频道只取 seq 最大的消息，用无序 bulkWrite 条件 upsert：
+ * - 只在 seq >= 已有 seq 时覆盖，乱序、重复的事件以及历史导入（seq 递减）不会让摘要回退
+ * - 已有更大 seq 时 upsert 转为插入并报重复键，忽略即可
+ *
+ * 撤回等状态变更来自状态变更 exchange（见 redis MessageStatusConsumer），与 insert 事件在不同的队列，
+ * 可能先于该消息的 insert 事件到达。摘要上额外记录最近一次状态变更：
+ * - status_seq / pending_status / status_update_time：状态变更针对的 seq、新状态和变更时间
+ * - 变更的 seq 等于摘要 seq：直接更新 status（变更时间晚于 status_update_time 时才覆盖，
+ *   写入消息时 status_update_time 取消息的 update_time），撤回时清空 preview
+ * - 变更的 seq 大于摘要 seq（或还没有摘要）：只记录 status_seq 等字段，之后写入该 seq 的消息时，
+ *   变更时间晚于消息的 update_time 则使用 pending_status（onMessages 的 pipeline update）
+ * - 变更的 seq 小于摘要 seq：不是最后一条消息，忽略
+ * 还没有摘要时写入只有 status_seq 等字段、没有 seq 的文档，查询时跳过
+ *
+ * 不在 ChannelService 分配 seq 时维护：分配 seq 后消息可能保存失败（幂等模式下留下空洞），
+ * 摘要会指向不存在的消息；Change Stream 只包含已保存的消息，同时覆盖实时、批量和导入三种写入
+ */
+@Slf4j
+@Service
+public class ChannelLastMessageService {
+
+    private static final String COLLECTION = "channel_last_message";
+
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Value("${mongodb.last-message.preview-length:50}")
+    private int previewLength;
+
+    /**
+     * 根据新消息更新频道最后消息
+     *
+     * @param messages Change Stream 事件中的消息
+     */
+    public void onMessages(List<Message> messages) {
+        Map<String, Message> latest = new HashMap<>();
+        for (Message message : messages) {
+            if (message.getChannelId() == null || message.getSeq() == null) {
+                continue;
+            }
+            latest.merge(message.getChannelId(), message,
+                    (a, b) -> b.getSeq() >= a.getSeq() ? b : a);
+        }
+        if (latest.isEmpty()) {
+            return;
+        }
+
+        Date now = toDate(LocalDateTime.now());
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION);
+        for (Message message : latest.values()) {
+            Query query = Query.query(Criteria.where("_id").is(message.getChannelId())
+                    .orOperator(Criteria.where("seq").lte(message.getSeq()), Criteria.where("seq").exists(false)));
+
+            // 已记录的状态变更针对该 seq 且晚于消息本身时优先（撤回先于 insert 事件到达）
+            Document pendingApplies = new Document("$eq", Arrays.asList("$status_seq", message.getSeq()));
+            if (message.getUpdateTime() != null) {
+                pendingApplies = new Document("$and", Arrays.asList(pendingApplies,
+                        new Document("$gt", Arrays.asList("$status_update_time", toDate(message.getUpdateTime())))));
+            }
+            Document fields = new Document("seq", message.getSeq())
+                    .append("message_id", literal(message.getId()))
+                    .append("from_id", message.getFromId())
+                    .append("msg_type", message.getMsgType())
+                    .append("status", new Document("$cond", Arrays.asList(pendingApplies, "$pending_status", message.getStatus())))
+                    .append("status_update_time", new Document("$cond", Arrays.asList(pendingApplies,
+                            "$status_update_time", toDate(message.getUpdateTime()))))
+                    .append("msg_time", toDate(message.getMsgTime()))
+                    .append("update_time", now);
+            // 撤回等状态（status 不为 0）不显示内容
+            Document previewField = new Document("preview", new Document("$cond", Arrays.asList(
+                    new Document("$and", Arrays.asList(
+                            new Document("$ne", Arrays.asList("$status", null)),
+                            new Document("$ne", Arrays.asList("$status", 0)))),
+                    "",
+                    literal(preview(message)))));
+
+            List<AggregationOperation> pipeline = new ArrayList<>(2);
+            pipeline.add(context -> new Document("$set", fields));
+            pipeline.add(context -> new Document("$set", previewField));
+            bulkOps.upsert(query, AggregationUpdate.from(pipeline));
+        }
+
+        executeIgnoringDuplicateKey(bulkOps);
+        log.debug("频道最后消息已更新: channels={}", latest.size());
+    }
+
+    /**
+     * 根据状态变更（撤回等）更新频道最后消息，见类注释
+     *
+     * @param deltas 状态变更事件中的变更
+     */
+    public void onStatusChanged(List<MessageStatusDelta> deltas) {
+        // 同一条消息只保留最新的变更
+        Map<String, MessageStatusDelta> latest = new LinkedHashMap<>();
+        for (MessageStatusDelta delta : deltas) {
+            if (delta.getChannelId() == null || delta.getSeq() == null
+                    || delta.getStatus() == null || delta.getUpdateTime() == null) {
+                continue;
+            }
+            latest.merge(delta.getChannelId() + ":" + delta.getSeq(), delta,
+                    (a, b) -> b.getUpdateTime().isBefore(a.getUpdateTime()) ? a : b);
+        }
+        if (latest.isEmpty()) {
+            return;
+        }
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION);
+        for (MessageStatusDelta delta : latest.values()) {
+            // 1. 摘要就是该消息：更新 status
+            Update current = new Update()
+                    .set("status", delta.getStatus())
+                    .set("status_seq", delta.getSeq())
+                    .set("pending_status", delta.getStatus())
+                    .set("status_update_time", delta.getUpdateTime())
+                    .set("update_time", LocalDateTime.now());
+            if (delta.getStatus() != 0) {
+                current.set("preview", "");
+            }
+            bulkOps.updateOne(Query.query(Criteria.where("_id").is(delta.getChannelId())
+                    .and("seq").is(delta.getSeq())
+                    .orOperator(Criteria.where("status_update_time").exists(false),
+                            Criteria.where("status_update_time").lt(delta.getUpdateTime()))), current);
+
+            // 2. 该消息还没有写入摘要：记录状态变更，没有摘要时插入只有状态变更字段的文档
+            //    （摘要 seq 更大或已有更新的状态变更时转为插入并报重复键，忽略）
+            Query pendingQuery = Query.query(new Criteria().andOperator(
+                    Criteria.where("_id").is(delta.getChannelId()),
+                    new Criteria().orOperator(
+                            Criteria.where("seq").lt(delta.getSeq()),
+                            Criteria.where("seq").exists(false)),
+                    new Criteria().orOperator(
+                            Criteria.where("status_seq").exists(false),
+                            Criteria.where("status_seq").lt(delta.getSeq()),
+                            Criteria.where("status_seq").is(delta.getSeq())
+                                    .and("status_update_time").lt(delta.getUpdateTime()))));
+            bulkOps.upsert(pendingQuery, new Update()
+                    .set("status_seq", delta.getSeq())
+                    .set("pending_status", delta.getStatus())
+                    .set("status_update_time", delta.getUpdateTime()));
+        }
+
+        executeIgnoringDuplicateKey(bulkOps);
+        log.debug("频道最后消息状态已更新: messages={}", latest.size());
+    }
+
+    private void executeIgnoringDuplicateKey(BulkOperations bulkOps) {
+        try {
+            bulkOps.execute();
+        } catch (BulkOperationException e) {
+            // 重复键：频道已有更大的 seq（或更新的状态变更），其他错误抛出由消费者重试
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY_ERROR) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 批量查询频道最后消息
+     */
+    public List<ChannelLastMessage> getLastMessages(Collection<String> channelIds) {
+        if (channelIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // 没有 seq 的文档只记录了先到达的状态变更，还没有消息
+        return mongoTemplate.find(Query.query(Criteria.where("_id").in(channelIds).and("seq").exists(true)),
+                ChannelLastMessage.class);
+    }
+
+    /**
+     * 查询用户会话列表的最后消息（未退出的订阅，按消息时间降序）
+     *
+     * 最后一条消息在用户加入之前（seq <= join_version）的频道不返回摘要
+     */
+    public List<ChannelLastMessage> getUserLastMessages(Long userId) {
+        Query subscriptionQuery = Query.query(Criteria.where("user_id").is(userId).and("leave_version").is(null));
+        subscriptionQuery.fields().include("channel_id").include("join_version");
+        List<UserSubscription> subscriptions = mongoTemplate.find(subscriptionQuery, UserSubscription.class);
+
+        Map<String, Long> joinVersions = new HashMap<>();
+        for (UserSubscription subscription : subscriptions) {
+            joinVersions.put(subscription.getChannelId(),
+                    subscription.getJoinVersion() != null ? subscription.getJoinVersion() : 0L);
+        }
+
+        List<ChannelLastMessage> result = new ArrayList<>();
+        for (ChannelLastMessage lastMessage : getLastMessages(joinVersions.keySet())) {
+            if (lastMessage.getSeq() > joinVersions.get(lastMessage.getChannelId())) {
+                result.add(lastMessage);
+            }
+        }
+        result.sort(Comparator.comparing(ChannelLastMessage::getMsgTime,
+                Comparator.nullsLast(Comparator.reverseOrder())));
+        return result;
+    }
+
+    private String preview(Message message) {
+        String text = MessageContentDecoder.extractText(message.getContentVersion(), message.getContent());
+        if (text == null || text.length() <= previewLength) {
+            return text;
+        }
+        // 不拆开代理对（emoji 等）
+        int end = Character.isHighSurrogate(text.charAt(previewLength - 1)) ? previewLength - 1 : previewLength;
+        return text.substring(0, end);
+    }
+
+    /**
+     * pipeline update 中以 $ 开头的字符串会被当作字段路径，文本值需要 $literal
+     */
+    private static Object literal(String value) {
+        return value != null ? new Document("$literal", value) : null;
+    }
+
+    /**
+     * pipeline update 中的值不经过实体转换，与 Spring Data 默认转换一致按系统时区转换
+     */
+    private static Date toDate(LocalDateTime time) {
+        return time != null ? Date.from(time.atZone(ZoneId.systemDefault()).toInstant()) : null;
+    }
+}
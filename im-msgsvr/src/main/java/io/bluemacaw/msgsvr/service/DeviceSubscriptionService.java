@@ -1,9 +1,187 @@
 package io.bluemacaw.msgsvr.service;
 
+import io.bluemacaw.msgsvr.entity.sync.SubscriptionSyncItem;
+import io.bluemacaw.msgsvr.entity.sync.SubscriptionSyncResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.stereotype.Service;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DeviceSubscription 业务逻辑层
+ *
+ * 设备上线同步（flow-device-online-sync-subscription.md）：
+ * 一次聚合完成 user_subscription → channel、user_subscription → device_subscription 的连接，
+ * 在数据库端过滤出有变化的订阅，不按频道逐个查询 Channel 和 DeviceSubscription。
+ * 订阅数上千的用户也只有一次往返，返回结果只包含有变化的订阅
+ *
+ * 增量同步（syncSubscriptions）：设备带上次的游标，先从用户频道变更流（UserChannelFeedService）
+ * 取出游标之后有新消息的频道，聚合只处理这些频道
+ *
+ * 依赖的索引：
+ * - user_subscription (user_id, channel_id)
+ * - channel _id
+ * - device_subscription (user_id, device_id, channel_id)，启动时创建
+ */
 @Slf4j
 @Service
 public class DeviceSubscriptionService {
+
+    private static final String USER_SUBSCRIPTION_COLLECTION = "user_subscription";
+    private static final String DEVICE_SUBSCRIPTION_COLLECTION = "device_subscription";
+    private static final String CHANNEL_COLLECTION = "channel";
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Resource
+    private UserChannelFeedService userChannelFeedService;
+
+    @PostConstruct
+    public void init() {
+        try {
+            mongoTemplate.indexOps(DEVICE_SUBSCRIPTION_COLLECTION).ensureIndex(new Index()
+                    .on("user_id", Sort.Direction.ASC)
+                    .on("device_id", Sort.Direction.ASC)
+                    .on("channel_id", Sort.Direction.ASC)
+                    .named("uk_user_device_channel")
+                    .unique());
+        } catch (Exception e) {
+            // 索引已存在（名称不同）或存在重复数据时不影响启动，同步查询退化为扫描用户的设备订阅
+            log.error("创建 device_subscription 索引失败", e);
+        }
+    }
+
+    /**
+     * 设备上线同步：返回有变化的订阅
+     *
+     * 有变化的判断（与流程图一致）：
+     * - 设备订阅不存在
+     * - channel.message_version > device.last_sync_version（有未同步的消息）
+     * - user.last_read_version > device.last_read_version（其他设备已读进度更新）
+     *
+     * @param userId   用户ID
+     * @param deviceId 设备ID
+     * @return 有变化的订阅
+     */
+    public List<SubscriptionSyncItem> getChangedSubscriptions(Long userId, String deviceId) {
+        long startTime = System.currentTimeMillis();
+
+        // 用户未离开的订阅，走 (user_id, channel_id) 索引
+        List<SubscriptionSyncItem> items = aggregateChanged(
+                Criteria.where("user_id").is(userId).and("leave_time").isNull(), userId, deviceId);
+
+        log.debug("设备同步订阅: userId={}, deviceId={}, changed={}, cost={}ms",
+                userId, deviceId, items.size(), System.currentTimeMillis() - startTime);
+        return items;
+    }
+
+    /**
+     * 设备增量同步：只计算用户频道变更流中游标之后有变化的频道
+     *
+     * - cursor 为空或 <= 0：全量计算（getChangedSubscriptions），返回变更流水位作为游标。
+     *   水位在聚合之前读取，之后才记录的变化版本号一定更大，下次增量同步不会漏掉
+     * - 否则：先读水位，再查变更流中 (cursor, 水位] 的频道，只对这些频道执行同一个聚合，
+     *   游标推进到水位（正在写入、尚未推进水位的变化留到下一次同步）
+     *
+     * @param userId   用户ID
+     * @param deviceId 设备ID
+     * @param cursor   上次同步返回的游标
+     * @return 有变化的订阅和新的游标
+     */
+    public SubscriptionSyncResult syncSubscriptions(Long userId, String deviceId, Long cursor) {
+        if (cursor == null || cursor <= 0) {
+            long committedVersion = userChannelFeedService.getCommittedVersion(userId);
+            return new SubscriptionSyncResult(getChangedSubscriptions(userId, deviceId), committedVersion, true);
+        }
+
+        long committedVersion = userChannelFeedService.getCommittedVersion(userId);
+        if (committedVersion <= cursor) {
+            return new SubscriptionSyncResult(Collections.emptyList(), cursor, false);
+        }
+
+        long nextCursor = committedVersion;
+        Map<String, Long> changedChannels = userChannelFeedService.getChangedChannels(userId, cursor, committedVersion);
+        if (changedChannels.isEmpty()) {
+            return new SubscriptionSyncResult(Collections.emptyList(), nextCursor, false);
+        }
+
+        List<SubscriptionSyncItem> items = aggregateChanged(
+                Criteria.where("user_id").is(userId)
+                        .and("channel_id").in(changedChannels.keySet())
+                        .and("leave_time").isNull(),
+                userId, deviceId);
+
+        log.debug("设备增量同步订阅: userId={}, deviceId={}, feedChanged={}, changed={}, cursor={}",
+                userId, deviceId, changedChannels.size(), items.size(), nextCursor);
+        return new SubscriptionSyncResult(items, nextCursor, false);
+    }
+
+    /**
+     * 连接 Channel 和 DeviceSubscription，过滤出有变化的订阅（一次聚合）
+     */
+    private List<SubscriptionSyncItem> aggregateChanged(Criteria subscriptionCriteria, Long userId, String deviceId) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                // 1. 筛选订阅
+                Aggregation.match(subscriptionCriteria),
+                // 2. 连接 Channel（按 _id）
+                Aggregation.lookup(CHANNEL_COLLECTION, "channel_id", "_id", "channel"),
+                // 3. 左连接当前设备的 DeviceSubscription
+                lookupDeviceSubscription(userId, deviceId),
+                // 4. 展开为扁平的版本号字段
+                projectVersions(),
+                // 5. 只保留有变化的订阅
+                matchChanged()
+        );
+
+        return mongoTemplate.aggregate(
+                aggregation, USER_SUBSCRIPTION_COLLECTION, SubscriptionSyncItem.class).getMappedResults();
+    }
+
+    private static AggregationOperation lookupDeviceSubscription(Long userId, String deviceId) {
+        return context -> new Document("$lookup", new Document("from", DEVICE_SUBSCRIPTION_COLLECTION)
+                .append("let", new Document("channelId", "$channel_id"))
+                .append("pipeline", List.of(
+                        new Document("$match", new Document("user_id", userId)
+                                .append("device_id", deviceId)
+                                .append("$expr", new Document("$eq", List.of("$channel_id", "$$channelId")))),
+                        new Document("$limit", 1),
+                        new Document("$project", new Document("_id", 0)
+                                .append("last_read_version", 1)
+                                .append("last_sync_version", 1))))
+                .append("as", "device"));
+    }
+
+    private static AggregationOperation projectVersions() {
+        return context -> new Document("$project", new Document("_id", 0)
+                .append("channelId", "$channel_id")
+                .append("channelType", "$channel_type")
+                .append("channelVersion", new Document("$ifNull",
+                        List.of(new Document("$arrayElemAt", List.of("$channel.message_version", 0)), 0L)))
+                .append("userLastReadVersion", new Document("$ifNull", List.of("$last_read_version", 0L)))
+                .append("joinVersion", "$join_version")
+                .append("deviceLastReadVersion", new Document("$arrayElemAt", List.of("$device.last_read_version", 0)))
+                .append("deviceLastSyncVersion", new Document("$arrayElemAt", List.of("$device.last_sync_version", 0))));
+    }
+
+    private static AggregationOperation matchChanged() {
+        // 设备订阅不存在时版本号按 -1 比较，一定判定为有变化
+        return context -> new Document("$match", new Document("$expr", new Document("$or", List.of(
+                new Document("$lt", List.of(
+                        new Document("$ifNull", List.of("$deviceLastSyncVersion", -1L)), "$channelVersion")),
+                new Document("$lt", List.of(
+                        new Document("$ifNull", List.of("$deviceLastReadVersion", -1L)), "$userLastReadVersion"))
+        ))));
+    }
 }
@@ -0,0 +1,472 @@
+package io.bluemacaw.msgsvr.service;
+
+import com.mongodb.client.result.UpdateResult;
+import io.bluemacaw.msgsvr.entity.Message;
+import io.bluemacaw.msgsvr.entity.mq.MqMessageData;
+import io.bluemacaw.msgsvr.util.BloomFilter;
+import io.bluemacaw.msgsvr.util.CollectionNameUtil;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 实时消息去重服务（按 clientMsgId，没有时按 oldMsgId）
+ *
+ * 两级判断，在分配 seq 之前拦截重复消息：
+ * 1. 内存布隆过滤器：按时间窗口轮换（当前窗口 + 上一个窗口），记录本实例已保存的幂等键。
+ *    不在过滤器中且不是 MQ 重投递的消息直接判定为新消息，不查 MongoDB
+ * 2. 月表唯一索引：过滤器命中或 MQ 重投递（redelivered，可能是重启前已保存但未确认的消息，
+ *    过滤器中没有记录）时，按 (channel_id, client_msg_id/old_msg_id) 唯一索引查当月和上月的 collection
+ *
+ * 过滤器漏掉的重复（其他实例保存、或早于上一个窗口）由唯一索引兜底：
+ * 插入时报 DuplicateKeyException，消息重新入队，重投递时走第 2 级查到已保存的消息
+ *
+ * 幂等模式的 seq 占用（message_seq_claim，按幂等键）：
+ * 非事务保存时 seq 在插入前分配，并发的重复投递或分配后进程退出都会留下永久的 seq 空洞（未读数虚高）。
+ * 分配前先占用幂等键（claimSeq），分配后记录 seq（recordClaimedSeq）：
+ * - 并发的重复投递占用失败，不分配 seq，稍后重试时查到已保存的消息
+ * - 分配后未保存成功的消息重试时复用记录的 seq，填上空洞
+ * 占用记录按 create_time 过期（mongodb.dedup.seq-claim-ttl-hours）
+ *
+ * 指标（MeterRegistry）：
+ * - im.message.dedup.checks{result=...}：各判断结果的次数
+ * - im.message.dedup.duplicate.rate：重复消息占比
+ * - im.message.dedup.lookup.skip.rate：过滤器直接放行（未查 MongoDB）的占比
+ * - im.message.dedup.filter.false.positive.rate：过滤器命中但 MongoDB 中不存在的占比
+ *
+ * @author shzhou.michael
+ */
+@Slf4j
+@Service
+public class MessageDedupService {
+
+    private static final String SEQ_CLAIM_COLLECTION = "message_seq_claim";
+
+    /**
+     * 旧版本创建的唯一索引（包含空字符串），创建新索引前删除
+     */
+    private static final Set<String> LEGACY_UNIQUE_INDEXES = Set.of("uk_channel_client_msg_id", "uk_channel_old_msg_id");
+
+    /**
+     * 索引创建失败时最多输出的重复键分组数
+     */
+    private static final int DUPLICATE_REPORT_LIMIT = 20;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${mongodb.dedup.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 过滤器时间窗口（分钟），实际覆盖 1 ~ 2 个窗口
+     */
+    @Value("${mongodb.dedup.window-minutes:30}")
+    private long windowMinutes;
+
+    /**
+     * 每个窗口预计保存的消息数
+     */
+    @Value("${mongodb.dedup.expected-insertions:2000000}")
+    private long expectedInsertions;
+
+    @Value("${mongodb.dedup.fpp:0.001}")
+    private double fpp;
+
+    /**
+     * 占用后未记录 seq 的超时时间（秒），超时认为占用方已退出，由重试接管
+     */
+    @Value("${mongodb.dedup.seq-claim-timeout-seconds:30}")
+    private long seqClaimTimeoutSeconds;
+
+    @Value("${mongodb.dedup.seq-claim-ttl-hours:24}")
+    private long seqClaimTtlHours;
+
+    /**
+     * 唯一索引创建失败后的重试间隔（分钟），期间不再尝试创建
+     */
+    @Value("${mongodb.dedup.index-retry-minutes:10}")
+    private long indexRetryMinutes;
+
+    private volatile boolean seqClaimIndexed;
+
+    private volatile BloomFilter currentFilter;
+    private volatile BloomFilter previousFilter;
+    private volatile long windowStart;
+
+    /**
+     * 已创建幂等唯一索引的消息 collection
+     */
+    private final Set<String> indexedMessageCollections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 唯一索引创建失败的消息 collection -> 下次重试的时间戳
+     */
+    private final Map<String, Long> indexRetryAt = new ConcurrentHashMap<>();
+
+    // 判断结果计数
+    private final AtomicLong noKey = new AtomicLong(0);
+    private final AtomicLong filterMiss = new AtomicLong(0);
+    private final AtomicLong filterHitDuplicate = new AtomicLong(0);
+    private final AtomicLong filterHitFalsePositive = new AtomicLong(0);
+    private final AtomicLong redeliveredDuplicate = new AtomicLong(0);
+    private final AtomicLong redeliveredNew = new AtomicLong(0);
+
+    @PostConstruct
+    public void init() {
+        currentFilter = new BloomFilter(expectedInsertions, fpp);
+        previousFilter = new BloomFilter(expectedInsertions, fpp);
+        windowStart = System.currentTimeMillis();
+
+        registerCounter("no_key", noKey);
+        registerCounter("filter_miss", filterMiss);
+        registerCounter("filter_hit_duplicate", filterHitDuplicate);
+        registerCounter("filter_hit_false_positive", filterHitFalsePositive);
+        registerCounter("redelivered_duplicate", redeliveredDuplicate);
+        registerCounter("redelivered_new", redeliveredNew);
+
+        Gauge.builder("im.message.dedup.duplicate.rate", this,
+                        s -> ratio(s.filterHitDuplicate.get() + s.redeliveredDuplicate.get(), s.totalChecks()))
+                .description("重复消息占比")
+                .register(meterRegistry);
+        Gauge.builder("im.message.dedup.lookup.skip.rate", this,
+                        s -> ratio(s.filterMiss.get(), s.totalChecks()))
+                .description("布隆过滤器直接放行（未查 MongoDB）的占比")
+                .register(meterRegistry);
+        Gauge.builder("im.message.dedup.filter.false.positive.rate", this,
+                        s -> ratio(s.filterHitFalsePositive.get(),
+                                s.filterHitFalsePositive.get() + s.filterHitDuplicate.get()))
+                .description("布隆过滤器命中但消息不存在的占比")
+                .register(meterRegistry);
+
+        log.info("MessageDedupService initialized, enabled: {}, windowMinutes: {}, expectedInsertions: {}, fpp: {}, bits: {}, hashes: {}",
+                enabled, windowMinutes, expectedInsertions, fpp, currentFilter.getBitCount(), currentFilter.getHashCount());
+    }
+
+    /**
+     * 幂等键：频道内唯一（clientMsgId 优先，其次 oldMsgId），都没有时返回 null
+     */
+    public static String idempotentKey(String channelId, MqMessageData mqMessageData) {
+        if (mqMessageData.getClientMsgId() != null && !mqMessageData.getClientMsgId().isEmpty()) {
+            return channelId + "|c|" + mqMessageData.getClientMsgId();
+        }
+        if (mqMessageData.getOldMsgId() != null && !mqMessageData.getOldMsgId().isEmpty()) {
+            return channelId + "|o|" + mqMessageData.getOldMsgId();
+        }
+        return null;
+    }
+
+    /**
+     * 保存前检查消息是否已保存过
+     *
+     * @param channelId     频道ID
+     * @param mqMessageData 消息数据
+     * @param redelivered   是否为 MQ 重投递（重投递时总是查 MongoDB）
+     * @return 已保存的消息，不重复时返回 null
+     */
+    public Message findDuplicate(String channelId, MqMessageData mqMessageData, boolean redelivered) {
+        if (!enabled) {
+            return null;
+        }
+
+        String key = idempotentKey(channelId, mqMessageData);
+        if (key == null) {
+            noKey.incrementAndGet();
+            return null;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        ensureUniqueIndexes(CollectionNameUtil.getMessageCollection(now));
+        rotateIfNeeded();
+
+        boolean mightContain = currentFilter.mightContain(key) || previousFilter.mightContain(key);
+        if (!mightContain && !redelivered) {
+            filterMiss.incrementAndGet();
+            return null;
+        }
+
+        Message existing = findSavedMessage(channelId, mqMessageData, now);
+        if (existing != null) {
+            (mightContain ? filterHitDuplicate : redeliveredDuplicate).incrementAndGet();
+            if (!mightContain) {
+                currentFilter.put(key);
+            }
+            log.info("重复消息，跳过保存: channelId={}, seq={}, clientMsgId={}, oldMsgId={}, redelivered={}",
+                    channelId, existing.getSeq(), mqMessageData.getClientMsgId(), mqMessageData.getOldMsgId(), redelivered);
+            return existing;
+        }
+
+        (mightContain ? filterHitFalsePositive : redeliveredNew).incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 消息保存成功后记录幂等键
+     */
+    public void record(String channelId, MqMessageData mqMessageData) {
+        if (!enabled) {
+            return;
+        }
+        String key = idempotentKey(channelId, mqMessageData);
+        if (key != null) {
+            rotateIfNeeded();
+            currentFilter.put(key);
+        }
+    }
+
+    /**
+     * 幂等模式分配 seq 前占用幂等键
+     *
+     * @return 之前的投递已分配但未保存成功的 seq（直接复用）；需要新分配 seq 时返回 null
+     * @throws IllegalStateException 另一次投递正在保存同一条消息，稍后重试
+     */
+    public Long claimSeq(String channelId, MqMessageData mqMessageData) {
+        String key = idempotentKey(channelId, mqMessageData);
+        if (key == null) {
+            return null;
+        }
+        ensureSeqClaimIndex();
+
+        Date now = new Date();
+        try {
+            mongoTemplate.insert(new Document("_id", key).append("create_time", now), SEQ_CLAIM_COLLECTION);
+            return null;
+        } catch (DuplicateKeyException e) {
+            // 已被占用
+        }
+
+        Document claim = mongoTemplate.findById(key, Document.class, SEQ_CLAIM_COLLECTION);
+        if (claim != null && claim.get("seq") instanceof Number) {
+            long seq = ((Number) claim.get("seq")).longValue();
+            log.warn("复用之前分配但未保存的seq: channelId={}, seq={}, key={}", channelId, seq, key);
+            return seq;
+        }
+
+        // 占用方在分配 seq 之前退出：超时后接管
+        Date staleBefore = new Date(now.getTime() - TimeUnit.SECONDS.toMillis(seqClaimTimeoutSeconds));
+        UpdateResult result = mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(key).and("seq").is(null).and("create_time").lt(staleBefore)),
+                Update.update("create_time", now),
+                SEQ_CLAIM_COLLECTION);
+        if (result.getModifiedCount() > 0) {
+            return null;
+        }
+        throw new IllegalStateException("消息正在由其他投递保存: " + key);
+    }
+
+    /**
+     * 记录占用幂等键后分配的 seq
+     */
+    public void recordClaimedSeq(String channelId, MqMessageData mqMessageData, long seq) {
+        String key = idempotentKey(channelId, mqMessageData);
+        if (key == null) {
+            return;
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(key)),
+                Update.update("seq", seq), SEQ_CLAIM_COLLECTION);
+    }
+
+    /**
+     * 按幂等键（clientMsgId 优先，其次 oldMsgId）查找当月和上月已保存的消息
+     *
+     * 查上月是为了覆盖跨月重试（上月最后时刻首次投递，本月重试）
+     */
+    public Message findSavedMessage(String channelId, MqMessageData mqMessageData, LocalDateTime now) {
+        Criteria criteria = Criteria.where("channel_id").is(channelId);
+        if (mqMessageData.getClientMsgId() != null && !mqMessageData.getClientMsgId().isEmpty()) {
+            criteria.and("client_msg_id").is(mqMessageData.getClientMsgId());
+        } else if (mqMessageData.getOldMsgId() != null && !mqMessageData.getOldMsgId().isEmpty()) {
+            criteria.and("old_msg_id").is(mqMessageData.getOldMsgId());
+        } else {
+            // 没有幂等键，无法去重
+            return null;
+        }
+
+        Query query = Query.query(criteria);
+        for (LocalDateTime month : new LocalDateTime[]{now, now.minusMonths(1)}) {
+            Message message = mongoTemplate.findOne(query, Message.class, CollectionNameUtil.getMessageCollection(month));
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 为消息 collection 创建幂等唯一索引（每个 collection 只创建一次）
+     *
+     * 创建失败（通常是历史数据中存在重复键）时输出重复的键，
+     * mongodb.dedup.index-retry-minutes 内不再重试，避免每条消息都重新创建索引
+     *
+     * - (channel_id, client_msg_id) 唯一，只对 client_msg_id 为非空字符串的文档生效
+     * - (channel_id, old_msg_id) 唯一，只对 old_msg_id 为非空字符串的文档生效
+     *   （$gt: "" 只匹配字符串类型，且排除空字符串，与 idempotentKey 的判断一致）
+     *
+     * 需要在事务外调用（事务中不能对已存在的 collection 创建索引）
+     */
+    public void ensureUniqueIndexes(String collectionName) {
+        if (indexedMessageCollections.contains(collectionName)) {
+            return;
+        }
+        Long retryAt = indexRetryAt.get(collectionName);
+        if (retryAt != null && System.currentTimeMillis() < retryAt) {
+            return;
+        }
+
+        try {
+            IndexOperations indexOps = mongoTemplate.indexOps(collectionName);
+            indexOps.ensureIndex(new Index()
+                    .on("channel_id", Sort.Direction.ASC)
+                    .on("client_msg_id", Sort.Direction.ASC)
+                    .named("uk_channel_client_msg_id_nonempty")
+                    .unique()
+                    .partial(PartialIndexFilter.of(Criteria.where("client_msg_id").gt(""))));
+            indexOps.ensureIndex(new Index()
+                    .on("channel_id", Sort.Direction.ASC)
+                    .on("old_msg_id", Sort.Direction.ASC)
+                    .named("uk_channel_old_msg_id_nonempty")
+                    .unique()
+                    .partial(PartialIndexFilter.of(Criteria.where("old_msg_id").gt(""))));
+            // 旧版本按 type: string 过滤，空字符串也会进入索引，同一频道的多条空 ID 消息互相冲突；
+            // 新索引创建后再删除，期间唯一约束不中断
+            for (IndexInfo indexInfo : indexOps.getIndexInfo()) {
+                if (LEGACY_UNIQUE_INDEXES.contains(indexInfo.getName())) {
+                    indexOps.dropIndex(indexInfo.getName());
+                    log.info("删除旧的消息唯一索引: collection={}, index={}", collectionName, indexInfo.getName());
+                }
+            }
+            indexedMessageCollections.add(collectionName);
+            indexRetryAt.remove(collectionName);
+            log.info("消息唯一索引已创建: collection={}", collectionName);
+
+        } catch (Exception e) {
+            // 历史数据中存在重复键时索引创建失败，仍按查找 + 插入的方式去重
+            indexRetryAt.put(collectionName,
+                    System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(indexRetryMinutes));
+            log.error("创建消息唯一索引失败，{} 分钟后重试: collection={}", indexRetryMinutes, collectionName, e);
+            reportDuplicateKeys(collectionName, "client_msg_id");
+            reportDuplicateKeys(collectionName, "old_msg_id");
+        }
+    }
+
+    /**
+     * 输出阻止唯一索引创建的重复键（需要人工清理后索引才能创建成功）
+     */
+    private void reportDuplicateKeys(String collectionName, String field) {
+        try {
+            Aggregation aggregation = Aggregation.newAggregation(
+                    Aggregation.match(Criteria.where(field).gt("")),
+                    Aggregation.group("channel_id", field).count().as("count"),
+                    Aggregation.match(Criteria.where("count").gt(1)),
+                    Aggregation.limit(DUPLICATE_REPORT_LIMIT)
+            ).withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+
+            List<Document> duplicates = mongoTemplate.aggregate(aggregation, collectionName, Document.class)
+                    .getMappedResults();
+            for (Document duplicate : duplicates) {
+                log.warn("消息唯一索引冲突的重复键: collection={}, field={}, key={}, count={}",
+                        collectionName, field, duplicate.get("_id"), duplicate.get("count"));
+            }
+        } catch (Exception e) {
+            log.error("查询重复键失败: collection={}, field={}", collectionName, field, e);
+        }
+    }
+
+    private void ensureSeqClaimIndex() {
+        if (seqClaimIndexed) {
+            return;
+        }
+        try {
+            mongoTemplate.indexOps(SEQ_CLAIM_COLLECTION).ensureIndex(new Index()
+                    .on("create_time", Sort.Direction.ASC)
+                    .named("ttl_create_time")
+                    .expire(seqClaimTtlHours, TimeUnit.HOURS));
+            seqClaimIndexed = true;
+        } catch (Exception e) {
+            log.error("创建 seq 占用过期索引失败: collection={}", SEQ_CLAIM_COLLECTION, e);
+        }
+    }
+
+    /**
+     * 获取去重统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("noKey", noKey.get());
+        stats.put("filterMiss", filterMiss.get());
+        stats.put("filterHitDuplicate", filterHitDuplicate.get());
+        stats.put("filterHitFalsePositive", filterHitFalsePositive.get());
+        stats.put("redeliveredDuplicate", redeliveredDuplicate.get());
+        stats.put("redeliveredNew", redeliveredNew.get());
+        stats.put("windowStart", windowStart);
+        stats.put("currentWindowInsertions", currentFilter.getInsertions());
+        stats.put("currentWindowExpectedFpp", String.format("%.6f", currentFilter.expectedFpp()));
+        return stats;
+    }
+
+    /**
+     * 窗口到期后轮换：当前窗口变为上一个窗口，丢弃更早的记录
+     */
+    private void rotateIfNeeded() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart < TimeUnit.MINUTES.toMillis(windowMinutes)) {
+            return;
+        }
+        synchronized (this) {
+            if (now - windowStart < TimeUnit.MINUTES.toMillis(windowMinutes)) {
+                return;
+            }
+            log.info("Rotate dedup filter window, insertions: {}, expectedFpp: {}",
+                    currentFilter.getInsertions(), String.format("%.6f", currentFilter.expectedFpp()));
+            previousFilter = currentFilter;
+            currentFilter = new BloomFilter(expectedInsertions, fpp);
+            windowStart = now;
+        }
+    }
+
+    private long totalChecks() {
+        return noKey.get() + filterMiss.get() + filterHitDuplicate.get() + filterHitFalsePositive.get()
+                + redeliveredDuplicate.get() + redeliveredNew.get();
+    }
+
+    private void registerCounter(String result, AtomicLong value) {
+        FunctionCounter.builder("im.message.dedup.checks", value, AtomicLong::get)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static double ratio(long part, long total) {
+        return total > 0 ? (double) part / total : 0;
+    }
+}
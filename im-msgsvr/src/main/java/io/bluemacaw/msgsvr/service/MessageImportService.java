@@ -0,0 +1,236 @@
+package io.bluemacaw.msgsvr.service;
+
+import io.bluemacaw.msgsvr.entity.mq.MqAggregatedMessageBatch;
+import io.bluemacaw.thread.WmThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 历史数据导入模式（spring.rabbitmq.batchImportMode）
+ *
+ * 批量消费者只负责解码，解码后的批次交给这里按 channelId 分组写入：
+ * - 同一频道的批次串行写入（seq 区间基于上一个批次更新后的 messageVersion 计算，不能并发）
+ * - 不同频道的批次在 batchImportParallelism 个线程上并行写入，多个频道的 MongoDB 写入形成流水线
+ * - 在途批次数（已提交未完成）不超过 batchImportMaxInFlight，达到上限时提交方阻塞，
+ *   监听线程停止取消息，积压留在 MQ 中
+ * - 每个批次仍由 MessageService.saveBatchMessages 在一个事务中保存
+ *
+ * 进度：累计写入行数、总体和最近一个统计周期的行数/秒，定时输出日志，
+ * 通过 /testRabbitmq/batchImportStatus 查看（与 sendMessageBatchByDateRange 的发送进度一起）
+ */
+@Slf4j
+@Service
+public class MessageImportService {
+
+    @Resource
+    private MessageService messageService;
+
+    @Value("${spring.rabbitmq.batchImportMode:false}")
+    private boolean enabled;
+
+    @Value("${spring.rabbitmq.batchImportParallelism:8}")
+    private int parallelism;
+
+    @Value("${spring.rabbitmq.batchImportMaxInFlight:64}")
+    private int maxInFlight;
+
+    private ExecutorService executor;
+
+    private Semaphore inFlightPermits;
+
+    private int permits;
+
+    /**
+     * channelId -> 该频道最后一个提交的批次，新批次接在它后面执行
+     */
+    private final Map<String, CompletableFuture<Void>> channelTails = new ConcurrentHashMap<>();
+
+    private final AtomicLong importedRows = new AtomicLong(0);
+    private final AtomicLong importedBatches = new AtomicLong(0);
+    private final AtomicLong failedBatches = new AtomicLong(0);
+
+    /**
+     * 第一个批次提交的时间（0 表示还没有批次）
+     */
+    private volatile long startedAt;
+
+    /**
+     * 上一次输出进度时的行数和时间
+     */
+    private long lastReportRows;
+    private long lastReportAt;
+    private volatile double recentRowsPerSecond;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+
+        int threads = Math.max(parallelism, 1);
+        permits = Math.max(maxInFlight, threads);
+        // 队列长度由 inFlightPermits 限制
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new WmThreadFactory("message-import"));
+        inFlightPermits = new Semaphore(permits);
+        log.info("Batch import mode enabled, parallelism: {}, maxInFlight: {}", threads, permits);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            // 未完成的批次未确认，会被 Broker 重新投递
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Batch import executor did not terminate in 30s, inFlight: {}", getInFlight());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 提交一个批次，接在同一频道的上一个批次之后执行
+     *
+     * 在途批次达到上限时阻塞，直到有批次完成
+     *
+     * @param batch     解码后的批次
+     * @param onSuccess 保存成功后回调（在导入线程上执行）
+     * @param onFailure 保存失败后回调（在导入线程上执行）
+     */
+    public void submit(MqAggregatedMessageBatch batch, Runnable onSuccess, Consumer<Exception> onFailure)
+            throws InterruptedException {
+        inFlightPermits.acquire();
+        if (startedAt == 0) {
+            startedAt = System.currentTimeMillis();
+        }
+
+        String channelId = batch.getChannelId();
+        CompletableFuture<Void> tail;
+        try {
+            tail = channelTails.compute(channelId, (key, previous) ->
+                    (previous != null ? previous : CompletableFuture.<Void>completedFuture(null))
+                            .thenRunAsync(() -> importBatch(batch, onSuccess, onFailure), executor));
+        } catch (RuntimeException e) {
+            inFlightPermits.release();
+            throw e;
+        }
+        tail.whenComplete((v, e) -> {
+            // 频道没有后续批次时移除，避免 channelTails 随频道数增长
+            channelTails.remove(channelId, tail);
+            if (e != null) {
+                // importBatch 不抛出异常，异常完成说明批次没有执行（线程池已关闭拒绝任务）
+                inFlightPermits.release();
+                try {
+                    onFailure.accept(e instanceof Exception ? (Exception) e : new RuntimeException(e));
+                } catch (Exception callbackException) {
+                    log.error("Failed to handle import failure, channelId: {}", channelId, callbackException);
+                }
+            }
+        });
+    }
+
+    /**
+     * 保存一个批次（不抛出异常，保证同一频道的后续批次继续执行）
+     */
+    private void importBatch(MqAggregatedMessageBatch batch, Runnable onSuccess, Consumer<Exception> onFailure) {
+        try {
+            messageService.saveBatchMessages(batch);
+            importedRows.addAndGet(batch.size());
+            importedBatches.incrementAndGet();
+            onSuccess.run();
+
+        } catch (Exception e) {
+            failedBatches.incrementAndGet();
+            log.error("Failed to import batch, channelId: {}, messageDate: {}, count: {}",
+                    batch.getChannelId(), batch.getMessageDate(), batch.size(), e);
+            try {
+                onFailure.accept(e);
+            } catch (Exception callbackException) {
+                log.error("Failed to handle import failure, channelId: {}", batch.getChannelId(), callbackException);
+            }
+        } finally {
+            inFlightPermits.release();
+        }
+    }
+
+    /**
+     * 定时输出导入进度（没有新写入时不输出）
+     */
+    @Scheduled(fixedDelayString = "${spring.rabbitmq.batchImportProgressInterval:10000}")
+    public synchronized void reportProgress() {
+        if (!enabled || startedAt == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long rows = importedRows.get();
+        long since = lastReportAt > 0 ? lastReportAt : startedAt;
+        if (rows == lastReportRows && lastReportAt > 0) {
+            recentRowsPerSecond = 0;
+            return;
+        }
+
+        recentRowsPerSecond = rate(rows - lastReportRows, now - since);
+        lastReportRows = rows;
+        lastReportAt = now;
+
+        log.info("Batch import progress: {} rows, {} batches, {} failed, {} rows/s (overall {} rows/s), inFlight: {}, activeChannels: {}",
+                rows, importedBatches.get(), failedBatches.get(), Math.round(recentRowsPerSecond),
+                Math.round(rate(rows, now - startedAt)), getInFlight(), channelTails.size());
+    }
+
+    /**
+     * 获取导入进度
+     */
+    public Map<String, Object> getProgress() {
+        Map<String, Object> progress = new HashMap<>();
+        progress.put("enabled", enabled);
+        progress.put("importedRows", importedRows.get());
+        progress.put("importedBatches", importedBatches.get());
+        progress.put("failedBatches", failedBatches.get());
+        progress.put("inFlight", getInFlight());
+        progress.put("activeChannels", channelTails.size());
+        progress.put("parallelism", parallelism);
+        progress.put("maxInFlight", permits);
+
+        long started = startedAt;
+        long elapsed = started > 0 ? System.currentTimeMillis() - started : 0;
+        progress.put("elapsedMs", elapsed);
+        progress.put("rowsPerSecond", Math.round(rate(importedRows.get(), elapsed)));
+        progress.put("recentRowsPerSecond", Math.round(recentRowsPerSecond));
+        return progress;
+    }
+
+    private int getInFlight() {
+        return inFlightPermits != null ? permits - inFlightPermits.availablePermits() : 0;
+    }
+
+    private static double rate(long rows, long elapsedMs) {
+        return elapsedMs > 0 ? rows * 1000.0 / elapsedMs : 0;
+    }
+}
@@ -1,11 +1,19 @@
 package io.bluemacaw.msgsvr.service;
 
+import com.alibaba.fastjson.JSON;
 import io.bluemacaw.msgsvr.entity.Message;
 import io.bluemacaw.msgsvr.entity.Channel;
+import io.bluemacaw.msgsvr.entity.UserSubscription;
+import io.bluemacaw.msgsvr.entity.mq.MqAggregatedMessageBatch;
 import io.bluemacaw.msgsvr.entity.mq.MqAggregatedMessageData;
 import io.bluemacaw.msgsvr.entity.mq.MqMessage;
 import io.bluemacaw.msgsvr.entity.mq.MqMessageData;
+import io.bluemacaw.msgsvr.entity.mq.MessageStatusDelta;
+import io.bluemacaw.msgsvr.entity.query.CustomQuery;
+import io.bluemacaw.msgsvr.entity.sync.ChannelSyncRange;
+import io.bluemacaw.msgsvr.entity.sync.ChannelSyncResult;
 import io.bluemacaw.msgsvr.enums.ChannelType;
+import io.bluemacaw.msgsvr.monitor.ClickHouseQueryMonitorService;
 import io.bluemacaw.msgsvr.util.CollectionNameUtil;
 import io.bluemacaw.msgsvr.util.PreparedStatementConverter;
 import io.bluemacaw.msgsvr.util.MessageConverter;
@@ -13,20 +21,29 @@ import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.*;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
 
 import static io.bluemacaw.msgsvr.service.ChannelService.generateChannelId;
 import static io.bluemacaw.msgsvr.util.MessageConverter.mqMsgItemToMessage;
@@ -48,13 +65,84 @@ public class MessageService {
     @Resource
     private UserSubscriptionService userSubscriptionService;
 
+    @Resource
+    private MessageDedupService messageDedupService;
+
     @Resource
     @Qualifier("clickHouseDataSource")
     private DataSource clickHouseDataSource;
 
+    @Resource
+    @Qualifier("clickHouseReaderDataSource")
+    private DataSource clickHouseReaderDataSource;
+
+    @Resource
+    @Qualifier("clickHouseAnalyticsDataSource")
+    private DataSource clickHouseAnalyticsDataSource;
+
+    @Resource
+    private ClickHouseQueryMonitorService queryMonitorService;
+
     @Value("${mongodb.seq-assignment.boundary-date}")
     private String seqBoundaryDate;
 
+    @Value("${clickhouse.analytics.max-rows-to-read:100000000}")
+    private long customQueryMaxRowsToRead;
+
+    @Value("${clickhouse.analytics.max-execution-time:30}")
+    private long customQueryMaxExecutionTime;
+
+    @Value("${clickhouse.analytics.max-memory-usage:4294967296}")
+    private long customQueryMaxMemoryUsage;
+
+    /**
+     * 状态覆盖查询每批最多的消息数（(channelId, seq) IN (...) 的长度）
+     */
+    @Value("${clickhouse.status.overlay-batch-size:1000}")
+    private int statusOverlayBatchSize;
+
+    /**
+     * 批量同步时每个频道每页最多返回的消息数
+     */
+    @Value("${mongodb.sync.per-channel-limit:200}")
+    private int syncPerChannelLimit;
+
+    /**
+     * 批量同步一次最多的频道数
+     */
+    @Value("${mongodb.sync.max-channels:200}")
+    private int syncMaxChannels;
+
+    /**
+     * 流式查询每输出多少行 flush 一次响应
+     */
+    private static final int STREAM_FLUSH_ROWS = 1000;
+
+    /**
+     * 自定义SQL中不允许出现的子句（避免覆盖查询级资源限制）
+     * 只检查字符串和带引号标识符之外的部分；AS 之后的别名和 format(...) 函数调用不算子句
+     */
+    private static final Pattern CUSTOM_QUERY_FORBIDDEN_CLAUSE =
+            Pattern.compile("(?<!\\bAS\\s{1,16})\\b(SETTINGS|FORMAT)\\b(?!\\s*\\()", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * ClickHouse 消息查询列（与 MessageConverter.resultSetToMessage 对应）
+     * 显式列出需要的列，避免 SELECT * 读取无用的列文件
+     */
+    private static final String MESSAGE_COLUMNS =
+            "id, channelId, seq, oldMsgId, " +
+            "fromId, fromCompanyId, fromCompany, " +
+            "toId, toCompanyId, toCompany, " +
+            "contactType, msgType, content, contentVersion, " +
+            "msgTime, clientMsgId, clientInfo, deleted, status";
+
+    /**
+     * ClickHouse 消息摘要查询列（与 MessageConverter.resultSetToMessageSummary 对应）
+     * 不包含 content、公司名称等大字段，列存储下只读取这些列文件
+     */
+    private static final String MESSAGE_SUMMARY_COLUMNS =
+            "id, channelId, seq, fromId, toId, contactType, msgType, msgTime, deleted, status";
+
     /**
      * 发送消息 - MongoDB事务保证原子性
      *
@@ -120,13 +208,169 @@ public class MessageService {
         }
     }
 
+    /**
+     * 发送消息 - 非事务、幂等模式
+     *
+     * 与 saveMessage 的区别：不开启多文档事务，避免同一频道并发写入时的 WriteConflict。
+     * 每一步都可以安全重试，一致性由消息的唯一键（channel_id + client_msg_id / old_msg_id）保证：
+     * 1. 按唯一键查找已保存的消息，找到说明是重试且之前已成功，直接返回（不再分配seq）
+     * 2. 确保 Channel 和 UserSubscription 存在（upsert，可重复执行）
+     * 3. 占用幂等键（MessageDedupService.claimSeq）后分配seq并记录；
+     *    并发的重复投递占用失败，不分配seq；之前分配过但未保存成功时复用记录的seq
+     * 4. 按唯一键插入消息；唯一键冲突说明并发的重复投递已经插入，返回已存在的消息
+     *
+     * 注意：只有在分配seq和记录seq之间进程退出、或消息没有幂等键时，频道内才会出现seq空洞
+     *
+     * @param mqMessage mq消息
+     * @return 保存后的消息对象（重试时返回之前保存的消息）
+     */
+    public Message saveMessageIdempotent(MqMessage mqMessage) {
+        MqMessageData mqMessageData = mqMessage.getMqMessageData();
+
+        String channelId = generateChannelId(mqMessage);
+        int channelType = mqMessageData.getContactType();
+        long fromId = mqMessageData.getFromId();
+        long toId = mqMessageData.getContactId();
+
+        LocalDateTime now = LocalDateTime.now();
+        String collectionName = CollectionNameUtil.getMessageCollection(now);
+        messageDedupService.ensureUniqueIndexes(collectionName);
+
+        // 步骤1: 重试时直接返回已保存的消息
+        Message existing = messageDedupService.findSavedMessage(channelId, mqMessageData, now);
+        if (existing != null) {
+            log.info("消息已存在，跳过保存: channelId={}, seq={}, clientMsgId={}, oldMsgId={}",
+                    channelId, existing.getSeq(), mqMessageData.getClientMsgId(), mqMessageData.getOldMsgId());
+            return existing;
+        }
+
+        // 步骤2: 确保Channel和UserSubscription存在
+        Channel channel = channelService.ensureChannelExists(channelId, channelType);
+        if (channel == null) {
+            throw new RuntimeException("创建Channel失败: " + channelId);
+        }
+
+        if (ChannelType.PRIVATE.getCode() == channelType) {
+            userSubscriptionService.ensureUserSubscriptionsForPrivateChat(channelId, fromId, toId,
+                    channel.getMessageVersion(), now);
+        } else if (ChannelType.GROUP.getCode() == channelType) {
+            userSubscriptionService.ensureUserSubscriptionsForGroupChat(channelId,
+                    channel.getMessageVersion(), now);
+        }
+
+        // 步骤3: 占用幂等键后分配seq；之前分配过但未保存成功时复用原seq，不留空洞
+        Long newSeq = messageDedupService.claimSeq(channelId, mqMessageData);
+        if (newSeq == null) {
+            newSeq = channelService.incrementAndGetMessageVersion(channelId);
+            if (newSeq == null) {
+                throw new RuntimeException("更新Channel版本号失败: " + channelId);
+            }
+            messageDedupService.recordClaimedSeq(channelId, mqMessageData, newSeq);
+        }
+
+        // 步骤4: 按唯一键插入
+        Message mongodbMessage = mqMsgItemToMessage(mqMessage, channelId, newSeq);
+        if (mongodbMessage == null) {
+            throw new RuntimeException("消息转换失败: " + channelId);
+        }
+
+        try {
+            Message savedMessage = mongoTemplate.insert(mongodbMessage, collectionName);
+            log.info("消息发送成功(幂等模式): channelId={}, seq={}, collection={}, msgId={}",
+                    channelId, newSeq, collectionName, savedMessage.getId());
+            return savedMessage;
+
+        } catch (DuplicateKeyException e) {
+            // 并发的重复投递已经插入（占用超时被接管后两边都完成了保存）
+            Message duplicated = messageDedupService.findSavedMessage(channelId, mqMessageData, now);
+            if (duplicated == null) {
+                throw e;
+            }
+            log.warn("消息唯一键冲突，返回已存在的消息: channelId={}, seq={}, unusedSeq={}",
+                    channelId, duplicated.getSeq(), newSeq);
+            return duplicated;
+        }
+    }
+
+    /**
+     * 批量发送同一频道的实时消息 - 一个MongoDB事务
+     *
+     * 与逐条调用 saveMessage 的结果一致（seq 按列表顺序连续递增），但整批只执行：
+     * 一次 ensureChannelExists、一次 ensureUserSubscriptions、
+     * 一次 incrementAndGetMessageVersion(channelId, n) 和一次 insertMany
+     *
+     * @param channelId  频道ID（所有消息必须属于该频道）
+     * @param mqMessages mq消息（按投递顺序）
+     * @return 保存后的消息列表，与 mqMessages 顺序一致
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public List<Message> saveMessages(String channelId, List<MqMessage> mqMessages) {
+        if (mqMessages == null || mqMessages.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        MqMessageData firstMsgData = mqMessages.get(0).getMqMessageData();
+        int channelType = firstMsgData.getContactType();
+        int messageCount = mqMessages.size();
+
+        try {
+            LocalDateTime now = LocalDateTime.now();
+
+            // 步骤1: 确保Channel存在
+            Channel channel = channelService.ensureChannelExists(channelId, channelType);
+            if (channel == null) {
+                throw new RuntimeException("创建Channel失败: " + channelId);
+            }
+
+            // 步骤2: 确保UserSubscription存在（同一频道的参与者相同，只需执行一次）
+            if (ChannelType.PRIVATE.getCode() == channelType) {
+                userSubscriptionService.ensureUserSubscriptionsForPrivateChat(channelId,
+                        firstMsgData.getFromId(), firstMsgData.getContactId(), channel.getMessageVersion(), now);
+            } else if (ChannelType.GROUP.getCode() == channelType) {
+                userSubscriptionService.ensureUserSubscriptionsForGroupChat(channelId,
+                        channel.getMessageVersion(), now);
+            }
+
+            // 步骤3: 一次分配 n 个seq
+            // incCount=1 时返回更新后的版本号，incCount>1 时返回更新前的版本号
+            Long version = channelService.incrementAndGetMessageVersion(channelId, messageCount);
+            if (version == null) {
+                throw new RuntimeException("更新Channel版本号失败: " + channelId);
+            }
+            long firstSeq = messageCount == 1 ? version : version + 1;
+
+            // 步骤4: 构建mongodb中的消息
+            List<Message> mongodbMessages = new ArrayList<>(messageCount);
+            for (int i = 0; i < messageCount; i++) {
+                Message mongodbMessage = mqMsgItemToMessage(mqMessages.get(i), channelId, firstSeq + i);
+                if (mongodbMessage == null) {
+                    throw new RuntimeException("消息转换失败: channelId=" + channelId + ", index=" + i);
+                }
+                mongodbMessages.add(mongodbMessage);
+            }
+
+            // 步骤5: 动态确定collection名称并批量保存消息
+            String collectionName = CollectionNameUtil.getMessageCollection(now);
+            List<Message> savedMessages = new ArrayList<>(mongoTemplate.insert(mongodbMessages, collectionName));
+
+            log.info("批量发送消息成功: channelId={}, count={}, seqRange=[{}, {}], collection={}",
+                    channelId, messageCount, firstSeq, firstSeq + messageCount - 1, collectionName);
+
+            return savedMessages;
+
+        } catch (Exception e) {
+            log.error("批量发送消息失败: channelId={}, count={}", channelId, messageCount, e);
+            throw new RuntimeException("批量发送消息失败", e);
+        }
+    }
+
     /**
      * 批量保存消息 - 用于历史数据导入场景
      *
      * 处理逻辑：
-     * 1. 确保Channel存在（返回包含当前version的channel对象）
-     * 2. 确保UserSubscription存在
-     * 3. 按msgTime排序消息
+     * 1. 按msgTime排序消息
+     * 2. 确保Channel存在（返回包含当前version的channel对象）
+     * 3. 确保UserSubscription存在
      * 4. 根据消息日期与boundary-date比较，决定seq分配策略（递增/递减）
      * 5. 基于channel当前version和消息数量，计算seq区间并在内存中分配
      * 6. 批量插入MongoDB
@@ -138,58 +382,50 @@ public class MessageService {
      */
     @Transactional(rollbackFor = Exception.class)
     public void saveBatchMessages(MqAggregatedMessageData aggregatedData) {
-        String channelId = aggregatedData.getChannelId();
-        int channelType = aggregatedData.getChannelType();
-        String messageDate = aggregatedData.getMessageDate();
-        List<MqMessage> mqMessages = aggregatedData.getMessages();
+        saveBatchMessages(MqAggregatedMessageBatch.of(aggregatedData));
+    }
 
-        if (mqMessages == null || mqMessages.isEmpty()) {
+    /**
+     * 批量保存流式解码的聚合消息（MqMessageDecoder.decodeAggregated）
+     *
+     * 消息在解码时已转换为 Message 实体，msgTime 已解析为 long[]，
+     * 这里只按下标排序、设置 channelId/seq，然后直接作为 insert 批次写入；
+     * 订阅的 upsert 合并为一次无序 bulkWrite，joinInfo 只下调 join_version 更大的订阅
+     *
+     * @param batch 聚合消息
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public void saveBatchMessages(MqAggregatedMessageBatch batch) {
+        String channelId = batch.getChannelId();
+        int channelType = batch.getChannelType();
+        String messageDate = batch.getMessageDate();
+
+        if (batch.isEmpty()) {
             return;
         }
 
+        int messageCount = batch.size();
+
         try {
             LocalDateTime now = LocalDateTime.now();
 
-            // 步骤1: 确保Channel存在（获取当前version）
+            // 步骤1: 按msgTime排序消息（确保seq按时间顺序分配）
+            List<Message> mongoMessages = batch.sortedMessages();
+            Message firstMessage = mongoMessages.get(0);
+
+            // 步骤2: 确保Channel存在（获取当前version）
             Channel channel = channelService.ensureChannelExists(channelId, channelType);
             if (channel == null) {
                 throw new RuntimeException("创建Channel失败: " + channelId);
             }
             Long currentVersion = channel.getMessageVersion();
 
-            // 步骤2: 确保UserSubscription存在
-            if (ChannelType.PRIVATE.getCode() == channelType) {
-                MqMessageData firstMsgData = mqMessages.get(0).getMqMessageData();
-                long fromId = firstMsgData.getFromId();
-                long toId = firstMsgData.getContactId();
-                userSubscriptionService.ensureUserSubscriptionsForPrivateChat(channelId, fromId, toId,
-                        currentVersion, now);
-            } else if (ChannelType.GROUP.getCode() == channelType) {
-                userSubscriptionService.ensureUserSubscriptionsForGroupChat(channelId,
-                        currentVersion, now);
-            }
-
-            // 步骤3: 按msgTime排序消息（确保seq按时间顺序分配）
-            mqMessages.sort((m1, m2) -> {
-                String msgTime1 = m1.getMqMessageData().getMsgTime();
-                String msgTime2 = m2.getMqMessageData().getMsgTime();
-                try {
-                    long timestamp1 = Long.parseLong(msgTime1);
-                    long timestamp2 = Long.parseLong(msgTime2);
-                    return Long.compare(timestamp1, timestamp2);
-                } catch (NumberFormatException e) {
-                    return 0;
-                }
-            });
-
-            // 步骤4: 判断seq分配策略
+            // 步骤3: 判断seq分配策略
             LocalDate msgDate = LocalDate.parse(messageDate);
             LocalDate boundaryDate = LocalDate.parse(seqBoundaryDate);
             boolean useDecrement = !msgDate.isAfter(boundaryDate);
 
-            int messageCount = mqMessages.size();
-
-            // 步骤5: 基于当前version计算seq区间，并在内存中分配
+            // 步骤4: 基于当前version计算seq区间，并在内存中分配
             Long minSeq;
             Long maxSeq;
 
@@ -203,37 +439,31 @@ public class MessageService {
                 maxSeq = currentVersion + messageCount;
             }
 
-            List<Message> mongoMessages = new ArrayList<>();
-            for (int i = 0; i < mqMessages.size(); i++) {
-                Long seq = useDecrement ? (maxSeq - i) : (minSeq + i);
-
-                Message mongoMessage = mqMsgItemToMessage(mqMessages.get(i), channelId, seq);
-                if (mongoMessage != null) {
-                    mongoMessages.add(mongoMessage);
-                }
+            for (int i = 0; i < messageCount; i++) {
+                Message mongoMessage = mongoMessages.get(i);
+                mongoMessage.setChannelId(channelId);
+                mongoMessage.setSeq(useDecrement ? (maxSeq - i) : (minSeq + i));
             }
 
+            // 步骤5: 确保UserSubscription存在（一次无序bulkWrite）
+            // 最小seq < 100000 时，新建的订阅直接以消息日期作为加入时间，
+            // joinVersion 为 minSeq - 1（可见区间 (joinVersion, leaveVersion] 包含导入的第一条消息）
+            boolean lowerJoinInfo = minSeq < 100000L;
+            LocalDateTime joinTime = msgDate.atStartOfDay();
+            List<Long> subscriberIds = userSubscriptionService.resolveSubscriberUserIds(channelId, channelType,
+                    firstMessage.getFromId(), firstMessage.getToId());
+            userSubscriptionService.bulkEnsureUserSubscriptions(channelId, channelType, subscriberIds,
+                    lowerJoinInfo ? minSeq - 1 : currentVersion, lowerJoinInfo ? joinTime : now, now);
+
             // 步骤6: 批量插入MongoDB
-            if (!mongoMessages.isEmpty()) {
-                LocalDateTime firstMsgTime = mongoMessages.get(0).getMsgTime();
-                String collectionName = CollectionNameUtil.getMessageCollection(firstMsgTime);
-                mongoTemplate.insert(mongoMessages, collectionName);
-            }
+            String collectionName = CollectionNameUtil.getMessageCollection(firstMessage.getMsgTime());
+            mongoTemplate.insert(mongoMessages, collectionName);
 
             // 步骤7: 根据seq区间边界更新数据库
-            if (minSeq < 100000L) {
-                // 最小seq ≤ 100000，更新userSubscription的joinVersion和joinTime
-                LocalDateTime joinTime = msgDate.atStartOfDay();
-
-                if (ChannelType.PRIVATE.getCode() == channelType) {
-                    MqMessageData firstMsgData = mqMessages.get(0).getMqMessageData();
-                    long fromId = firstMsgData.getFromId();
-                    long toId = firstMsgData.getContactId();
-                    userSubscriptionService.updateUserSubscriptionJoinInfo(channelId, fromId, minSeq, joinTime);
-                    userSubscriptionService.updateUserSubscriptionJoinInfo(channelId, toId, minSeq, joinTime);
-                } else if (ChannelType.GROUP.getCode() == channelType) {
-                    userSubscriptionService.updateGroupSubscriptionJoinInfo(channelId, minSeq, joinTime);
-                }
+            if (lowerJoinInfo) {
+                // 最小seq < 100000，下调已存在订阅的joinVersion和joinTime（只更新join_version更大的订阅）
+                userSubscriptionService.lowerSubscriptionJoinInfo(channelId,
+                        ChannelType.PRIVATE.getCode() == channelType ? subscriberIds : null, minSeq - 1, joinTime);
             }
 
             if (maxSeq > 100000L) {
@@ -246,7 +476,7 @@ public class MessageService {
 
         } catch (Exception e) {
             log.error("批量保存消息失败: channelId={}, messageDate={}, count={}",
-                    channelId, messageDate, mqMessages.size(), e);
+                    channelId, messageDate, messageCount, e);
             throw new RuntimeException("批量保存消息失败", e);
         }
     }
@@ -320,6 +550,144 @@ public class MessageService {
         return allMessages;
     }
 
+    /**
+     * 批量同步多个频道的消息 - 按月 collection 合并查询
+     *
+     * 用途：设备上线同步订阅后，一次拉取所有有变化的频道的缺失消息（代替逐个频道调用 queryMessages）
+     *
+     * 实现：从当前月开始往前，每个月对所有未完成的频道只发一次查询（$or 各频道的 seq 区间），
+     * 结果按频道拆分。一个频道满足以下条件时不再参与后续月份的查询：
+     * 1. 已查到区间的第一条消息（seq = sinceVersion + 1）
+     * 2. 区间已经为空（更早的月份只可能有更小的 seq，区间上界收窄到已查到的最小 seq）
+     * 3. 已返回 perChannelLimit 条，剩余的区间通过 hasMore / nextUntilVersion 分页
+     * 所有频道完成或 collection 不存在（已经查到最早的月份）时结束
+     *
+     * 每页限制：seq 在频道内基本连续分配，查询区间下界取 max(since, until - 剩余条数)，
+     * 每个频道每次查询最多返回剩余条数，不需要按频道 limit。
+     * seq 有空洞（分配后保存失败）或区间跨月时，截断的区间查到的条数少于区间长度，
+     * 这些频道在同一个 collection 中再按 seq 降序 + limit 剩余条数补查一次，不会漏掉区间下方的消息
+     *
+     * 同一频道出现多次时合并为一个区间（取并集的上下界）
+     *
+     * @param ranges 各频道的 seq 区间 (sinceVersion, untilVersion]
+     * @return channelId -> 同步结果（消息按seq升序）
+     * @throws IllegalArgumentException 频道数超过 mongodb.sync.max-channels
+     */
+    public Map<String, ChannelSyncResult> syncMessages(List<ChannelSyncRange> ranges) {
+        // channelId -> 剩余未查询的区间 [since, until, 剩余条数]，until 随查询结果收窄
+        Map<String, long[]> pending = new LinkedHashMap<>();
+        for (ChannelSyncRange range : ranges) {
+            if (range.getChannelId() == null || range.getSinceVersion() == null || range.getUntilVersion() == null) {
+                continue;
+            }
+            pending.merge(range.getChannelId(),
+                    new long[]{range.getSinceVersion(), range.getUntilVersion(), syncPerChannelLimit},
+                    (a, b) -> new long[]{Math.min(a[0], b[0]), Math.max(a[1], b[1]), syncPerChannelLimit});
+        }
+        if (pending.size() > syncMaxChannels) {
+            throw new IllegalArgumentException("同步的频道数超过上限: " + pending.size() + " > " + syncMaxChannels);
+        }
+
+        Map<String, List<Message>> messagesByChannel = new LinkedHashMap<>();
+        Map<String, long[]> limited = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : pending.entrySet()) {
+            messagesByChannel.put(entry.getKey(), new ArrayList<>());
+        }
+        pending.values().removeIf(range -> range[1] <= range[0]);
+
+        LocalDateTime now = LocalDateTime.now();
+        int monthOffset = 0;
+        int totalMessages = 0;
+        while (!pending.isEmpty()) {
+            String collection = CollectionNameUtil.getMessageCollection(now.minusMonths(monthOffset));
+            if (!mongoTemplate.collectionExists(collection)) {
+                log.debug("Collection {} 不存在，停止查询", collection);
+                break;
+            }
+
+            // channelId -> 本次查询的区间长度（只记录下界被剩余条数截断的频道）
+            Map<String, Long> truncatedWindows = new HashMap<>();
+            List<Criteria> channelCriteria = new ArrayList<>(pending.size());
+            for (Map.Entry<String, long[]> entry : pending.entrySet()) {
+                long[] range = entry.getValue();
+                long lower = Math.max(range[0], range[1] - range[2]);
+                if (lower > range[0]) {
+                    truncatedWindows.put(entry.getKey(), range[1] - lower);
+                }
+                channelCriteria.add(Criteria.where("channel_id").is(entry.getKey())
+                        .and("seq").gt(lower).lte(range[1]));
+            }
+            Query query = Query.query(new Criteria().orOperator(channelCriteria));
+            List<Message> messages = mongoTemplate.find(query, Message.class, collection);
+
+            // 按频道拆分，记录每个频道本月查到的最小 seq 和条数
+            Map<String, Long> minSeqByChannel = new HashMap<>();
+            Map<String, Integer> countByChannel = new HashMap<>();
+            for (Message message : messages) {
+                messagesByChannel.get(message.getChannelId()).add(message);
+                minSeqByChannel.merge(message.getChannelId(), message.getSeq(), Math::min);
+                countByChannel.merge(message.getChannelId(), 1, Integer::sum);
+            }
+            totalMessages += messages.size();
+
+            // 截断的区间没有查满：seq 有空洞或区间跨月，在本月按 seq 降序补查剩余条数
+            for (Map.Entry<String, Long> entry : truncatedWindows.entrySet()) {
+                String channelId = entry.getKey();
+                int found = countByChannel.getOrDefault(channelId, 0);
+                if (found >= entry.getValue()) {
+                    continue;
+                }
+                long[] range = pending.get(channelId);
+                long until = found > 0 ? minSeqByChannel.get(channelId) - 1 : range[1];
+                long remaining = range[2] - found;
+                if (until <= range[0] || remaining <= 0) {
+                    continue;
+                }
+
+                Query fillQuery = Query.query(Criteria.where("channel_id").is(channelId)
+                        .and("seq").gt(range[0]).lte(until));
+                fillQuery.with(by("seq").descending());
+                fillQuery.limit((int) remaining);
+                List<Message> filled = mongoTemplate.find(fillQuery, Message.class, collection);
+                for (Message message : filled) {
+                    messagesByChannel.get(channelId).add(message);
+                    minSeqByChannel.merge(channelId, message.getSeq(), Math::min);
+                    countByChannel.merge(channelId, 1, Integer::sum);
+                }
+                totalMessages += filled.size();
+            }
+
+            for (Map.Entry<String, Long> entry : minSeqByChannel.entrySet()) {
+                long[] range = pending.get(entry.getKey());
+                range[1] = entry.getValue() - 1;
+                range[2] -= countByChannel.get(entry.getKey());
+                if (range[1] <= range[0]) {
+                    pending.remove(entry.getKey());
+                } else if (range[2] <= 0) {
+                    // 达到每页条数，剩余区间留给下一页
+                    pending.remove(entry.getKey());
+                    limited.put(entry.getKey(), range);
+                }
+            }
+
+            log.debug("从collection {} 查询到 {} 条消息，剩余 {} 个频道", collection, messages.size(), pending.size());
+            monthOffset++;
+        }
+
+        Map<String, ChannelSyncResult> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Message>> entry : messagesByChannel.entrySet()) {
+            List<Message> channelMessages = entry.getValue();
+            channelMessages.sort((m1, m2) -> m1.getSeq().compareTo(m2.getSeq()));
+            long[] rest = limited.get(entry.getKey());
+            result.put(entry.getKey(), new ChannelSyncResult(channelMessages, rest != null, rest != null ? rest[1] : null));
+        }
+
+        log.info("批量同步消息完成: channels={}, 总数={}, 查询了{}个月, 未完成频道={}, 分页频道={}",
+                result.size(), totalMessages, monthOffset, pending.size(), limited.size());
+
+        return result;
+    }
+
     /**
      * 分页查询历史消息(向上滑动加载)
      *
@@ -378,6 +746,128 @@ public class MessageService {
         return allMessages;
     }
 
+    /**
+     * 按用户可见范围分页查询历史消息(向上滑动加载)
+     *
+     * 用户在频道中可见的 seq 区间为 (joinVersion, leaveVersion]，查询前先把游标区间收窄到可见区间：
+     * - seq 上界：min(cursorVersion, leaveVersion + 1)（不含）
+     * - seq 下界：joinVersion（不含），区间为空时不查询
+     * - 月份范围：从 leaveTime 所在月（未离开时为当前月）往前，到 joinTime 所在月为止，
+     *   已离开的用户不再扫描离开之后的月份，也不会扫描加入之前的月份
+     * - 每个月只查剩余数量（limit 下推），查到下界之后的第一条消息（seq = joinVersion + 1）时停止
+     *
+     * @param userId        用户ID
+     * @param channelId     频道ID
+     * @param cursorVersion 游标版本号(查询小于此版本的消息)，null 表示从最新消息开始
+     * @param limit         每次加载数量
+     * @return 消息列表(按seq降序)，用户没有订阅该频道时返回空列表
+     */
+    public List<Message> queryUserHistoryMessages(Long userId, String channelId,
+                                                  Long cursorVersion, int limit) {
+        UserSubscription subscription = userSubscriptionService.getSubscription(userId, channelId);
+        if (subscription == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        // 收窄 seq 区间 (lowerSeq, upperSeq)
+        long upperSeq = cursorVersion != null ? cursorVersion : Long.MAX_VALUE;
+        if (subscription.getLeaveVersion() != null) {
+            upperSeq = Math.min(upperSeq, subscription.getLeaveVersion() + 1);
+        }
+        long lowerSeq = subscription.getJoinVersion() != null ? subscription.getJoinVersion() : 0L;
+        if (upperSeq - 1 <= lowerSeq) {
+            return new ArrayList<>();
+        }
+
+        // 收窄月份范围 [firstMonth, lastMonth]
+        YearMonth lastMonth = YearMonth.now();
+        if (subscription.getLeaveTime() != null && YearMonth.from(subscription.getLeaveTime()).isBefore(lastMonth)) {
+            lastMonth = YearMonth.from(subscription.getLeaveTime());
+        }
+        YearMonth firstMonth = subscription.getJoinTime() != null ? YearMonth.from(subscription.getJoinTime()) : null;
+
+        List<Message> allMessages = new ArrayList<>();
+        int scannedMonths = 0;
+        for (YearMonth month = lastMonth;
+             allMessages.size() < limit && (firstMonth == null || !month.isBefore(firstMonth));
+             month = month.minusMonths(1)) {
+            String collection = CollectionNameUtil.getMessageCollection(month.getYear(), month.getMonthValue());
+            if (!mongoTemplate.collectionExists(collection)) {
+                log.debug("Collection {} 不存在，停止查询", collection);
+                break;
+            }
+            scannedMonths++;
+
+            Query query = Query.query(
+                    Criteria.where("channel_id").is(channelId)
+                            .and("seq").gt(lowerSeq).lt(upperSeq)
+            );
+            query.with(by("seq").descending());
+            query.limit(limit - allMessages.size());
+
+            List<Message> messages = mongoTemplate.find(query, Message.class, collection);
+            allMessages.addAll(messages);
+
+            if (!messages.isEmpty()) {
+                long minSeq = messages.get(messages.size() - 1).getSeq();
+                if (minSeq <= lowerSeq + 1) {
+                    // 已经查到可见区间的第一条消息
+                    break;
+                }
+                // 更早的月份只可能有更小的 seq
+                upperSeq = minSeq;
+            }
+        }
+
+        log.info("查询用户历史消息完成: userId={}, channelId={}, cursorVersion={}, visible=({}, {}], limit={}, 实际返回={}, 查询了{}个月",
+                userId, channelId, cursorVersion, lowerSeq, subscription.getLeaveVersion(), limit,
+                allMessages.size(), scannedMonths);
+
+        return allMessages;
+    }
+
+    /**
+     * 更新消息状态（撤回等）
+     *
+     * 按 (channel_id, seq) 只更新 status 和 update_time。
+     * Change Stream 识别出只涉及这两个字段的更新，发送 ChangeStreamMessageStatusEvent（而不是完整文档），
+     * 由 ClickHouse、全文索引和频道最后消息摘要的状态消费者分别应用
+     *
+     * @param channelId 频道ID
+     * @param seq       消息序号
+     * @param status    新状态
+     * @param msgTime   消息时间，用于直接定位月表；为空时从当前月往前查找
+     * @return 更新后的消息，不存在时返回 null
+     */
+    public Message updateMessageStatus(String channelId, long seq, int status, LocalDateTime msgTime) {
+        Query query = Query.query(Criteria.where("channel_id").is(channelId).and("seq").is(seq));
+        Update update = new Update()
+                .set("status", status)
+                .set("update_time", LocalDateTime.now());
+        FindAndModifyOptions options = FindAndModifyOptions.options().returnNew(true);
+
+        Message message = null;
+        if (msgTime != null) {
+            message = mongoTemplate.findAndModify(query, update, options, Message.class,
+                    CollectionNameUtil.getMessageCollection(msgTime));
+        } else {
+            LocalDateTime now = LocalDateTime.now();
+            for (int monthOffset = 0; message == null; monthOffset++) {
+                String collection = CollectionNameUtil.getMessageCollection(now.minusMonths(monthOffset));
+                if (!mongoTemplate.collectionExists(collection)) {
+                    log.warn("更新消息状态未找到消息: channelId={}, seq={}, 查询了{}个月", channelId, seq, monthOffset);
+                    return null;
+                }
+                message = mongoTemplate.findAndModify(query, update, options, Message.class, collection);
+            }
+        }
+
+        if (message != null) {
+            log.info("更新消息状态: channelId={}, seq={}, status={}", channelId, seq, status);
+        }
+        return message;
+    }
+
     /**
      * 批量插入 Message 到 ClickHouse
      * 使用 ClickHouse 推荐的 input() 函数进行批量插入，性能更优
@@ -416,13 +906,104 @@ public class MessageService {
         }
     }
 
+    /**
+     * 将消息状态变更应用到 ClickHouse
+     *
+     * 不修改 im_message.message（ALTER TABLE ... UPDATE 只重写已经存在的 part，消息还在写入缓冲或重试中时
+     * mutation 先执行，变更会丢失），而是把变更作为带版本的行插入 im_message.message_status：
+     * - ReplacingMergeTree(updateTime)，ORDER BY (channelId, seq)，后台合并后每条消息只保留 updateTime 最大的一行
+     * - 读取时按 argMax(status, updateTime) 覆盖消息表的 status（见 overlayMessageStatus），合并前的重复行不影响结果
+     * - 插入不依赖消息行是否已经写入，也不需要按 msgTime 计算分区，重复投递时重复插入同一版本的行
+     * 同一条消息只保留一个事件中最新的变更（按 updateTime）
+     */
+    public void applyMessageStatusToClickHouse(List<MessageStatusDelta> deltas) {
+        Map<String, MessageStatusDelta> latest = new LinkedHashMap<>();
+        for (MessageStatusDelta delta : deltas) {
+            if (delta.getId() == null || delta.getChannelId() == null || delta.getSeq() == null
+                    || delta.getStatus() == null || delta.getUpdateTime() == null) {
+                log.warn("Skip incomplete message status delta: {}", delta);
+                continue;
+            }
+            latest.merge(delta.getId(), delta, (a, b) -> isNewer(b, a) ? b : a);
+        }
+        if (latest.isEmpty()) {
+            return;
+        }
+
+        String sql = "INSERT INTO im_message.message_status (id, channelId, seq, status, updateTime) VALUES (?, ?, ?, ?, ?)";
+        try (Connection conn = clickHouseDataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            for (MessageStatusDelta delta : latest.values()) {
+                pstmt.setString(1, delta.getId());
+                pstmt.setString(2, delta.getChannelId());
+                pstmt.setLong(3, delta.getSeq());
+                pstmt.setInt(4, delta.getStatus());
+                pstmt.setTimestamp(5, Timestamp.valueOf(delta.getUpdateTime()));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            log.info("Inserted ClickHouse message status rows: {}", latest.size());
+
+        } catch (Exception e) {
+            log.error("Failed to apply message status to ClickHouse, size={}", latest.size(), e);
+            throw new RuntimeException("ClickHouse status insert failed", e);
+        }
+    }
+
+    /**
+     * 用 im_message.message_status 中最新的状态覆盖查询结果的 status
+     *
+     * 按 (channelId, seq) 分批查询（命中 message_status 的排序键），没有状态变更的消息保持原值
+     */
+    private void overlayMessageStatus(Connection conn, List<Message> messages) throws SQLException {
+        for (int from = 0; from < messages.size(); from += statusOverlayBatchSize) {
+            List<Message> chunk = messages.subList(from, Math.min(from + statusOverlayBatchSize, messages.size()));
+
+            StringBuilder sql = new StringBuilder("SELECT channelId, seq, argMax(status, updateTime) AS status " +
+                    "FROM im_message.message_status WHERE (channelId, seq) IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+            }
+            sql.append(") GROUP BY channelId, seq");
+
+            Map<String, Integer> statuses = new HashMap<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+                int index = 1;
+                for (Message message : chunk) {
+                    pstmt.setString(index++, message.getChannelId());
+                    pstmt.setLong(index++, message.getSeq());
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        statuses.put(rs.getString("channelId") + ":" + rs.getLong("seq"), rs.getInt("status"));
+                    }
+                }
+            }
+
+            for (Message message : chunk) {
+                Integer status = statuses.get(message.getChannelId() + ":" + message.getSeq());
+                if (status != null) {
+                    message.setStatus(status);
+                }
+            }
+        }
+    }
+
+    private static boolean isNewer(MessageStatusDelta candidate, MessageStatusDelta current) {
+        if (candidate.getUpdateTime() == null) {
+            return false;
+        }
+        return current.getUpdateTime() == null || !candidate.getUpdateTime().isBefore(current.getUpdateTime());
+    }
+
     /**
      * 查询消息总数
      */
     public long getTotalCount() {
         String sql = "SELECT count(*) as total FROM im_message.message";
 
-        try (Connection conn = clickHouseDataSource.getConnection();
+        try (Connection conn = clickHouseReaderDataSource.getConnection();
              Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
 
@@ -442,10 +1023,10 @@ public class MessageService {
      * @return 消息列表
      */
     public List<Message> getRecentMessages(int limit) {
-        String sql = "SELECT * FROM im_message.message ORDER BY createTime DESC LIMIT ?";
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM im_message.message ORDER BY createTime DESC LIMIT ?";
         List<Message> result = new ArrayList<>();
 
-        try (Connection conn = clickHouseDataSource.getConnection();
+        try (Connection conn = clickHouseReaderDataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, limit);
@@ -455,6 +1036,7 @@ public class MessageService {
                     result.add(MessageConverter.resultSetToMessage(rs));
                 }
             }
+            overlayMessageStatus(conn, result);
 
             log.info("Query recent messages, limit: {}, result size: {}", limit, result.size());
 
@@ -468,62 +1050,100 @@ public class MessageService {
     /**
      * 根据发送者ID查询消息
      *
+     * 需要 content 等投影中没有的列，不命中 proj_from_id_summary，由 idx_from_id 跳数索引过滤；
+     * 只需要摘要时使用 getMessageSummariesByFromId
+     * 写入时 createTime 与 msgTime 相同，排序结果与按 createTime 一致
+     *
      * @param fromId 发送者ID
      * @param limit  限制数量
      * @return 消息列表
      */
     public List<Message> getMessagesByFromId(long fromId, int limit) {
-        String sql = "SELECT * FROM im_message.message WHERE fromId = ? ORDER BY createTime DESC LIMIT ?";
-        List<Message> result = new ArrayList<>();
-
-        try (Connection conn = clickHouseDataSource.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setLong(1, fromId);
-            pstmt.setInt(2, limit);
-
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    result.add(MessageConverter.resultSetToMessage(rs));
-                }
-            }
-
-            log.info("Query messages by fromId: {}, limit: {}, result size: {}", fromId, limit, result.size());
-
-        } catch (SQLException e) {
-            log.error("Error querying messages by fromId from ClickHouse", e);
-        }
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM im_message.message " +
+                "WHERE fromId = ? ORDER BY msgTime DESC LIMIT ?";
+        List<Message> result = queryMessagesByUserId(sql, fromId, limit, false);
+        log.info("Query messages by fromId: {}, limit: {}, result size: {}", fromId, limit, result.size());
+        return result;
+    }
 
+    /**
+     * 根据发送者ID查询消息摘要（不含消息内容）
+     *
+     * 摘要列都在 proj_from_id_summary 投影中，按 msgTime 排序直接命中 (fromId, msgTime) 有序数据
+     *
+     * @param fromId 发送者ID
+     * @param limit  限制数量
+     * @return 消息摘要列表
+     */
+    public List<Message> getMessageSummariesByFromId(long fromId, int limit) {
+        String sql = "SELECT " + MESSAGE_SUMMARY_COLUMNS + " FROM im_message.message " +
+                "WHERE fromId = ? ORDER BY msgTime DESC LIMIT ?";
+        List<Message> result = queryMessagesByUserId(sql, fromId, limit, true);
+        log.info("Query message summaries by fromId: {}, limit: {}, result size: {}", fromId, limit, result.size());
         return result;
     }
 
     /**
      * 根据联系人ID查询消息
      *
+     * 表中没有 contactId 列，联系人即接收者 toId（由 idx_to_id 跳数索引加速）
+     *
      * @param contactId 联系人ID
      * @param limit     限制数量
      * @return 消息列表
      */
     public List<Message> getMessagesByContactId(long contactId, int limit) {
-        String sql = "SELECT * FROM im_message.message WHERE contactId = ? ORDER BY createTime DESC LIMIT ?";
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM im_message.message " +
+                "WHERE toId = ? ORDER BY msgTime DESC LIMIT ?";
+        List<Message> result = queryMessagesByUserId(sql, contactId, limit, false);
+        log.info("Query messages by contactId: {}, limit: {}, result size: {}", contactId, limit, result.size());
+        return result;
+    }
+
+    /**
+     * 根据联系人ID查询消息摘要（不含消息内容）
+     *
+     * @param contactId 联系人ID
+     * @param limit     限制数量
+     * @return 消息摘要列表
+     */
+    public List<Message> getMessageSummariesByContactId(long contactId, int limit) {
+        String sql = "SELECT " + MESSAGE_SUMMARY_COLUMNS + " FROM im_message.message " +
+                "WHERE toId = ? ORDER BY msgTime DESC LIMIT ?";
+        List<Message> result = queryMessagesByUserId(sql, contactId, limit, true);
+        log.info("Query message summaries by contactId: {}, limit: {}, result size: {}", contactId, limit, result.size());
+        return result;
+    }
+
+    /**
+     * 执行按用户ID过滤的消息查询
+     *
+     * @param sql     SQL语句（参数：用户ID, limit）
+     * @param userId  用户ID
+     * @param limit   限制数量
+     * @param summary 是否只转换摘要列
+     * @return 消息列表
+     */
+    private List<Message> queryMessagesByUserId(String sql, long userId, int limit, boolean summary) {
         List<Message> result = new ArrayList<>();
 
-        try (Connection conn = clickHouseDataSource.getConnection();
+        try (Connection conn = clickHouseReaderDataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            pstmt.setLong(1, contactId);
+            pstmt.setLong(1, userId);
             pstmt.setInt(2, limit);
 
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    result.add(MessageConverter.resultSetToMessage(rs));
+                    result.add(summary
+                            ? MessageConverter.resultSetToMessageSummary(rs)
+                            : MessageConverter.resultSetToMessage(rs));
                 }
             }
-
-            log.info("Query messages by contactId: {}, limit: {}, result size: {}", contactId, limit, result.size());
+            overlayMessageStatus(conn, result);
 
         } catch (SQLException e) {
-            log.error("Error querying messages by contactId from ClickHouse", e);
+            log.error("Error querying messages by userId from ClickHouse, userId: {}", userId, e);
         }
 
         return result;
@@ -538,10 +1158,11 @@ public class MessageService {
      * @return 消息列表
      */
     public List<Message> getMessagesByTimeRange(LocalDateTime startTime, LocalDateTime endTime, int limit) {
-        String sql = "SELECT * FROM im_message.message WHERE createTime BETWEEN ? AND ? ORDER BY createTime DESC LIMIT ?";
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM im_message.message " +
+                "WHERE createTime BETWEEN ? AND ? ORDER BY createTime DESC LIMIT ?";
         List<Message> result = new ArrayList<>();
 
-        try (Connection conn = clickHouseDataSource.getConnection();
+        try (Connection conn = clickHouseReaderDataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setTimestamp(1, Timestamp.valueOf(startTime));
@@ -553,6 +1174,7 @@ public class MessageService {
                     result.add(MessageConverter.resultSetToMessage(rs));
                 }
             }
+            overlayMessageStatus(conn, result);
 
             log.info("Query messages by time range: {} to {}, limit: {}, result size: {}",
                     startTime, endTime, limit, result.size());
@@ -579,7 +1201,7 @@ public class MessageService {
 
         List<Map<String, Object>> result = new ArrayList<>();
 
-        try (Connection conn = clickHouseDataSource.getConnection();
+        try (Connection conn = clickHouseReaderDataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, days);
@@ -617,7 +1239,7 @@ public class MessageService {
 
         List<Map<String, Object>> result = new ArrayList<>();
 
-        try (Connection conn = clickHouseDataSource.getConnection();
+        try (Connection conn = clickHouseReaderDataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, limit);
@@ -641,17 +1263,38 @@ public class MessageService {
     }
 
     /**
-     * 执行自定义SQL查询
+     * 执行自定义SQL查询（使用默认的查询限制）
      *
      * @param sql 自定义SQL语句
      * @return 查询结果
      */
     public List<Map<String, Object>> executeCustomQuery(String sql) {
+        return executeCustomQuery(sql, null, null, null);
+    }
+
+    /**
+     * 执行自定义SQL查询
+     *
+     * 使用分析专用连接池（clickHouseAnalyticsDataSource），并追加查询级资源限制，
+     * 单个查询无法长期占用连接或压垮 ClickHouse 集群
+     *
+     * @param sql              自定义SQL语句
+     * @param maxRowsToRead    最多读取行数，null 使用默认值，不能超过配置上限
+     * @param maxExecutionTime 最长执行时间(秒)，null 使用默认值，不能超过配置上限
+     * @param maxMemoryUsage   最大内存(字节)，null 使用默认值，不能超过配置上限
+     * @return 查询结果
+     */
+    public List<Map<String, Object>> executeCustomQuery(String sql, Long maxRowsToRead,
+                                                        Integer maxExecutionTime, Long maxMemoryUsage) {
+        CustomQuery query = prepareCustomQuery(sql, maxRowsToRead, maxExecutionTime, maxMemoryUsage);
+        String queryTag = query.getQueryTag();
+        String guardedSql = query.getGuardedSql();
         List<Map<String, Object>> result = new ArrayList<>();
+        long startTime = System.currentTimeMillis();
 
-        try (Connection conn = clickHouseDataSource.getConnection();
+        try (Connection conn = clickHouseAnalyticsDataSource.getConnection();
              Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+             ResultSet rs = stmt.executeQuery(guardedSql)) {
 
             ResultSetMetaData metaData = rs.getMetaData();
             int columnCount = metaData.getColumnCount();
@@ -664,12 +1307,270 @@ public class MessageService {
                 result.add(row);
             }
 
-            log.info("Execute custom query, result size: {}", result.size());
+            queryMonitorService.record(queryTag, sql, System.currentTimeMillis() - startTime, result.size(), null);
 
         } catch (SQLException e) {
+            queryMonitorService.record(queryTag, sql, System.currentTimeMillis() - startTime, result.size(), e.getMessage());
             log.error("Error executing custom query from ClickHouse: {}", sql, e);
+            throw new RuntimeException("ClickHouse custom query failed: " + e.getMessage(), e);
         }
 
         return result;
     }
+
+    /**
+     * 校验自定义SQL并追加查询级资源限制（见 applyCustomQueryGuardrails）
+     *
+     * 流式查询需要在开始输出响应之前调用：校验失败时还可以返回 400，而不是被截断的 200 响应
+     *
+     * @throws IllegalArgumentException SQL 包含 SETTINGS/FORMAT 子句或注释
+     */
+    public CustomQuery prepareCustomQuery(String sql, Long maxRowsToRead, Integer maxExecutionTime, Long maxMemoryUsage) {
+        String queryTag = UUID.randomUUID().toString();
+        String guardedSql = applyCustomQueryGuardrails(sql, queryTag, maxRowsToRead, maxExecutionTime, maxMemoryUsage);
+        return new CustomQuery(sql, guardedSql, queryTag);
+    }
+
+    /**
+     * 为自定义SQL追加查询级资源限制
+     *
+     * 追加的 SETTINGS：
+     * - max_rows_to_read：最多读取行数
+     * - max_execution_time：最长执行时间
+     * - max_memory_usage：最大内存
+     * - log_comment：查询标识，用于在 system.query_log 中查看读取行数等服务端统计
+     *
+     * readonly 由分析连接池统一设置（readonly=2），这里不允许用户SQL自带 SETTINGS 绕过限制
+     *
+     * @return 追加限制后的SQL
+     */
+    private String applyCustomQueryGuardrails(String sql, String queryTag, Long maxRowsToRead,
+                                              Integer maxExecutionTime, Long maxMemoryUsage) {
+        String trimmedSql = sql.trim();
+        while (trimmedSql.endsWith(";")) {
+            trimmedSql = trimmedSql.substring(0, trimmedSql.length() - 1).trim();
+        }
+
+        if (CUSTOM_QUERY_FORBIDDEN_CLAUSE.matcher(stripQuoted(trimmedSql)).find()) {
+            throw new IllegalArgumentException("SETTINGS/FORMAT clauses are not allowed in custom queries");
+        }
+
+        long rowsToRead = clamp(maxRowsToRead, customQueryMaxRowsToRead);
+        long executionTime = clamp(maxExecutionTime == null ? null : maxExecutionTime.longValue(), customQueryMaxExecutionTime);
+        long memoryUsage = clamp(maxMemoryUsage, customQueryMaxMemoryUsage);
+
+        // SETTINGS 单独一行：用户SQL中已经拒绝了注释，这里再换行，保证限制不会和用户SQL的最后一行合并
+        return trimmedSql +
+                "\nSETTINGS max_rows_to_read = " + rowsToRead +
+                ", max_execution_time = " + executionTime +
+                ", max_memory_usage = " + memoryUsage +
+                ", log_comment = '" + ClickHouseQueryMonitorService.LOG_COMMENT_PREFIX + queryTag + "'";
+    }
+
+    /**
+     * 将字符串字面量和带引号的标识符替换为空格，返回只包含SQL结构的文本
+     *
+     * 出现注释（--、#、/*）时拒绝：追加在后面的 SETTINGS 可能被注释掉，从而绕过资源限制
+     */
+    private static String stripQuoted(String sql) {
+        StringBuilder code = new StringBuilder(sql.length());
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == '\\' && i + 1 < sql.length()) {
+                    // 转义字符，跳过下一个字符
+                    i++;
+                    code.append("  ");
+                } else if (c == quote) {
+                    if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                        // 连续两个引号表示引号本身
+                        i++;
+                        code.append("  ");
+                    } else {
+                        quote = 0;
+                        code.append(c);
+                    }
+                } else {
+                    code.append(' ');
+                }
+                continue;
+            }
+
+            if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+                code.append(c);
+            } else if (c == '#' || (c == '-' && i + 1 < sql.length() && sql.charAt(i + 1) == '-')
+                    || (c == '/' && i + 1 < sql.length() && sql.charAt(i + 1) == '*')) {
+                throw new IllegalArgumentException("Comments are not allowed in custom queries");
+            } else {
+                code.append(c);
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("Unterminated quote in custom query");
+        }
+        return code.toString();
+    }
+
+    /**
+     * 请求值为空或非正数时使用上限，否则取两者较小值
+     */
+    private static long clamp(Long requested, long limit) {
+        if (requested == null || requested <= 0) {
+            return limit;
+        }
+        return Math.min(requested, limit);
+    }
+
+    // ========== 流式查询（NDJSON） ==========
+
+    /**
+     * 流式输出最近的消息（NDJSON，每行一条消息）
+     *
+     * 与 getRecentMessages 不同，结果不会在内存中聚合成 List，
+     * ClickHouse JDBC 驱动按 HTTP 响应流逐行读取，读一行写一行，内存占用与行数无关
+     *
+     * @param limit 限制数量
+     * @param out   输出流（HTTP 响应体）
+     * @return 输出的行数
+     */
+    public long streamRecentMessages(int limit, OutputStream out) {
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM im_message.message ORDER BY createTime DESC LIMIT ?";
+
+        try (Connection conn = clickHouseReaderDataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, limit);
+
+            long rows = writeMessagesAsNdjson(pstmt, out);
+            log.info("Stream recent messages, limit: {}, rows: {}", limit, rows);
+            return rows;
+
+        } catch (Exception e) {
+            log.error("Error streaming recent messages from ClickHouse", e);
+            throw new RuntimeException("ClickHouse stream query failed", e);
+        }
+    }
+
+    /**
+     * 流式输出时间范围内的消息（NDJSON，每行一条消息）
+     *
+     * @param startTime 开始时间
+     * @param endTime   结束时间
+     * @param limit     限制数量
+     * @param out       输出流（HTTP 响应体）
+     * @return 输出的行数
+     */
+    public long streamMessagesByTimeRange(LocalDateTime startTime, LocalDateTime endTime, int limit, OutputStream out) {
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM im_message.message " +
+                "WHERE createTime BETWEEN ? AND ? ORDER BY createTime DESC LIMIT ?";
+
+        try (Connection conn = clickHouseReaderDataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setTimestamp(1, Timestamp.valueOf(startTime));
+            pstmt.setTimestamp(2, Timestamp.valueOf(endTime));
+            pstmt.setInt(3, limit);
+
+            long rows = writeMessagesAsNdjson(pstmt, out);
+            log.info("Stream messages by time range: {} to {}, limit: {}, rows: {}",
+                    startTime, endTime, limit, rows);
+            return rows;
+
+        } catch (Exception e) {
+            log.error("Error streaming messages by time range from ClickHouse", e);
+            throw new RuntimeException("ClickHouse stream query failed", e);
+        }
+    }
+
+    /**
+     * 流式执行自定义SQL查询（NDJSON，每行一个 JSON 对象）
+     *
+     * 与 executeCustomQuery 一样使用分析专用连接池和查询级资源限制
+     * 行对象在循环中复用，只保留当前行的数据
+     *
+     * @param query 已校验的查询（prepareCustomQuery，在开始输出响应之前调用）
+     * @param out   输出流（HTTP 响应体）
+     * @return 输出的行数
+     */
+    public long streamCustomQuery(CustomQuery query, OutputStream out) {
+        String sql = query.getSql();
+        String queryTag = query.getQueryTag();
+        String guardedSql = query.getGuardedSql();
+        long startTime = System.currentTimeMillis();
+        long rows = 0;
+
+        try (Connection conn = clickHouseAnalyticsDataSource.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(guardedSql)) {
+
+            ResultSetMetaData metaData = rs.getMetaData();
+            int columnCount = metaData.getColumnCount();
+            String[] columnNames = new String[columnCount];
+            for (int i = 1; i <= columnCount; i++) {
+                columnNames[i - 1] = metaData.getColumnName(i);
+            }
+
+            Map<String, Object> row = new LinkedHashMap<>();
+            while (rs.next()) {
+                row.clear();
+                for (int i = 1; i <= columnCount; i++) {
+                    row.put(columnNames[i - 1], rs.getObject(i));
+                }
+                writeNdjsonLine(out, row);
+                if (++rows % STREAM_FLUSH_ROWS == 0) {
+                    out.flush();
+                }
+            }
+            out.flush();
+
+            queryMonitorService.record(queryTag, sql, System.currentTimeMillis() - startTime, rows, null);
+            return rows;
+
+        } catch (Exception e) {
+            queryMonitorService.record(queryTag, sql, System.currentTimeMillis() - startTime, rows, e.getMessage());
+            log.error("Error streaming custom query from ClickHouse: {}", sql, e);
+            throw new RuntimeException("ClickHouse stream query failed", e);
+        }
+    }
+
+    /**
+     * 逐行读取 ResultSet 并以 NDJSON 写出 Message
+     *
+     * 每 STREAM_FLUSH_ROWS 行覆盖一次状态（overlayMessageStatus）后写出，内存占用仍与总行数无关。
+     * 结果集还在读取时不能在同一连接上查询，状态查询使用单独的连接
+     */
+    private long writeMessagesAsNdjson(PreparedStatement pstmt, OutputStream out) throws SQLException, IOException {
+        long rows = 0;
+        List<Message> pending = new ArrayList<>(STREAM_FLUSH_ROWS);
+        try (Connection statusConn = clickHouseReaderDataSource.getConnection();
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                pending.add(MessageConverter.resultSetToMessage(rs));
+                if (pending.size() == STREAM_FLUSH_ROWS) {
+                    rows += writeMessageChunk(statusConn, pending, out);
+                }
+            }
+            rows += writeMessageChunk(statusConn, pending, out);
+        }
+        return rows;
+    }
+
+    private long writeMessageChunk(Connection statusConn, List<Message> messages, OutputStream out)
+            throws SQLException, IOException {
+        overlayMessageStatus(statusConn, messages);
+        for (Message message : messages) {
+            writeNdjsonLine(out, message);
+        }
+        out.flush();
+        int written = messages.size();
+        messages.clear();
+        return written;
+    }
+
+    private static void writeNdjsonLine(OutputStream out, Object row) throws IOException {
+        out.write(JSON.toJSONBytes(row));
+        out.write('\n');
+    }
 }
@@ -0,0 +1,292 @@
+package io.bluemacaw.msgsvr.service;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ReturnListener;
+import io.bluemacaw.msgsvr.config.RabbitmqConfig;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MQ 消费失败重试服务
+ *
+ * 消费失败时不再 nack 重新入队（毒消息/下游故障时会变成空转的热循环），而是：
+ * 1. 重试次数（x-retry-count）+1，按次数选择延迟级别，发送到重试交换机，
+ *    在对应的 TTL 队列中等待后死信回原队列（见 RabbitmqConfig.retryDeclarables）
+ * 2. 超过最大重试次数的消息发送到停放队列，记录原队列（x-original-queue）和最后一次失败原因
+ * 3. 等待 Broker 的发布确认（publisher-confirm-type: correlated）后由消费者确认原消息；
+ *    发送失败、Broker 拒绝或确认超时时消费者退回到 nack 重新入队
+ *
+ * 停放的消息通过 replayParked 重新投递到原队列（重试次数清零）
+ */
+@Slf4j
+@Service
+public class MqRetryService {
+
+    public static final String RETRY_COUNT_HEADER = "x-retry-count";
+    public static final String ORIGINAL_QUEUE_HEADER = "x-original-queue";
+    public static final String LAST_ERROR_HEADER = "x-last-error";
+
+    /**
+     * 失败原因最大长度
+     */
+    private static final int MAX_ERROR_LENGTH = 512;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Resource
+    private RabbitmqConfig rabbitmqConfig;
+
+    private final AtomicLong retriedCount = new AtomicLong(0);
+    private final AtomicLong parkedCount = new AtomicLong(0);
+    private final AtomicLong replayedCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    /**
+     * 消息已经重试的次数
+     */
+    public static int getRetryCount(Message message) {
+        Object value = message.getMessageProperties().getHeader(RETRY_COUNT_HEADER);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.toString());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 将消费失败的消息发送到延迟队列，超过最大重试次数时发送到停放队列
+     *
+     * @param message 消费失败的消息
+     * @param cause   失败原因（可为 null）
+     * @return Broker 是否已确认；确认后调用方确认原消息，否则调用方 nack 重新入队
+     */
+    public boolean retryOrPark(Message message, Throwable cause) {
+        String queue = message.getMessageProperties().getConsumerQueue();
+        if (queue == null || queue.isEmpty()) {
+            return false;
+        }
+
+        int retryCount = getRetryCount(message) + 1;
+        MessageBuilder builder = MessageBuilder.fromClonedMessage(message)
+                .setDeliveryMode(MessageDeliveryMode.PERSISTENT)
+                .setHeader(RETRY_COUNT_HEADER, retryCount)
+                .setHeader(ORIGINAL_QUEUE_HEADER, queue)
+                .setHeader(LAST_ERROR_HEADER, describe(cause));
+
+        try {
+            if (retryCount > rabbitmqConfig.getRetryMaxAttempts()) {
+                sendConfirmed("", rabbitmqConfig.getQueueRetryParking(), builder.build());
+                parkedCount.incrementAndGet();
+                log.warn("Message parked after {} attempts, queue: {}, error: {}", retryCount - 1, queue, describe(cause));
+            } else {
+                int tier = rabbitmqConfig.resolveRetryTier(retryCount);
+                builder.setHeader(RabbitmqConfig.RETRY_TIER_HEADER, String.valueOf(tier));
+                // 路由键为原队列名，延迟到期后死信到默认交换机时按该路由键回到原队列
+                sendConfirmed(rabbitmqConfig.getExchangeRetry(), queue, builder.build());
+                retriedCount.incrementAndGet();
+                log.info("Message scheduled for retry {} in {} ms, queue: {}",
+                        retryCount, rabbitmqConfig.getRetryDelay(tier), queue);
+            }
+            return true;
+
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            failedCount.incrementAndGet();
+            log.error("Failed to send message to retry/parking queue, queue: {}", queue, e);
+            return false;
+        }
+    }
+
+    /**
+     * 发送并等待 Broker 确认；send 返回只表示已写入 socket，Broker 崩溃时消息可能丢失
+     */
+    private void sendConfirmed(String exchange, String routingKey, Message message) throws Exception {
+        CorrelationData correlationData = new CorrelationData();
+        rabbitTemplate.send(exchange, routingKey, message, correlationData);
+        CorrelationData.Confirm confirm = correlationData.getFuture()
+                .get(rabbitmqConfig.getRetryConfirmTimeout(), TimeUnit.MILLISECONDS);
+        if (!confirm.isAck()) {
+            throw new AmqpException("Broker nacked message, exchange: " + exchange
+                    + ", routingKey: " + routingKey + ", reason: " + confirm.getReason());
+        }
+    }
+
+    /**
+     * 将停放的消息重新投递到原队列（重试次数清零）
+     *
+     * 从停放队列逐条取出（basicGet，手动确认），发布到原队列并等到 Broker 确认后再确认停放的消息：
+     * - 发布使用 mandatory，无法路由（原队列已删除，如 AnonymousQueue 的未读队列）时 Broker 退回消息
+     * - 原队列先被动声明（queueDeclarePassive）检查是否存在，不存在或被退回的消息放回停放队列末尾（unroutable）
+     * - 确认超时或被拒绝时关闭 Channel，未确认的停放消息由 Broker 放回停放队列
+     * 指定 originalQueue 时，其他队列的消息放回停放队列末尾
+     *
+     * @param limit         最多处理的消息数
+     * @param originalQueue 只重投该队列的消息，null 表示全部
+     * @return 重投结果
+     */
+    public Map<String, Object> replayParked(int limit, String originalQueue) {
+        String parkingQueue = rabbitmqConfig.getQueueRetryParking();
+
+        Map<String, Boolean> queueExists = new HashMap<>();
+
+        Map<String, Object> result = rabbitTemplate.execute(channel -> {
+            int replayed = 0;
+            int skipped = 0;
+            int unroutable = 0;
+            Map<String, Integer> byQueue = new LinkedHashMap<>();
+
+            AtomicBoolean returned = new AtomicBoolean(false);
+            ReturnListener returnListener = (replyCode, replyText, exchange, routingKey, properties, body) -> {
+                returned.set(true);
+                log.warn("Replayed message returned, routingKey: {}, reply: {} {}", routingKey, replyCode, replyText);
+            };
+            channel.confirmSelect();
+            channel.addReturnListener(returnListener);
+            try {
+                for (int i = 0; i < limit; i++) {
+                    GetResponse response = channel.basicGet(parkingQueue, false);
+                    if (response == null) {
+                        break;
+                    }
+
+                    AMQP.BasicProperties props = response.getProps();
+                    Map<String, Object> headers = props.getHeaders() != null
+                            ? new HashMap<>(props.getHeaders()) : new HashMap<>();
+                    Object target = headers.get(ORIGINAL_QUEUE_HEADER);
+                    long deliveryTag = response.getEnvelope().getDeliveryTag();
+
+                    if (target == null || (originalQueue != null && !originalQueue.equals(target.toString()))) {
+                        // 不属于本次重投的消息放回停放队列末尾
+                        publishConfirmed(channel, returned, parkingQueue, props, response.getBody());
+                        channel.basicAck(deliveryTag, false);
+                        skipped++;
+                        continue;
+                    }
+
+                    String targetQueue = target.toString();
+                    headers.remove(RETRY_COUNT_HEADER);
+                    headers.remove(RabbitmqConfig.RETRY_TIER_HEADER);
+                    boolean routed = queueExists.computeIfAbsent(targetQueue, this::queueExists)
+                            && publishConfirmed(channel, returned, targetQueue,
+                                    props.builder().headers(headers).build(), response.getBody());
+                    if (!routed) {
+                        // 原队列不存在：放回停放队列末尾，保留原来的重试信息
+                        publishConfirmed(channel, returned, parkingQueue, props, response.getBody());
+                        channel.basicAck(deliveryTag, false);
+                        unroutable++;
+                        log.warn("Parked message not replayed, original queue {} does not exist", targetQueue);
+                        continue;
+                    }
+                    channel.basicAck(deliveryTag, false);
+                    replayed++;
+                    byQueue.merge(targetQueue, 1, Integer::sum);
+                }
+            } finally {
+                channel.removeReturnListener(returnListener);
+            }
+
+            Map<String, Object> map = new HashMap<>();
+            map.put("replayed", replayed);
+            map.put("skipped", skipped);
+            map.put("unroutable", unroutable);
+            map.put("byQueue", byQueue);
+            map.put("remaining", channel.messageCount(parkingQueue));
+            return map;
+        });
+
+        if (result != null) {
+            replayedCount.addAndGet(((Number) result.get("replayed")).longValue());
+            log.info("Replayed parked messages: {}", result);
+        }
+        return result;
+    }
+
+    /**
+     * 通过默认交换机发布到队列（mandatory）并等待 Broker 确认
+     *
+     * @return 是否已路由到队列；被退回时返回 false
+     * @throws IOException      Broker 拒绝（Channel 已关闭）
+     * @throws TimeoutException 确认超时（Channel 已关闭）
+     */
+    private boolean publishConfirmed(Channel channel, AtomicBoolean returned, String queue,
+                                     AMQP.BasicProperties props, byte[] body) throws IOException, TimeoutException {
+        returned.set(false);
+        channel.basicPublish("", queue, true, props, body);
+        try {
+            // 无法路由的消息先退回（basic.return）再确认，等待确认返回后 returned 已是最终结果
+            channel.waitForConfirmsOrDie(rabbitmqConfig.getRetryConfirmTimeout());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for publisher confirm", e);
+        }
+        return !returned.get();
+    }
+
+    /**
+     * 被动声明检查队列是否存在（队列不存在时 Broker 关闭 Channel，所以使用单独的 Channel）
+     */
+    private boolean queueExists(String queue) {
+        try {
+            rabbitTemplate.execute(channel -> channel.queueDeclarePassive(queue));
+            return true;
+        } catch (AmqpException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 获取重试统计和停放队列消息数
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("retried", retriedCount.get());
+        status.put("parked", parkedCount.get());
+        status.put("replayed", replayedCount.get());
+        status.put("sendFailed", failedCount.get());
+        status.put("maxAttempts", rabbitmqConfig.getRetryMaxAttempts());
+        status.put("parkingQueue", rabbitmqConfig.getQueueRetryParking());
+        try {
+            status.put("parkingCount", rabbitTemplate.execute(
+                    channel -> channel.messageCount(rabbitmqConfig.getQueueRetryParking())));
+        } catch (Exception e) {
+            status.put("parkingCount", null);
+            status.put("error", e.getMessage());
+        }
+        return status;
+    }
+
+    private static String describe(Throwable cause) {
+        if (cause == null) {
+            return "unknown";
+        }
+        String error = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        return error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+    }
+}
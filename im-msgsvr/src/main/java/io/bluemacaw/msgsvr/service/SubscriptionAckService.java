@@ -0,0 +1,279 @@
+package io.bluemacaw.msgsvr.service;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 已读/同步进度上报的合并写入
+ *
+ * 客户端的已读回执和同步游标是大量很小的更新（快速翻过 50 个频道就是 50 次上报），
+ * 这里在内存中按 (user, channel) 和 (user, device, channel) 合并，只保留最大版本号，
+ * 定时（mongodb.ack.flush-interval）用无序 bulkWrite 的 $max 一次写入：
+ * - user_subscription.last_read_version：updateOne，不存在的订阅不创建
+ * - device_subscription.last_read_version / last_sync_version：upsert，设备订阅在首次上报时创建
+ *
+ * $max 保证乱序、重复的上报不会让进度回退。
+ * 合并中的进度在进程退出前写入（@PreDestroy），异常退出时最多丢失一个刷新间隔的上报，
+ * 客户端下次上报时会带上最新进度
+ */
+@Slf4j
+@Service
+public class SubscriptionAckService {
+
+    private static final String USER_SUBSCRIPTION_COLLECTION = "user_subscription";
+    private static final String DEVICE_SUBSCRIPTION_COLLECTION = "device_subscription";
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Resource
+    private UnreadCountService unreadCountService;
+
+    /**
+     * 待写入的条目数超过该值时由上报线程立即写入
+     */
+    @Value("${mongodb.ack.max-pending:50000}")
+    private int maxPending;
+
+    /**
+     * (userId, channelId) -> 用户级已读版本号
+     */
+    private final Map<UserChannelKey, Long> pendingUserReads = new ConcurrentHashMap<>();
+
+    /**
+     * (userId, deviceId, channelId) -> 设备级已读/同步版本号
+     */
+    private final Map<DeviceChannelKey, DeviceProgress> pendingDeviceAcks = new ConcurrentHashMap<>();
+
+    private final AtomicLong receivedCount = new AtomicLong(0);
+    private final AtomicLong writtenCount = new AtomicLong(0);
+    private final AtomicLong flushCount = new AtomicLong(0);
+    private final AtomicLong failedFlushCount = new AtomicLong(0);
+
+    private static final class UserChannelKey {
+        private final Long userId;
+        private final String channelId;
+
+        private UserChannelKey(Long userId, String channelId) {
+            this.userId = userId;
+            this.channelId = channelId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof UserChannelKey)) {
+                return false;
+            }
+            UserChannelKey that = (UserChannelKey) o;
+            return userId.equals(that.userId) && channelId.equals(that.channelId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, channelId);
+        }
+    }
+
+    private static final class DeviceChannelKey {
+        private final Long userId;
+        private final String deviceId;
+        private final String channelId;
+
+        private DeviceChannelKey(Long userId, String deviceId, String channelId) {
+            this.userId = userId;
+            this.deviceId = deviceId;
+            this.channelId = channelId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DeviceChannelKey)) {
+                return false;
+            }
+            DeviceChannelKey that = (DeviceChannelKey) o;
+            return userId.equals(that.userId) && deviceId.equals(that.deviceId) && channelId.equals(that.channelId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, deviceId, channelId);
+        }
+    }
+
+    /**
+     * 设备级进度（null 表示没有上报）
+     */
+    private static final class DeviceProgress {
+        private final Long lastReadVersion;
+        private final Long lastSyncVersion;
+
+        private DeviceProgress(Long lastReadVersion, Long lastSyncVersion) {
+            this.lastReadVersion = lastReadVersion;
+            this.lastSyncVersion = lastSyncVersion;
+        }
+
+        private DeviceProgress merge(DeviceProgress other) {
+            return new DeviceProgress(max(lastReadVersion, other.lastReadVersion), max(lastSyncVersion, other.lastSyncVersion));
+        }
+
+        private static Long max(Long a, Long b) {
+            if (a == null) {
+                return b;
+            }
+            return b == null ? a : Math.max(a, b);
+        }
+    }
+
+    /**
+     * 上报已读/同步进度（只合并到内存，定时写入）
+     *
+     * @param userId          用户ID
+     * @param deviceId        设备ID，为空时只更新用户级已读
+     * @param channelId       频道ID
+     * @param lastReadVersion 已读版本号，可为 null
+     * @param lastSyncVersion 设备同步版本号，可为 null
+     */
+    public void ack(Long userId, String deviceId, String channelId, Long lastReadVersion, Long lastSyncVersion) {
+        if (userId == null || channelId == null || (lastReadVersion == null && lastSyncVersion == null)) {
+            return;
+        }
+        receivedCount.incrementAndGet();
+
+        // 设备已读同时推进用户级已读，未读数立即更新（不等待写入）
+        if (lastReadVersion != null) {
+            pendingUserReads.merge(new UserChannelKey(userId, channelId), lastReadVersion, Math::max);
+            unreadCountService.onRead(userId, channelId, lastReadVersion);
+        }
+        if (deviceId != null && !deviceId.isEmpty()) {
+            pendingDeviceAcks.merge(new DeviceChannelKey(userId, deviceId, channelId),
+                    new DeviceProgress(lastReadVersion, lastSyncVersion), DeviceProgress::merge);
+        }
+
+        if (pendingUserReads.size() + pendingDeviceAcks.size() >= maxPending) {
+            flush();
+        }
+    }
+
+    /**
+     * 将合并的进度写入 MongoDB
+     */
+    @Scheduled(fixedDelayString = "${mongodb.ack.flush-interval:1000}")
+    public synchronized void flush() {
+        Map<UserChannelKey, Long> userReads = drain(pendingUserReads);
+        Map<DeviceChannelKey, DeviceProgress> deviceAcks = drain(pendingDeviceAcks);
+        if (userReads.isEmpty() && deviceAcks.isEmpty()) {
+            return;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            if (!userReads.isEmpty()) {
+                BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, USER_SUBSCRIPTION_COLLECTION);
+                for (Map.Entry<UserChannelKey, Long> entry : userReads.entrySet()) {
+                    UserChannelKey key = entry.getKey();
+                    bulkOps.updateOne(
+                            Query.query(Criteria.where("user_id").is(key.userId).and("channel_id").is(key.channelId)),
+                            new Update().max("last_read_version", entry.getValue())
+                                    .set("last_read_time", now)
+                                    .set("update_time", now));
+                }
+                bulkOps.execute();
+            }
+
+            if (!deviceAcks.isEmpty()) {
+                BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, DEVICE_SUBSCRIPTION_COLLECTION);
+                for (Map.Entry<DeviceChannelKey, DeviceProgress> entry : deviceAcks.entrySet()) {
+                    DeviceChannelKey key = entry.getKey();
+                    DeviceProgress progress = entry.getValue();
+                    Update update = new Update()
+                            .setOnInsert("create_time", now)
+                            .set("update_time", now);
+                    if (progress.lastReadVersion != null) {
+                        update.max("last_read_version", progress.lastReadVersion);
+                    }
+                    if (progress.lastSyncVersion != null) {
+                        update.max("last_sync_version", progress.lastSyncVersion);
+                    }
+                    bulkOps.upsert(
+                            Query.query(Criteria.where("user_id").is(key.userId)
+                                    .and("device_id").is(key.deviceId)
+                                    .and("channel_id").is(key.channelId)),
+                            update);
+                }
+                bulkOps.execute();
+            }
+
+            writtenCount.addAndGet(userReads.size() + deviceAcks.size());
+            flushCount.incrementAndGet();
+            log.debug("已读/同步进度已写入: userReads={}, deviceAcks={}", userReads.size(), deviceAcks.size());
+
+        } catch (Exception e) {
+            // 放回待写入（$max 写入是幂等的，已经成功的部分重复写入不影响结果）
+            failedFlushCount.incrementAndGet();
+            userReads.forEach((key, value) -> pendingUserReads.merge(key, value, Math::max));
+            deviceAcks.forEach((key, value) -> pendingDeviceAcks.merge(key, value, DeviceProgress::merge));
+            log.error("已读/同步进度写入失败，下次重试: userReads={}, deviceAcks={}", userReads.size(), deviceAcks.size(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * 获取合并写入统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long received = receivedCount.get();
+        long written = writtenCount.get();
+        stats.put("received", received);
+        stats.put("written", written);
+        stats.put("flushes", flushCount.get());
+        stats.put("failedFlushes", failedFlushCount.get());
+        stats.put("pendingUserReads", pendingUserReads.size());
+        stats.put("pendingDeviceAcks", pendingDeviceAcks.size());
+        stats.put("coalesceRatio", written > 0 ? String.format("%.2f", (double) received / written) : "N/A");
+        return stats;
+    }
+
+    /**
+     * 逐个移除并返回当前的待写入条目（移除是原子的，移除之后的上报进入下一批）
+     */
+    private static <K, V> Map<K, V> drain(Map<K, V> pending) {
+        Map<K, V> drained = new HashMap<>();
+        List<K> keys = new ArrayList<>(pending.keySet());
+        for (K key : keys) {
+            V value = pending.remove(key);
+            if (value != null) {
+                drained.put(key, value);
+            }
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,416 @@
+package io.bluemacaw.msgsvr.service;
+
+import io.bluemacaw.msgsvr.entity.UserSubscription;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 未读数服务
+ *
+ * 频道未读数 = min(Channel.messageVersion, leaveVersion) - max(lastReadVersion, joinVersion)，小于 0 时为 0
+ *
+ * 按用户在内存中维护每个订阅的版本号和未读总数，首次查询时从 MongoDB 加载（订阅 + 频道版本号两次查询），之后增量更新：
+ * - 消息写入（Message change stream，每个实例一个临时队列）：频道版本号前进，订阅了该频道的已加载用户未读数增加
+ * - 已读上报（SubscriptionAckService.ack）：lastReadVersion 前进，未读数减少
+ * - 订阅变更（UserSubscription change stream，每个实例一个临时队列）：其他实例收到的已读上报、
+ *   加入/退出频道同步到本实例
+ * 查询一个用户的所有未读数只遍历该用户的订阅，不访问数据库。
+ *
+ * 增量更新可能漏掉的变化（加载期间写入的消息、MQ 事件丢失）由定时对账（mongodb.unread.reconcile-interval）按数据库重新计算修正；
+ * 对账时同时淘汰超过 mongodb.unread.idle-minutes 未查询的用户
+ */
+@Slf4j
+@Service
+public class UnreadCountService {
+
+    private static final String USER_SUBSCRIPTION_COLLECTION = "user_subscription";
+    private static final String CHANNEL_COLLECTION = "channel";
+
+    /**
+     * 对账时每批加载的用户数
+     */
+    private static final int RECONCILE_BATCH_SIZE = 500;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Value("${mongodb.unread.max-users:100000}")
+    private int maxUsers;
+
+    @Value("${mongodb.unread.idle-minutes:30}")
+    private long idleMinutes;
+
+    /**
+     * 已加载的用户
+     */
+    private final Map<Long, UserUnread> users = new ConcurrentHashMap<>();
+
+    /**
+     * channelId -> 订阅了该频道的已加载用户
+     */
+    private final Map<String, Set<Long>> channelUsers = new ConcurrentHashMap<>();
+
+    private final AtomicLong loadCount = new AtomicLong(0);
+    private final AtomicLong reconcileCount = new AtomicLong(0);
+    private final AtomicLong driftCount = new AtomicLong(0);
+
+    /**
+     * 一个订阅的版本号
+     */
+    private static final class SubscriptionVersions {
+        private long channelVersion;
+        private long lastReadVersion;
+        private long joinVersion;
+        private Long leaveVersion;
+
+        private long unread() {
+            long upper = leaveVersion != null ? Math.min(channelVersion, leaveVersion) : channelVersion;
+            return Math.max(0, upper - Math.max(lastReadVersion, joinVersion));
+        }
+    }
+
+    /**
+     * 一个用户的所有订阅和未读总数（通过 synchronized 保护）
+     */
+    private static final class UserUnread {
+        private final Map<String, SubscriptionVersions> subscriptions = new HashMap<>();
+        private long total;
+        private volatile long lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * 获取用户所有频道的未读数
+     *
+     * @param userId 用户ID
+     * @return channels: 未读数大于 0 的频道（channelId -> 未读数），total: 未读总数
+     */
+    public Map<String, Object> getUnreadCounts(Long userId) {
+        UserUnread state = getOrLoad(userId);
+
+        Map<String, Long> channels = new LinkedHashMap<>();
+        long total;
+        synchronized (state) {
+            state.lastAccess = System.currentTimeMillis();
+            for (Map.Entry<String, SubscriptionVersions> entry : state.subscriptions.entrySet()) {
+                long unread = entry.getValue().unread();
+                if (unread > 0) {
+                    channels.put(entry.getKey(), unread);
+                }
+            }
+            total = state.total;
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("userId", userId);
+        result.put("channels", channels);
+        result.put("total", total);
+        return result;
+    }
+
+    /**
+     * 获取用户的未读总数
+     */
+    public long getUnreadTotal(Long userId) {
+        UserUnread state = getOrLoad(userId);
+        synchronized (state) {
+            state.lastAccess = System.currentTimeMillis();
+            return state.total;
+        }
+    }
+
+    /**
+     * 频道有新消息（Message change stream）
+     *
+     * @param channelVersions channelId -> 本次写入的最大 seq
+     */
+    public void onMessages(Map<String, Long> channelVersions) {
+        for (Map.Entry<String, Long> entry : channelVersions.entrySet()) {
+            Set<Long> userIds = channelUsers.get(entry.getKey());
+            if (userIds == null) {
+                continue;
+            }
+            for (Long userId : userIds) {
+                UserUnread state = users.get(userId);
+                if (state == null) {
+                    continue;
+                }
+                synchronized (state) {
+                    SubscriptionVersions versions = state.subscriptions.get(entry.getKey());
+                    if (versions != null && entry.getValue() > versions.channelVersion) {
+                        long before = versions.unread();
+                        versions.channelVersion = entry.getValue();
+                        state.total += versions.unread() - before;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 用户已读上报（SubscriptionAckService.ack）
+     */
+    public void onRead(Long userId, String channelId, long lastReadVersion) {
+        UserUnread state = users.get(userId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            SubscriptionVersions versions = state.subscriptions.get(channelId);
+            if (versions != null && lastReadVersion > versions.lastReadVersion) {
+                long before = versions.unread();
+                versions.lastReadVersion = lastReadVersion;
+                state.total += versions.unread() - before;
+            }
+        }
+    }
+
+    /**
+     * 订阅变更（UserSubscription change stream）：已读进度、加入/退出
+     *
+     * 本实例没有加载的用户忽略；新加入的频道以 max(joinVersion, lastReadVersion) 作为频道版本号（未读为 0），
+     * 之后的消息事件再增加，偏差由对账修正
+     */
+    public void onSubscriptions(List<UserSubscription> subscriptions) {
+        for (UserSubscription subscription : subscriptions) {
+            if (subscription.getUserId() == null || subscription.getChannelId() == null) {
+                continue;
+            }
+            UserUnread state = users.get(subscription.getUserId());
+            if (state == null) {
+                continue;
+            }
+            String channelId = subscription.getChannelId();
+            long lastReadVersion = subscription.getLastReadVersion() != null ? subscription.getLastReadVersion() : 0L;
+            long joinVersion = subscription.getJoinVersion() != null ? subscription.getJoinVersion() : 0L;
+
+            synchronized (state) {
+                SubscriptionVersions versions = state.subscriptions.get(channelId);
+                long before = 0;
+                if (versions == null) {
+                    versions = new SubscriptionVersions();
+                    versions.channelVersion = Math.max(joinVersion, lastReadVersion);
+                    state.subscriptions.put(channelId, versions);
+                    channelUsers.computeIfAbsent(channelId, k -> ConcurrentHashMap.newKeySet()).add(subscription.getUserId());
+                } else {
+                    before = versions.unread();
+                }
+                versions.lastReadVersion = Math.max(versions.lastReadVersion, lastReadVersion);
+                versions.joinVersion = joinVersion;
+                versions.leaveVersion = subscription.getLeaveVersion();
+                state.total += versions.unread() - before;
+            }
+        }
+    }
+
+    /**
+     * 定时对账：按数据库重新计算已加载用户的未读数，淘汰长时间未查询的用户
+     */
+    @Scheduled(fixedDelayString = "${mongodb.unread.reconcile-interval:300000}")
+    public void reconcile() {
+        if (users.isEmpty()) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long idleBefore = startTime - TimeUnit.MINUTES.toMillis(idleMinutes);
+        List<Long> active = new ArrayList<>();
+        int evicted = 0;
+        for (Map.Entry<Long, UserUnread> entry : users.entrySet()) {
+            if (entry.getValue().lastAccess < idleBefore) {
+                evict(entry.getKey());
+                evicted++;
+            } else {
+                active.add(entry.getKey());
+            }
+        }
+
+        long drifted = 0;
+        for (int from = 0; from < active.size(); from += RECONCILE_BATCH_SIZE) {
+            List<Long> batch = active.subList(from, Math.min(from + RECONCILE_BATCH_SIZE, active.size()));
+            try {
+                Map<Long, UserUnread> fresh = load(batch);
+                for (Long userId : batch) {
+                    drifted += merge(userId, fresh.get(userId));
+                }
+            } catch (Exception e) {
+                log.error("未读数对账失败: users={}", batch.size(), e);
+            }
+        }
+
+        reconcileCount.incrementAndGet();
+        driftCount.addAndGet(drifted);
+        log.info("未读数对账完成: users={}, evicted={}, drifted={}, cost={}ms",
+                active.size(), evicted, drifted, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * 获取未读数服务统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("cachedUsers", users.size());
+        stats.put("indexedChannels", channelUsers.size());
+        stats.put("loads", loadCount.get());
+        stats.put("reconciles", reconcileCount.get());
+        stats.put("drifted", driftCount.get());
+        return stats;
+    }
+
+    private UserUnread getOrLoad(Long userId) {
+        UserUnread state = users.get(userId);
+        if (state != null) {
+            return state;
+        }
+
+        UserUnread loaded = load(List.of(userId)).get(userId);
+        if (users.size() >= maxUsers) {
+            // 超过上限时不缓存，本次查询直接使用加载结果
+            return loaded;
+        }
+
+        UserUnread existing = users.putIfAbsent(userId, loaded);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (loaded) {
+            for (String channelId : loaded.subscriptions.keySet()) {
+                channelUsers.computeIfAbsent(channelId, k -> ConcurrentHashMap.newKeySet()).add(userId);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * 用数据库的结果修正内存状态，版本号取两者中较大的值（内存中的已读可能还没有写入数据库）
+     *
+     * @return 未读总数是否有偏差（0/1）
+     */
+    private int merge(Long userId, UserUnread fresh) {
+        UserUnread state = users.get(userId);
+        if (state == null || fresh == null) {
+            return 0;
+        }
+
+        synchronized (state) {
+            for (Map.Entry<String, SubscriptionVersions> entry : fresh.subscriptions.entrySet()) {
+                SubscriptionVersions current = state.subscriptions.get(entry.getKey());
+                if (current != null) {
+                    SubscriptionVersions versions = entry.getValue();
+                    versions.channelVersion = Math.max(versions.channelVersion, current.channelVersion);
+                    versions.lastReadVersion = Math.max(versions.lastReadVersion, current.lastReadVersion);
+                } else {
+                    channelUsers.computeIfAbsent(entry.getKey(), k -> ConcurrentHashMap.newKeySet()).add(userId);
+                }
+            }
+            for (String channelId : state.subscriptions.keySet()) {
+                if (!fresh.subscriptions.containsKey(channelId)) {
+                    removeChannelUser(channelId, userId);
+                }
+            }
+
+            long total = 0;
+            for (SubscriptionVersions versions : fresh.subscriptions.values()) {
+                total += versions.unread();
+            }
+            int drifted = total != state.total ? 1 : 0;
+
+            state.subscriptions.clear();
+            state.subscriptions.putAll(fresh.subscriptions);
+            state.total = total;
+            return drifted;
+        }
+    }
+
+    private void evict(Long userId) {
+        UserUnread state = users.remove(userId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            for (String channelId : state.subscriptions.keySet()) {
+                removeChannelUser(channelId, userId);
+            }
+        }
+    }
+
+    private void removeChannelUser(String channelId, Long userId) {
+        channelUsers.computeIfPresent(channelId, (k, userIds) -> {
+            userIds.remove(userId);
+            return userIds.isEmpty() ? null : userIds;
+        });
+    }
+
+    /**
+     * 从 MongoDB 加载用户的订阅和频道版本号（两次查询）
+     */
+    private Map<Long, UserUnread> load(Collection<Long> userIds) {
+        loadCount.addAndGet(userIds.size());
+
+        Query subscriptionQuery = Query.query(Criteria.where("user_id").in(userIds));
+        subscriptionQuery.fields().include("user_id").include("channel_id")
+                .include("last_read_version").include("join_version").include("leave_version");
+        List<Document> subscriptions = mongoTemplate.find(subscriptionQuery, Document.class, USER_SUBSCRIPTION_COLLECTION);
+
+        Set<String> channelIds = new HashSet<>();
+        for (Document subscription : subscriptions) {
+            channelIds.add(subscription.getString("channel_id"));
+        }
+
+        Map<String, Long> channelVersions = new HashMap<>();
+        if (!channelIds.isEmpty()) {
+            Query channelQuery = Query.query(Criteria.where("_id").in(channelIds));
+            channelQuery.fields().include("message_version");
+            for (Document channel : mongoTemplate.find(channelQuery, Document.class, CHANNEL_COLLECTION)) {
+                channelVersions.put(channel.getString("_id"), longValue(channel, "message_version", 0L));
+            }
+        }
+
+        Map<Long, UserUnread> result = new HashMap<>();
+        for (Long userId : userIds) {
+            result.put(userId, new UserUnread());
+        }
+        for (Document subscription : subscriptions) {
+            Number userId = subscription.get("user_id", Number.class);
+            String channelId = subscription.getString("channel_id");
+            UserUnread state = userId != null ? result.get(userId.longValue()) : null;
+            if (state == null || channelId == null) {
+                continue;
+            }
+
+            SubscriptionVersions versions = new SubscriptionVersions();
+            versions.channelVersion = channelVersions.getOrDefault(channelId, 0L);
+            versions.lastReadVersion = longValue(subscription, "last_read_version", 0L);
+            versions.joinVersion = longValue(subscription, "join_version", 0L);
+            Number leaveVersion = subscription.get("leave_version", Number.class);
+            versions.leaveVersion = leaveVersion != null ? leaveVersion.longValue() : null;
+
+            state.subscriptions.put(channelId, versions);
+            state.total += versions.unread();
+        }
+        return result;
+    }
+
+    private static long longValue(Document document, String key, long defaultValue) {
+        Number value = document.get(key, Number.class);
+        return value != null ? value.longValue() : defaultValue;
+    }
+}
@@ -0,0 +1,205 @@
+package io.bluemacaw.msgsvr.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 用户频道变更流（按用户记录"某个版本之后有变化的频道"）
+ *
+ * 数据结构：
+ * - user_feed_counter：{_id: user_id, version, committed_version}，每个用户一个单调递增的计数器，
+ *   committed_version 为已完整写入变更流的最大版本（水位）
+ * - user_channel_feed：{user_id, channel_id, feed_version}，频道最近一次变化时用户计数器的值
+ *
+ * 写入：消息写入后（Message change stream 事件），频道的所有订阅用户计数器 +1，
+ * 并把新值记到 (user, channel) 的 feed_version 上。同一个事件中的频道合并处理，
+ * 无论涉及多少用户，都只有 查订阅、批量 $inc、读回计数器、批量写 feed、推进水位 五次往返。
+ * 变更单独存放，不写 user_subscription（避免触发 user_subscription 的 change stream 同步）
+ *
+ * 读取：设备先读水位，再查询 cursor < feed_version <= 水位 的频道，只处理有变化的频道（O(changed)），
+ * 新游标为水位
+ *
+ * 正确性：
+ * - 单写者：先 $inc 再写 feed，读回的计数器值就是本次分配的值。写入方是 single-active-consumer 队列上
+ *   concurrency = 1 的消费者（见 changestream.syncfeed.MessageConsumer）
+ * - 水位：同一版本要写多个 (user, channel) 文档，无序 bulkWrite 不是原子的，写到一半时被读到的
+ *   feed_version 不能作为游标（同版本、还没写到的频道会被跳过）。feed 全部写完后才把水位推进到该版本，
+ *   读取只信任水位以内的版本，水位之后的变化留到下一次同步
+ *   （写入中途退出时计数器已递增、水位未推进，下一次写入会推进到更大的版本）
+ */
+@Slf4j
+@Service
+public class UserChannelFeedService {
+
+    private static final String COUNTER_COLLECTION = "user_feed_counter";
+    private static final String FEED_COLLECTION = "user_channel_feed";
+    private static final String USER_SUBSCRIPTION_COLLECTION = "user_subscription";
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @PostConstruct
+    public void init() {
+        try {
+            mongoTemplate.indexOps(FEED_COLLECTION).ensureIndex(new Index()
+                    .on("user_id", Sort.Direction.ASC)
+                    .on("channel_id", Sort.Direction.ASC)
+                    .named("uk_user_channel")
+                    .unique());
+            mongoTemplate.indexOps(FEED_COLLECTION).ensureIndex(new Index()
+                    .on("user_id", Sort.Direction.ASC)
+                    .on("feed_version", Sort.Direction.ASC)
+                    .named("idx_user_feed_version"));
+            // 按频道查订阅用户
+            mongoTemplate.indexOps(USER_SUBSCRIPTION_COLLECTION).ensureIndex(new Index()
+                    .on("channel_id", Sort.Direction.ASC)
+                    .named("idx_channel_id"));
+        } catch (Exception e) {
+            log.error("创建用户频道变更流索引失败", e);
+        }
+    }
+
+    /**
+     * 标记频道有变化：频道的所有订阅用户计数器 +1，记录到用户的变更流
+     *
+     * 必须由单个写者调用（见类注释）
+     *
+     * @param channelIds 有新消息的频道
+     * @return 更新的用户数
+     */
+    public int markChannelsChanged(Collection<String> channelIds) {
+        if (channelIds == null || channelIds.isEmpty()) {
+            return 0;
+        }
+
+        // 1. 查询未离开的订阅用户，按用户分组
+        Query subscriptionQuery = Query.query(Criteria.where("channel_id").in(channelIds)
+                .and("leave_version").isNull());
+        subscriptionQuery.fields().include("user_id").include("channel_id");
+        List<Document> subscriptions = mongoTemplate.find(subscriptionQuery, Document.class, USER_SUBSCRIPTION_COLLECTION);
+
+        Map<Long, Set<String>> channelsByUser = new LinkedHashMap<>();
+        for (Document subscription : subscriptions) {
+            Number userId = subscription.get("user_id", Number.class);
+            String channelId = subscription.getString("channel_id");
+            if (userId != null && channelId != null) {
+                channelsByUser.computeIfAbsent(userId.longValue(), k -> new LinkedHashSet<>()).add(channelId);
+            }
+        }
+        return markUserChannelsChanged(channelsByUser);
+    }
+
+    /**
+     * 标记指定用户的频道有变化（已读进度、加入/退出等只影响单个用户的变化）
+     *
+     * 必须由单个写者调用（见类注释）
+     *
+     * @param channelsByUser userId -> 有变化的频道
+     * @return 更新的用户数
+     */
+    public int markUserChannelsChanged(Map<Long, Set<String>> channelsByUser) {
+        if (channelsByUser.isEmpty()) {
+            return 0;
+        }
+
+        // 2. 每个用户的计数器 +1（一次无序 bulkWrite）
+        BulkOperations counterOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COUNTER_COLLECTION);
+        for (Long userId : channelsByUser.keySet()) {
+            counterOps.upsert(Query.query(Criteria.where("_id").is(userId)), new Update().inc("version", 1L));
+        }
+        counterOps.execute();
+
+        // 3. 读回计数器（单写者，读到的就是本次分配的值）
+        Map<Long, Long> versions = getCurrentVersions(channelsByUser.keySet());
+
+        // 4. 记录到变更流，$max 保证 feed_version 不回退
+        LocalDateTime now = LocalDateTime.now();
+        BulkOperations feedOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, FEED_COLLECTION);
+        for (Map.Entry<Long, Set<String>> entry : channelsByUser.entrySet()) {
+            Long version = versions.get(entry.getKey());
+            if (version == null) {
+                continue;
+            }
+            for (String channelId : entry.getValue()) {
+                feedOps.upsert(
+                        Query.query(Criteria.where("user_id").is(entry.getKey()).and("channel_id").is(channelId)),
+                        new Update().max("feed_version", version).set("update_time", now));
+            }
+        }
+        feedOps.execute();
+
+        // 5. feed 全部写完后推进水位
+        BulkOperations watermarkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COUNTER_COLLECTION);
+        for (Map.Entry<Long, Long> entry : versions.entrySet()) {
+            watermarkOps.updateOne(Query.query(Criteria.where("_id").is(entry.getKey())),
+                    new Update().max("committed_version", entry.getValue()));
+        }
+        watermarkOps.execute();
+
+        log.debug("用户频道变更流已更新: users={}", channelsByUser.size());
+        return channelsByUser.size();
+    }
+
+    /**
+     * 获取用户的水位：该版本及之前的变化都已完整写入变更流（没有变化过时为 0）
+     */
+    public long getCommittedVersion(Long userId) {
+        Document counter = mongoTemplate.findById(userId, Document.class, COUNTER_COLLECTION);
+        Number version = counter != null ? counter.get("committed_version", Number.class) : null;
+        return version != null ? version.longValue() : 0L;
+    }
+
+    /**
+     * 获取 sinceVersion < feed_version <= upToVersion 的频道
+     *
+     * @param userId       用户ID
+     * @param sinceVersion 设备上次的游标
+     * @param upToVersion  水位（getCommittedVersion，需在查询之前读取）
+     * @return channelId -> feed_version
+     */
+    public Map<String, Long> getChangedChannels(Long userId, long sinceVersion, long upToVersion) {
+        Query query = Query.query(Criteria.where("user_id").is(userId)
+                .and("feed_version").gt(sinceVersion).lte(upToVersion));
+        query.fields().include("channel_id").include("feed_version");
+
+        Map<String, Long> changed = new LinkedHashMap<>();
+        for (Document feed : mongoTemplate.find(query, Document.class, FEED_COLLECTION)) {
+            Number version = feed.get("feed_version", Number.class);
+            changed.put(feed.getString("channel_id"), version != null ? version.longValue() : sinceVersion);
+        }
+        return changed;
+    }
+
+    private Map<Long, Long> getCurrentVersions(Collection<Long> userIds) {
+        Query query = Query.query(Criteria.where("_id").in(new ArrayList<>(userIds)));
+        Map<Long, Long> versions = new HashMap<>();
+        for (Document counter : mongoTemplate.find(query, Document.class, COUNTER_COLLECTION)) {
+            Number userId = counter.get("_id", Number.class);
+            Number version = counter.get("version", Number.class);
+            if (userId != null && version != null) {
+                versions.put(userId.longValue(), version.longValue());
+            }
+        }
+        return versions;
+    }
+}
@@ -1,11 +1,13 @@
 package io.bluemacaw.msgsvr.service;
 
 import io.bluemacaw.msgsvr.entity.UserSubscription;
+import io.bluemacaw.msgsvr.enums.ChannelType;
 import io.bluemacaw.msgsvr.repository.UserSubscriptionRepository;
 import io.bluemacaw.msgsvr.util.PreparedStatementConverter;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
@@ -17,6 +19,7 @@ import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -177,61 +180,104 @@ public class UserSubscriptionService {
     }
 
     /**
-     * 更新UserSubscription的joinVersion和joinTime（用于历史数据导入）
+     * 获取用户在频道中的订阅
      *
-     * 注意：只更新未离开的订阅（leave_version为null）
+     * @return 订阅不存在时返回 null
+     */
+    public UserSubscription getSubscription(Long userId, String channelId) {
+        return userSubscriptionRepository.findByUserIdAndChannelId(userId, channelId).orElse(null);
+    }
+
+    /**
+     * 获取频道的订阅用户（用于历史数据导入）
      *
      * @param channelId 频道ID
-     * @param userId 用户ID
-     * @param joinVersion 加入版本号（最小seq）
-     * @param joinTime 加入时间（消息日期）
+     * @param channelType 频道类型（0-私聊，1-群聊）
+     * @param fromId 私聊发送方
+     * @param toId 私聊接收方
+     * @return 私聊返回双方，群聊返回群成员，群不存在或 channelId 无效时返回空列表
      */
-    public void updateUserSubscriptionJoinInfo(String channelId, Long userId, Long joinVersion, LocalDateTime joinTime) {
+    public List<Long> resolveSubscriberUserIds(String channelId, int channelType, Long fromId, Long toId) {
+        if (ChannelType.PRIVATE.getCode() == channelType) {
+            return List.of(fromId, toId);
+        }
+
         try {
+            List<Long> memberUserIds = groupService.getGroupMemberUserIds(Long.parseLong(channelId));
+            return memberUserIds != null ? memberUserIds : Collections.emptyList();
+        } catch (Exception e) {
+            log.error("获取群 {} 成员失败", channelId, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * 批量确保用户订阅存在（用于历史数据导入）
+     *
+     * 与 ensureUserSubscription 的逐条 findAndModify 不同，所有用户的 upsert 合并为一次
+     * 无序 bulkWrite（群聊一个批次只需一次往返），只设置 setOnInsert 字段，已存在的订阅不修改。
+     * 失败时直接抛出异常，由调用方回滚事务后重试
+     *
+     * @param channelId 频道ID
+     * @param channelType 频道类型（0-私聊，1-群聊）
+     * @param userIds 用户ID列表
+     * @param joinVersion 新建订阅的加入版本号
+     * @param joinTime 新建订阅的加入时间
+     * @param now 当前时间
+     */
+    public void bulkEnsureUserSubscriptions(String channelId, int channelType, List<Long> userIds,
+                                            Long joinVersion, LocalDateTime joinTime, LocalDateTime now) {
+        if (userIds == null || userIds.isEmpty()) {
+            return;
+        }
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserSubscription.class);
+        for (Long userId : userIds) {
             Query query = Query.query(
                     Criteria.where("user_id").is(userId)
                             .and("channel_id").is(channelId)
-                            .and("leave_version").isNull()
             );
 
             Update update = new Update()
-                    .set("join_version", joinVersion)
-                    .set("join_time", joinTime)
-                    .set("update_time", LocalDateTime.now());
-
-            mongoTemplate.updateFirst(query, update, UserSubscription.class);
+                    .setOnInsert("user_id", userId)
+                    .setOnInsert("channel_id", channelId)
+                    .setOnInsert("channel_type", channelType)
+                    .setOnInsert("last_read_version", 0L)
+                    .setOnInsert("join_version", joinVersion)
+                    .setOnInsert("join_time", joinTime)
+                    .setOnInsert("create_time", now)
+                    .setOnInsert("update_time", now);
 
-        } catch (Exception e) {
-            log.error("更新UserSubscription joinInfo失败: channelId={}, userId={}", channelId, userId, e);
+            bulkOps.upsert(query, update);
         }
+        bulkOps.execute();
     }
 
     /**
-     * 更新群聊所有成员的UserSubscription的joinVersion和joinTime（用于历史数据导入）
+     * 将订阅的joinVersion和joinTime下调到导入的消息之前（用于历史数据导入）
      *
-     * 注意：只更新未离开的订阅（leave_version为null）
+     * 只更新未离开（leave_version为null）且 join_version 大于 joinVersion 的订阅：
+     * 历史数据按 seq 递减导入，已经下调过的订阅不再重复写入
      *
-     * @param channelId 频道ID（群ID）
-     * @param joinVersion 加入版本号（最小seq）
+     * @param channelId 频道ID
+     * @param userIds 用户ID列表，null 表示频道的所有订阅（群聊）
+     * @param joinVersion 加入版本号（最小seq - 1）
      * @param joinTime 加入时间（消息日期）
      */
-    public void updateGroupSubscriptionJoinInfo(String channelId, Long joinVersion, LocalDateTime joinTime) {
-        try {
-            Query query = Query.query(
-                    Criteria.where("channel_id").is(channelId)
-                            .and("leave_version").isNull()
-            );
-
-            Update update = new Update()
-                    .set("join_version", joinVersion)
-                    .set("join_time", joinTime)
-                    .set("update_time", LocalDateTime.now());
+    public void lowerSubscriptionJoinInfo(String channelId, List<Long> userIds, Long joinVersion, LocalDateTime joinTime) {
+        Criteria criteria = Criteria.where("channel_id").is(channelId);
+        if (userIds != null) {
+            criteria.and("user_id").in(userIds);
+        }
+        criteria.and("leave_version").isNull()
+                .and("join_version").gt(joinVersion);
 
-            mongoTemplate.updateMulti(query, update, UserSubscription.class);
+        Update update = new Update()
+                .set("join_version", joinVersion)
+                .set("join_time", joinTime)
+                .set("update_time", LocalDateTime.now());
 
-        } catch (Exception e) {
-            log.error("更新群聊UserSubscription joinInfo失败: channelId={}", channelId, e);
-        }
+        mongoTemplate.updateMulti(Query.query(criteria), update, UserSubscription.class);
     }
 
     /**
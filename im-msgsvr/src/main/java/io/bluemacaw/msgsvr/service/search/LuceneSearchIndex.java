@@ -0,0 +1,321 @@
+package io.bluemacaw.msgsvr.service.search;
+
+import io.bluemacaw.msgsvr.entity.Message;
+import io.bluemacaw.msgsvr.entity.search.MessageDocument;
+import io.bluemacaw.msgsvr.entity.search.MessageSearchResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.cjk.CJKAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.QueryBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 嵌入式 Lucene 消息索引（本地运行，不依赖 ES 集群）
+ *
+ * 索引字段：
+ * - id：消息ID，写入时按ID覆盖
+ * - channel_id：频道过滤
+ * - msg_time + id：排序和游标分页（msg_time 降序，同一时间按 id 降序）
+ * - content：解码后的文本，全文检索（短语匹配）
+ *
+ * 分词：CJKAnalyzer，中日韩文字切分为相邻两字的 bigram，其他文字按 StandardTokenizer 切词并转小写。
+ * 分词在调用 index 的线程上执行（IndexWriter 支持多线程并发写入），由 SearchSyncService 的线程池并行
+ *
+ * 刷新策略：
+ * - 写入只进入 IndexWriter 缓冲区，每 search.lucene.refresh-interval 打开新的 searcher（近实时，不落盘）
+ * - 每 search.lucene.commit-interval 提交一次（组提交），进程退出前提交（@PreDestroy）
+ * - awaitCommit 返回下一次提交的 future，SearchSyncService 在提交完成后才确认 MQ 消息，
+ *   异常退出时未提交的写入对应的消息未确认，由 Broker 重新投递后重新写入
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "search", name = "type", havingValue = "lucene", matchIfMissing = true)
+public class LuceneSearchIndex implements SearchIndex {
+
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_CHANNEL_ID = "channel_id";
+    private static final String FIELD_SEQ = "seq";
+    private static final String FIELD_FROM_ID = "from_id";
+    private static final String FIELD_MSG_TIME = "msg_time";
+    private static final String FIELD_CONTENT = "content";
+
+    private static final Sort SORT = new Sort(
+            new SortField(FIELD_MSG_TIME, SortField.Type.LONG, true),
+            new SortField(FIELD_ID, SortField.Type.STRING, true));
+
+    @Value("${search.lucene.path:./data/search-index}")
+    private String indexPath;
+
+    @Value("${search.lucene.ram-buffer-mb:64}")
+    private double ramBufferMb;
+
+    private Directory directory;
+    private Analyzer analyzer;
+    private IndexWriter indexWriter;
+    private SearcherManager searcherManager;
+
+    private final AtomicLong indexedCount = new AtomicLong(0);
+    private final AtomicLong deletedCount = new AtomicLong(0);
+    private final AtomicLong searchCount = new AtomicLong(0);
+
+    /**
+     * 下一次提交完成时完成，提交时换成新的 future
+     */
+    private CompletableFuture<Void> nextCommit = new CompletableFuture<>();
+
+    @PostConstruct
+    public void init() throws IOException {
+        Path path = Paths.get(indexPath);
+        directory = FSDirectory.open(path);
+        analyzer = new CJKAnalyzer();
+
+        IndexWriterConfig config = new IndexWriterConfig(analyzer)
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+                .setRAMBufferSizeMB(ramBufferMb);
+        indexWriter = new IndexWriter(directory, config);
+        searcherManager = new SearcherManager(indexWriter, null);
+
+        log.info("Lucene 消息索引已打开: path={}, docs={}", path.toAbsolutePath(), indexWriter.getDocStats().numDocs);
+    }
+
+    @PreDestroy
+    public void close() {
+        CompletableFuture<Void> pending = swapCommit();
+        try {
+            searcherManager.close();
+            indexWriter.commit();
+            pending.complete(null);
+            indexWriter.close();
+            directory.close();
+            log.info("Lucene 消息索引已关闭");
+        } catch (IOException e) {
+            pending.completeExceptionally(e);
+            log.error("关闭 Lucene 消息索引失败", e);
+        }
+    }
+
+    @Override
+    public void index(List<MessageDocument> documents) throws IOException {
+        int indexed = 0;
+        int deleted = 0;
+        for (MessageDocument document : documents) {
+            if (document.getId() == null) {
+                continue;
+            }
+            Term idTerm = new Term(FIELD_ID, document.getId());
+            if (document.getText() == null) {
+                indexWriter.deleteDocuments(idTerm);
+                deleted++;
+            } else {
+                indexWriter.updateDocument(idTerm, toDocument(document));
+                indexed++;
+            }
+        }
+        indexedCount.addAndGet(indexed);
+        deletedCount.addAndGet(deleted);
+    }
+
+    @Override
+    public MessageSearchResult search(String keyword, Collection<String> channelIds, String cursor, int limit) throws IOException {
+        Query contentQuery = new QueryBuilder(analyzer).createPhraseQuery(FIELD_CONTENT, keyword);
+        if (contentQuery == null) {
+            // 关键词分词后为空（例如只有标点）
+            return new MessageSearchResult(new ArrayList<>(), null, 0);
+        }
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder()
+                .add(contentQuery, BooleanClause.Occur.MUST);
+        if (channelIds != null && !channelIds.isEmpty()) {
+            List<BytesRef> terms = new ArrayList<>(channelIds.size());
+            for (String channelId : channelIds) {
+                terms.add(new BytesRef(channelId));
+            }
+            builder.add(new TermInSetQuery(FIELD_CHANNEL_ID, terms), BooleanClause.Occur.FILTER);
+        }
+
+        searchCount.incrementAndGet();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            TopFieldDocs topDocs = searcher.searchAfter(decodeCursor(cursor), builder.build(), limit, SORT);
+            StoredFields storedFields = searcher.storedFields();
+
+            List<Message> messages = new ArrayList<>(topDocs.scoreDocs.length);
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                messages.add(toMessage(storedFields.document(scoreDoc.doc)));
+            }
+
+            String nextCursor = null;
+            if (topDocs.scoreDocs.length == limit) {
+                nextCursor = encodeCursor((FieldDoc) topDocs.scoreDocs[topDocs.scoreDocs.length - 1]);
+            }
+            return new MessageSearchResult(messages, nextCursor, topDocs.totalHits.value);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /**
+     * 近实时刷新：让已写入缓冲区的消息可以被检索
+     */
+    @Scheduled(fixedDelayString = "${search.lucene.refresh-interval:1000}")
+    public void refresh() {
+        try {
+            searcherManager.maybeRefresh();
+        } catch (IOException e) {
+            log.error("刷新 Lucene searcher 失败", e);
+        }
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> awaitCommit() {
+        return nextCommit;
+    }
+
+    /**
+     * 定时提交（落盘），完成提交前等待的 awaitCommit
+     *
+     * 先换出 future 再提交：拿到旧 future 的调用方的写入都在换出之前，包含在这次提交中
+     */
+    @Scheduled(fixedDelayString = "${search.lucene.commit-interval:1000}")
+    public void commit() {
+        CompletableFuture<Void> pending = swapCommit();
+        try {
+            if (indexWriter.hasUncommittedChanges()) {
+                indexWriter.commit();
+            }
+            pending.complete(null);
+        } catch (IOException e) {
+            pending.completeExceptionally(e);
+            log.error("提交 Lucene 索引失败", e);
+        }
+    }
+
+    private synchronized CompletableFuture<Void> swapCommit() {
+        CompletableFuture<Void> pending = nextCommit;
+        nextCommit = new CompletableFuture<>();
+        return pending;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("type", "lucene");
+        stats.put("path", indexPath);
+        stats.put("docs", indexWriter.getDocStats().numDocs);
+        stats.put("indexed", indexedCount.get());
+        stats.put("deleted", deletedCount.get());
+        stats.put("searches", searchCount.get());
+        stats.put("ramBytesUsed", indexWriter.ramBytesUsed());
+        return stats;
+    }
+
+    private Document toDocument(MessageDocument document) {
+        long msgTime = toEpochMilli(document.getMsgTime());
+
+        Document doc = new Document();
+        doc.add(new StringField(FIELD_ID, document.getId(), Field.Store.YES));
+        doc.add(new SortedDocValuesField(FIELD_ID, new BytesRef(document.getId())));
+        if (document.getChannelId() != null) {
+            doc.add(new StringField(FIELD_CHANNEL_ID, document.getChannelId(), Field.Store.YES));
+        }
+        if (document.getSeq() != null) {
+            doc.add(new StoredField(FIELD_SEQ, document.getSeq()));
+        }
+        if (document.getFromId() != null) {
+            doc.add(new StoredField(FIELD_FROM_ID, document.getFromId()));
+        }
+        doc.add(new LongPoint(FIELD_MSG_TIME, msgTime));
+        doc.add(new NumericDocValuesField(FIELD_MSG_TIME, msgTime));
+        doc.add(new StoredField(FIELD_MSG_TIME, msgTime));
+        doc.add(new TextField(FIELD_CONTENT, document.getText(), Field.Store.YES));
+        return doc;
+    }
+
+    private Message toMessage(Document doc) {
+        Message message = new Message();
+        message.setId(doc.get(FIELD_ID));
+        message.setChannelId(doc.get(FIELD_CHANNEL_ID));
+        if (doc.getField(FIELD_SEQ) != null) {
+            message.setSeq(doc.getField(FIELD_SEQ).numericValue().longValue());
+        }
+        if (doc.getField(FIELD_FROM_ID) != null) {
+            message.setFromId(doc.getField(FIELD_FROM_ID).numericValue().longValue());
+        }
+        long msgTime = doc.getField(FIELD_MSG_TIME).numericValue().longValue();
+        message.setMsgTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(msgTime), ZoneId.systemDefault()));
+        message.setContent(doc.get(FIELD_CONTENT));
+        return message;
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time == null ? 0L : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 游标格式：msgTime:id（最后一条命中的排序字段）
+     */
+    private static String encodeCursor(FieldDoc last) {
+        long msgTime = (Long) last.fields[0];
+        BytesRef id = (BytesRef) last.fields[1];
+        return msgTime + ":" + id.utf8ToString();
+    }
+
+    private static FieldDoc decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        int separator = cursor.indexOf(':');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("无效的游标: " + cursor);
+        }
+        long msgTime = Long.parseLong(cursor.substring(0, separator));
+        BytesRef id = new BytesRef(cursor.substring(separator + 1));
+        // (msg_time, id) 唯一，doc 只在排序字段完全相同时使用
+        return new FieldDoc(Integer.MAX_VALUE, Float.NaN, new Object[]{msgTime, id});
+    }
+}
@@ -0,0 +1,46 @@
+package io.bluemacaw.msgsvr.service.search;
+
+import io.bluemacaw.msgsvr.entity.search.MessageDocument;
+import io.bluemacaw.msgsvr.entity.search.MessageSearchResult;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 消息全文索引
+ *
+ * 由 SearchSyncService（ES 消费者的解码/分词阶段）写入，MessageSearchController 查询。
+ * 写入按消息ID覆盖，MQ 重投递或 update 事件重复写入不会产生重复结果。
+ * 写入先进入缓冲区，awaitCommit 完成后才持久化，调用方在此之后确认 MQ 消息
+ */
+public interface SearchIndex {
+
+    /**
+     * 批量写入消息（已存在的按ID覆盖，text 为 null 的消息从索引中删除）
+     * 写入后在下一次刷新（近实时）之后才能被检索到，可以由多个线程并发调用
+     */
+    void index(List<MessageDocument> documents) throws IOException;
+
+    /**
+     * 等待下一次提交：调用前 index 返回的写入都在这次提交中持久化，提交失败时异常完成
+     */
+    CompletableFuture<Void> awaitCommit();
+
+    /**
+     * 检索消息
+     *
+     * @param keyword    关键词
+     * @param channelIds 限定的频道，为空时不限定
+     * @param cursor     上一页返回的 nextCursor，第一页为 null
+     * @param limit      每页条数
+     */
+    MessageSearchResult search(String keyword, Collection<String> channelIds, String cursor, int limit) throws IOException;
+
+    /**
+     * 获取索引统计
+     */
+    Map<String, Object> getStats();
+}
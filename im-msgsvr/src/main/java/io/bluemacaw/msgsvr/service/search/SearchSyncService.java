@@ -0,0 +1,272 @@
+package io.bluemacaw.msgsvr.service.search;
+
+import io.bluemacaw.msgsvr.entity.Message;
+import io.bluemacaw.msgsvr.entity.mq.MessageStatusDelta;
+import io.bluemacaw.msgsvr.entity.search.MessageDocument;
+import io.bluemacaw.msgsvr.util.MessageContentDecoder;
+import io.bluemacaw.thread.WmThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 全文索引同步的解码/分词阶段
+ *
+ * ES 消费者的监听线程只解析事件，事件中的消息交给这里处理：
+ * - 按 channelId 分到 search.sync.parallelism 个通道，每个通道一个线程，同一频道的消息按事件顺序写入
+ *   （insert 和随后的 update 不会乱序覆盖），不同频道并行
+ * - 通道线程按 contentVersion 解码 content，再写入 SearchIndex（分词在写入线程上执行）
+ * - 在途任务数不超过 search.sync.max-in-flight，达到上限时提交方阻塞，积压留在 MQ 中
+ * - 一个事件的所有通道任务完成、并且索引提交（SearchIndex.awaitCommit）后回调，由调用方确认 MQ 消息
+ *
+ * 撤回等状态变更（status 不为 0）由 ES 状态消费者调用 applyStatus，在频道所在的通道上从索引中删除。
+ * 状态变更和消息的 insert 事件来自不同的队列，insert 事件可能晚于删除处理，
+ * 最近 search.sync.recalled-cache-size 个被删除的消息ID记录在内存中，之后写入时跳过
+ */
+@Slf4j
+@Service
+public class SearchSyncService {
+
+    @Resource
+    private SearchIndex searchIndex;
+
+    @Value("${search.sync.parallelism:4}")
+    private int parallelism;
+
+    @Value("${search.sync.max-in-flight:64}")
+    private int maxInFlight;
+
+    @Value("${search.sync.recalled-cache-size:10000}")
+    private int recalledCacheSize;
+
+    private ExecutorService[] lanes;
+
+    private Semaphore inFlightPermits;
+
+    private int permits;
+
+    private final AtomicLong decodedCount = new AtomicLong(0);
+    private final AtomicLong skippedCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong recalledCount = new AtomicLong(0);
+
+    /**
+     * 最近被删除（撤回等）的消息ID，按插入顺序淘汰
+     */
+    private final Set<String> recalledIds = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > recalledCacheSize;
+        }
+    });
+
+    @PostConstruct
+    public void init() {
+        int laneCount = Math.max(parallelism, 1);
+        permits = Math.max(maxInFlight, laneCount);
+        lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            // 队列长度由 inFlightPermits 限制
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), new WmThreadFactory("search-sync-" + i));
+        }
+        inFlightPermits = new Semaphore(permits);
+        log.info("Search sync stage started, parallelism: {}, maxInFlight: {}", laneCount, permits);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        try {
+            // 未完成的事件未确认，会被 Broker 重新投递
+            for (ExecutorService lane : lanes) {
+                if (!lane.awaitTermination(30, TimeUnit.SECONDS)) {
+                    log.warn("Search sync lane did not terminate in 30s, inFlight: {}", getInFlight());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 提交一个事件中的消息
+     *
+     * 在途任务达到上限时阻塞，直到有任务完成
+     *
+     * 抛出异常（等待许可时被中断、通道线程池拒绝任务）时回调不会执行，由调用方结束该事件；
+     * 已提交的通道任务照常执行并释放许可，事件重新投递后按ID覆盖写入
+     *
+     * @param messages  事件中的消息
+     * @param onSuccess 全部写入并提交成功后回调（在提交线程上执行）
+     * @param onFailure 任一通道写入或提交失败后回调
+     */
+    public void submit(List<Message> messages, Runnable onSuccess, Consumer<Exception> onFailure)
+            throws InterruptedException {
+        Map<Integer, List<Message>> byLane = new HashMap<>();
+        for (Message message : messages) {
+            byLane.computeIfAbsent(laneOf(message.getChannelId()), k -> new ArrayList<>()).add(message);
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(byLane.size());
+        for (Map.Entry<Integer, List<Message>> entry : byLane.entrySet()) {
+            inFlightPermits.acquire();
+            List<Message> laneMessages = entry.getValue();
+            CompletableFuture<Void> future;
+            try {
+                future = CompletableFuture.runAsync(() -> indexMessages(laneMessages), lanes[entry.getKey()]);
+            } catch (RuntimeException e) {
+                inFlightPermits.release();
+                throw e;
+            }
+            future.whenComplete((v, e) -> inFlightPermits.release());
+            futures.add(future);
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenCompose(v -> searchIndex.awaitCommit())
+                .whenComplete((v, e) -> {
+                    if (e == null) {
+                        onSuccess.run();
+                        return;
+                    }
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    try {
+                        onFailure.accept(cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+                    } catch (Exception callbackException) {
+                        log.error("Failed to handle search sync failure", callbackException);
+                    }
+                });
+    }
+
+    /**
+     * 应用状态变更：status 不为 0（撤回等）的消息从索引中删除
+     *
+     * 在频道所在的通道上执行（与该频道的写入串行），阻塞到全部删除完成并提交，失败时抛出异常由调用方重试。
+     * status 恢复为 0 的变更只带状态字段，没有内容可以重新写入，忽略
+     */
+    public void applyStatus(List<MessageStatusDelta> deltas) throws InterruptedException {
+        Map<Integer, List<MessageDocument>> byLane = new HashMap<>();
+        for (MessageStatusDelta delta : deltas) {
+            if (delta.getId() == null || delta.getStatus() == null || delta.getStatus() == 0) {
+                continue;
+            }
+            synchronized (recalledIds) {
+                recalledIds.add(delta.getId());
+            }
+            // text 为 null 的文档从索引中删除
+            byLane.computeIfAbsent(laneOf(delta.getChannelId()), k -> new ArrayList<>())
+                    .add(new MessageDocument(delta.getId(), delta.getChannelId(), delta.getSeq(), null, null, null));
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(byLane.size());
+        for (Map.Entry<Integer, List<MessageDocument>> entry : byLane.entrySet()) {
+            inFlightPermits.acquire();
+            List<MessageDocument> documents = entry.getValue();
+            CompletableFuture<Void> future;
+            try {
+                future = CompletableFuture.runAsync(() -> writeDocuments(documents), lanes[entry.getKey()]);
+            } catch (RuntimeException e) {
+                inFlightPermits.release();
+                throw e;
+            }
+            future.whenComplete((v, e) -> inFlightPermits.release());
+            futures.add(future);
+        }
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .thenCompose(v -> searchIndex.awaitCommit())
+                    .get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to remove recalled messages from search index", e.getCause());
+        }
+        recalledCount.addAndGet(byLane.values().stream().mapToInt(List::size).sum());
+    }
+
+    /**
+     * 解码并写入索引
+     */
+    private void indexMessages(List<Message> messages) {
+        List<MessageDocument> documents = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            String text = null;
+            if ((message.getDeleted() == null || message.getDeleted() != 1)
+                    && (message.getStatus() == null || message.getStatus() == 0)
+                    && !isRecalled(message.getId())) {
+                text = MessageContentDecoder.extractText(message.getContentVersion(), message.getContent());
+                if (text == null) {
+                    skippedCount.incrementAndGet();
+                } else {
+                    decodedCount.incrementAndGet();
+                }
+            }
+            documents.add(new MessageDocument(message.getId(), message.getChannelId(), message.getSeq(),
+                    message.getFromId(), message.getMsgTime() != null ? message.getMsgTime() : message.getCreateTime(), text));
+        }
+        writeDocuments(documents);
+    }
+
+    private void writeDocuments(List<MessageDocument> documents) {
+        try {
+            searchIndex.index(documents);
+        } catch (IOException e) {
+            failedCount.addAndGet(documents.size());
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean isRecalled(String id) {
+        synchronized (recalledIds) {
+            return recalledIds.contains(id);
+        }
+    }
+
+    private int laneOf(String channelId) {
+        return channelId == null ? 0 : Math.floorMod(channelId.hashCode(), lanes.length);
+    }
+
+    /**
+     * 获取同步统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("parallelism", lanes.length);
+        stats.put("maxInFlight", permits);
+        stats.put("inFlight", getInFlight());
+        stats.put("decoded", decodedCount.get());
+        stats.put("skipped", skippedCount.get());
+        stats.put("failed", failedCount.get());
+        stats.put("recalled", recalledCount.get());
+        return stats;
+    }
+
+    private int getInFlight() {
+        return permits - inFlightPermits.availablePermits();
+    }
+}
@@ -0,0 +1,74 @@
+package io.bluemacaw.msgsvr.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 消息内容解码工具类
+ * 按 contentVersion 从编码后的 content 中提取可检索的文本
+ *
+ * contentVersion = 1：竖线分隔格式
+ *   协议版本|正文类型|正文(Base64)|字体名称或文件名(Base64)|字号|...
+ *   例如: 1.1|0|SGVsbG8=|5b6u6L2v6ZuF6buR|14|0|0|
+ * - 正文类型 0（文本）：Base64 解码正文
+ * - 其他类型（图片、文件、语音、视频）：正文是二进制数据，Base64 解码文件名
+ */
+@Slf4j
+public class MessageContentDecoder {
+
+    private static final int CONTENT_VERSION_PIPE = 1;
+
+    private static final String BODY_TYPE_TEXT = "0";
+
+    /**
+     * 提取可检索的文本
+     *
+     * @param contentVersion 消息协议版本
+     * @param content        编码后的消息内容
+     * @return 文本，未知版本、格式错误或没有文本时返回 null
+     */
+    public static String extractText(Integer contentVersion, String content) {
+        if (contentVersion == null || content == null || content.isEmpty()) {
+            return null;
+        }
+        if (contentVersion == CONTENT_VERSION_PIPE) {
+            return decodePipeContent(content);
+        }
+        log.debug("Unsupported content version: {}", contentVersion);
+        return null;
+    }
+
+    private static String decodePipeContent(String content) {
+        String[] parts = content.split("\\|", -1);
+        if (parts.length < 3) {
+            return null;
+        }
+
+        if (BODY_TYPE_TEXT.equals(parts[1])) {
+            return decodeBase64(parts[2]);
+        }
+
+        if (parts.length > 3) {
+            return decodeBase64(parts[3]);
+        }
+        return null;
+    }
+
+    /**
+     * Base64 解码为 UTF-8 文本，格式错误或为空时返回 null
+     */
+    private static String decodeBase64(String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            String text = new String(Base64.getMimeDecoder().decode(value), StandardCharsets.UTF_8).trim();
+            return text.isEmpty() ? null : text;
+        } catch (IllegalArgumentException e) {
+            log.debug("Invalid base64 message field: {}", value);
+            return null;
+        }
+    }
+}
@@ -204,4 +204,27 @@ public class MessageConverter {
         message.setStatus(rs.getInt("status"));
         return message;
     }
+
+    /**
+     * 将 ResultSet 转换为 Message 摘要对象
+     * 只读取摘要列（不含消息内容和公司信息），用于列表类查询
+     *
+     * @param rs ResultSet
+     * @return Message 实体（仅填充摘要字段）
+     * @throws SQLException SQL异常
+     */
+    public static Message resultSetToMessageSummary(ResultSet rs) throws SQLException {
+        Message message = new Message();
+        message.setId(rs.getString("id"));
+        message.setChannelId(rs.getString("channelId"));
+        message.setSeq(rs.getLong("seq"));
+        message.setFromId(rs.getLong("fromId"));
+        message.setToId(rs.getLong("toId"));
+        message.setContactType(rs.getInt("contactType"));
+        message.setMsgType(rs.getInt("msgType"));
+        message.setMsgTime(rs.getTimestamp("msgTime").toLocalDateTime());
+        message.setDeleted(rs.getInt("deleted"));
+        message.setStatus(rs.getInt("status"));
+        return message;
+    }
 }
@@ -0,0 +1,130 @@
+package io.bluemacaw.msgsvr.util;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONReader;
+import com.alibaba.fastjson.parser.JSONToken;
+import io.bluemacaw.msgsvr.entity.mq.MqAggregatedMessageBatch;
+import io.bluemacaw.msgsvr.entity.mq.MqMessage;
+import org.springframework.amqp.core.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MQ 消息体解码
+ *
+ * 消息体默认按 UTF-8 JSON 处理，直接从 byte[] 反序列化（fastjson 内部按 UTF-8 解码到字符缓冲），
+ * 不再先 new String(body) 复制一份完整的字符串。
+ * 只有生产方显式设置了非 UTF-8 的 contentEncoding 时才先按该字符集转成字符串
+ *
+ * 聚合消息（MqAggregatedMessageData）按流式方式解码，见 decodeAggregated
+ */
+public class MqMessageDecoder {
+
+    /**
+     * 聚合消息中一条消息的最小字节数（"{}" 加分隔逗号）
+     */
+    private static final int MIN_MESSAGE_BYTES = 3;
+
+    private MqMessageDecoder() {
+    }
+
+    /**
+     * 将 MQ 消息体解码为指定类型
+     *
+     * @param message MQ 消息
+     * @param clazz   目标类型
+     * @return 解码后的对象，消息体为空时返回 null
+     */
+    public static <T> T decode(Message message, Class<T> clazz) {
+        byte[] body = message.getBody();
+        if (body == null || body.length == 0) {
+            return null;
+        }
+
+        Charset charset = resolveCharset(message.getMessageProperties().getContentEncoding());
+        if (charset == StandardCharsets.UTF_8) {
+            return JSON.parseObject(body, clazz);
+        }
+        return JSON.parseObject(new String(body, charset), clazz);
+    }
+
+    /**
+     * 流式解码聚合消息（MqAggregatedMessageData 格式）
+     *
+     * 通过 JSONReader 逐个读取 messages 数组中的元素，每读出一条就转换为 Message 实体，
+     * 不构建完整的 MqAggregatedMessageData 和 List&lt;MqMessage&gt;
+     *
+     * @param message MQ 消息
+     * @return 解码结果，消息体为空时返回 null
+     */
+    public static MqAggregatedMessageBatch decodeAggregated(Message message) {
+        byte[] body = message.getBody();
+        if (body == null || body.length == 0) {
+            return null;
+        }
+
+        Charset charset = resolveCharset(message.getMessageProperties().getContentEncoding());
+        MqAggregatedMessageBatch batch = new MqAggregatedMessageBatch();
+
+        try (JSONReader reader = new JSONReader(new InputStreamReader(new ByteArrayInputStream(body), charset))) {
+            reader.startObject();
+            while (reader.hasNext()) {
+                String key = reader.readString();
+                switch (key) {
+                    case "channelId":
+                        batch.setChannelId(reader.readObject(String.class));
+                        break;
+                    case "channelType":
+                        Integer channelType = reader.readInteger();
+                        batch.setChannelType(channelType != null ? channelType : 0);
+                        break;
+                    case "messageDate":
+                        batch.setMessageDate(reader.readObject(String.class));
+                        break;
+                    case "messageCount":
+                        Integer messageCount = reader.readInteger();
+                        if (messageCount != null && messageCount > 0) {
+                            // messageCount 由生产方填写，不可信：每条消息至少占 MIN_MESSAGE_BYTES 字节
+                            batch.ensureCapacity(Math.min(messageCount, body.length / MIN_MESSAGE_BYTES));
+                        }
+                        break;
+                    case "messages":
+                        if (reader.peek() == JSONToken.NULL) {
+                            reader.readObject();
+                            break;
+                        }
+                        reader.startArray();
+                        while (reader.hasNext()) {
+                            batch.add(reader.readObject(MqMessage.class));
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        // 未知字段跳过
+                        reader.readObject();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+        return batch;
+    }
+
+    /**
+     * contentEncoding 未设置或无法识别时按 UTF-8 处理
+     */
+    private static Charset resolveCharset(String contentEncoding) {
+        if (contentEncoding == null || contentEncoding.isEmpty()) {
+            return StandardCharsets.UTF_8;
+        }
+        try {
+            Charset charset = Charset.forName(contentEncoding);
+            return StandardCharsets.UTF_8.equals(charset) ? StandardCharsets.UTF_8 : charset;
+        } catch (Exception e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+}
@@ -17,6 +17,7 @@ SHOW TABLES FROM im_message;
 
 -- 删除旧表
 DROP TABLE IF EXISTS im_message.message;
+DROP TABLE IF EXISTS im_message.message_status;
 
 -- 验证删除结果
 SHOW TABLES FROM im_message;
@@ -66,7 +67,24 @@ CREATE TABLE IF NOT EXISTS im_message.message
 
     -- ============ 状态字段 ============
     deleted Nullable(Int32) COMMENT '删除标记 (0=正常, 1=已删除)',
-    status Nullable(Int32) COMMENT '消息状态 (包含撤回状态)'
+    status Nullable(Int32) COMMENT '消息状态 (包含撤回状态)',
+
+    -- ============ 跳数索引 ============
+    -- 主键是 (channelId, seq)，按 fromId/toId/msgTime 过滤时无法利用主索引
+    -- 跳数索引让这些查询可以跳过不相关的 granule
+    INDEX idx_from_id fromId TYPE bloom_filter(0.01) GRANULARITY 4,
+    INDEX idx_to_id toId TYPE bloom_filter(0.01) GRANULARITY 4,
+    INDEX idx_msg_time msgTime TYPE minmax GRANULARITY 4,
+    INDEX idx_client_msg_id clientMsgId TYPE bloom_filter(0.01) GRANULARITY 4,
+
+    -- ============ 投影 ============
+    -- 按发送者排序的投影，getMessageSummariesByFromId 直接命中 (fromId, msgTime) 有序数据
+    -- 只包含摘要列（MESSAGE_SUMMARY_COLUMNS），不复制 content 等大字段，存储和写入/合并开销只增加这几列
+    PROJECTION proj_from_id_summary
+    (
+        SELECT id, channelId, seq, fromId, toId, contactType, msgType, msgTime, deleted, status
+        ORDER BY (fromId, msgTime)
+    )
 )
 ENGINE = MergeTree()
 -- 按月分区 (基于消息时间)
@@ -82,32 +100,74 @@ PRIMARY KEY (channelId, seq)
 SETTINGS index_granularity = 8192
 COMMENT 'IM消息表 - 存储从MongoDB同步的消息数据';
 
+-- ============================================================
+-- 创建消息状态表
+-- ============================================================
+-- 撤回等状态变更不修改 message 表（ALTER TABLE ... UPDATE 只重写已经存在的 part，
+-- 消息行还在写入缓冲或重试中时变更会丢失），而是作为带版本的行插入本表：
+-- 1. ReplacingMergeTree(updateTime)：后台合并后每条消息只保留 updateTime 最大的一行
+-- 2. 查询消息时按 argMax(status, updateTime) 覆盖 message.status，合并前的重复行不影响结果
+-- 3. 不分区：状态变更很少，也不依赖 msgTime 计算分区
+
+CREATE TABLE IF NOT EXISTS im_message.message_status
+(
+    id String COMMENT 'MongoDB消息ID (ObjectId)',
+    channelId String COMMENT '频道ID',
+    seq Int64 COMMENT '消息序号',
+    status Int32 COMMENT '消息状态 (包含撤回状态)',
+    updateTime DateTime64(3) COMMENT '状态更新时间 (版本)'
+)
+ENGINE = ReplacingMergeTree(updateTime)
+ORDER BY (channelId, seq)
+SETTINGS index_granularity = 8192
+COMMENT '消息状态表 - 撤回等状态变更，读取时覆盖 message.status';
+
 -- ============================================================
 -- 创建索引以优化查询性能
 -- ============================================================
 
 -- 注意：MergeTree引擎的ORDER BY已经创建了主索引
--- 以下是一些可选的跳数索引，用于优化特定查询场景
+-- 新建的表已经在建表语句中包含以下跳数索引和投影
+-- 已存在的表执行以下语句补齐，并对历史分区物化
 
 -- 1. fromId跳数索引 (优化按发送者查询)
--- ALTER TABLE im_message.message
--- ADD INDEX idx_from_id fromId TYPE minmax GRANULARITY 4;
+ALTER TABLE im_message.message
+ADD INDEX IF NOT EXISTS idx_from_id fromId TYPE bloom_filter(0.01) GRANULARITY 4;
 
--- 2. toId跳数索引 (优化按接收者查询)
--- ALTER TABLE im_message.message
--- ADD INDEX idx_to_id toId TYPE minmax GRANULARITY 4;
+-- 2. toId跳数索引 (优化按接收者查询，toId为Nullable，不适合作为投影排序键)
+ALTER TABLE im_message.message
+ADD INDEX IF NOT EXISTS idx_to_id toId TYPE bloom_filter(0.01) GRANULARITY 4;
 
 -- 3. msgTime跳数索引 (优化按时间范围查询)
--- ALTER TABLE im_message.message
--- ADD INDEX idx_msg_time msgTime TYPE minmax GRANULARITY 4;
+ALTER TABLE im_message.message
+ADD INDEX IF NOT EXISTS idx_msg_time msgTime TYPE minmax GRANULARITY 4;
+
+-- 4. clientMsgId跳数索引 (优化去重查询)
+ALTER TABLE im_message.message
+ADD INDEX IF NOT EXISTS idx_client_msg_id clientMsgId TYPE bloom_filter(0.01) GRANULARITY 4;
 
--- 4. fromCompanyId跳数索引 (优化按公司查询)
+-- 5. fromCompanyId跳数索引 (优化按公司查询，按需开启)
 -- ALTER TABLE im_message.message
 -- ADD INDEX idx_from_company_id fromCompanyId TYPE bloom_filter(0.01) GRANULARITY 4;
 
--- 5. clientMsgId跳数索引 (优化去重查询)
--- ALTER TABLE im_message.message
--- ADD INDEX idx_client_msg_id clientMsgId TYPE bloom_filter(0.01) GRANULARITY 4;
+-- 6. 按发送者排序的投影（只包含摘要列）
+-- 旧版本的 proj_from_id 是 SELECT *，复制了整张表（包括 content），先删除
+ALTER TABLE im_message.message
+DROP PROJECTION IF EXISTS proj_from_id;
+
+ALTER TABLE im_message.message
+ADD PROJECTION IF NOT EXISTS proj_from_id_summary
+(
+    SELECT id, channelId, seq, fromId, toId, contactType, msgType, msgTime, deleted, status
+    ORDER BY (fromId, msgTime)
+);
+
+-- 物化历史数据（后台 mutation，可通过 system.mutations 查看进度）
+ALTER TABLE im_message.message MATERIALIZE INDEX idx_from_id;
+ALTER TABLE im_message.message MATERIALIZE INDEX idx_to_id;
+ALTER TABLE im_message.message MATERIALIZE INDEX idx_msg_time;
+ALTER TABLE im_message.message MATERIALIZE INDEX idx_client_msg_id;
+ALTER TABLE im_message.message MATERIALIZE PROJECTION proj_from_id_summary;
 
 -- ============================================================
 -- 验证表创建结果
@@ -155,7 +215,25 @@ SHOW CREATE TABLE im_message.message;
 -- GROUP BY date
 -- ORDER BY date;
 
--- 5. 查询频道消息序号连续性（检测丢失的消息）
+-- 5. 查询频道最新消息（覆盖撤回等状态变更）
+-- SELECT m.id, m.seq, m.msgTime, if(empty(s.channelId), m.status, s.status) AS status
+-- FROM
+-- (
+--     SELECT * FROM im_message.message
+--     WHERE channelId = 'channel_123'
+--     ORDER BY seq DESC
+--     LIMIT 20
+-- ) AS m
+-- LEFT JOIN
+-- (
+--     SELECT channelId, seq, argMax(status, updateTime) AS status
+--     FROM im_message.message_status
+--     WHERE channelId = 'channel_123'
+--     GROUP BY channelId, seq
+-- ) AS s ON m.channelId = s.channelId AND m.seq = s.seq
+-- ORDER BY m.seq DESC;
+
+-- 6. 查询频道消息序号连续性（检测丢失的消息）
 -- SELECT
 --     channelId,
 --     seq,
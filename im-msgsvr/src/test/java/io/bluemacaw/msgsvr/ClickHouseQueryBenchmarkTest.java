@@ -0,0 +1,191 @@
+package io.bluemacaw.msgsvr;
+
+import io.bluemacaw.msgsvr.entity.Message;
+import io.bluemacaw.msgsvr.enums.ChannelType;
+import io.bluemacaw.msgsvr.service.MessageService;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ClickHouse 消息查询基准测试
+ *
+ * 1. 加载基准数据集（id 以 bench_ 开头，便于清理）
+ * 2. 分别在关闭/开启投影和跳数索引的情况下执行按 fromId / toId 查询
+ * 3. 输出各场景的平均耗时和 EXPLAIN indexes=1 结果，对比 clickhouse-init.sql 中投影和索引的效果
+ *
+ * 前提：已执行 clickhouse-init.sql 中的 ADD INDEX / ADD PROJECTION 语句
+ */
+@Slf4j
+@SpringBootTest
+public class ClickHouseQueryBenchmarkTest {
+
+    @Resource
+    private MessageService messageService;
+
+    @Resource
+    @Qualifier("clickHouseDataSource")
+    private DataSource clickHouseDataSource;
+
+    // 基准数据配置
+    private static final int TOTAL_MESSAGES = 5000000;       // 500万条消息
+    private static final int TOTAL_USERS = 30000;            // 3万用户
+    private static final int TOTAL_CHANNELS = 200000;        // 20万个频道
+    private static final int BATCH_SIZE = 10000;             // 批量插入大小
+    private static final int DAYS = 90;                      // 消息时间分布在最近90天
+
+    // 查询配置
+    private static final int QUERY_ROUNDS = 20;              // 每个场景执行次数
+    private static final int QUERY_LIMIT = 100;
+
+    private static final String ID_PREFIX = "bench_";
+
+    /**
+     * 加载基准数据集
+     */
+    @Test
+    public void loadBenchmarkDataset() {
+        long startTime = System.currentTimeMillis();
+        Random random = new Random(12345);
+        LocalDateTime now = LocalDateTime.now();
+
+        log.info("开始加载基准数据集: 消息数: {}, 用户数: {}, 频道数: {}", TOTAL_MESSAGES, TOTAL_USERS, TOTAL_CHANNELS);
+
+        List<Message> batch = new ArrayList<>(BATCH_SIZE);
+        long[] channelSeq = new long[TOTAL_CHANNELS];
+
+        for (int i = 0; i < TOTAL_MESSAGES; i++) {
+            int channelIndex = random.nextInt(TOTAL_CHANNELS);
+            long fromId = 100001 + random.nextInt(TOTAL_USERS);
+            long toId = 100001 + random.nextInt(TOTAL_USERS);
+
+            Message message = new Message();
+            message.setId(ID_PREFIX + i);
+            message.setChannelId("bench_channel_" + channelIndex);
+            message.setSeq(100000L + (++channelSeq[channelIndex]));
+            message.setOldMsgId(ID_PREFIX + "old_" + i);
+            message.setFromId(fromId);
+            message.setFromCompanyId("");
+            message.setFromCompany("Wind");
+            message.setToId(toId);
+            message.setToCompanyId("");
+            message.setToCompany("Wind");
+            message.setContactType(ChannelType.PRIVATE.getCode());
+            message.setMsgType(0);
+            message.setContent("1.1|0|SGVsbG8sIHRoaXMgaXMgYSB0ZXN0IG1lc3NhZ2U=|text|14|0|0|");
+            message.setContentVersion(1);
+            message.setMsgTime(now.minusSeconds(random.nextInt(DAYS * 24 * 3600)));
+            message.setClientMsgId(ID_PREFIX + "client_" + i);
+            message.setClientInfo("PC/Windows");
+            message.setDeleted(0);
+            message.setStatus(0);
+            batch.add(message);
+
+            if (batch.size() >= BATCH_SIZE) {
+                messageService.batchInsertMessageToClickHouse(batch);
+                batch.clear();
+
+                if ((i + 1) % 500000 == 0) {
+                    log.info("基准数据加载进度: {}/{}", i + 1, TOTAL_MESSAGES);
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            messageService.batchInsertMessageToClickHouse(batch);
+        }
+
+        log.info("基准数据集加载完成! 耗时: {} 秒", (System.currentTimeMillis() - startTime) / 1000.0);
+    }
+
+    /**
+     * 对比投影/跳数索引开启前后的查询耗时
+     */
+    @Test
+    public void compareQueryLatency() throws Exception {
+        Random random = new Random(54321);
+        long[] userIds = new long[QUERY_ROUNDS];
+        for (int i = 0; i < QUERY_ROUNDS; i++) {
+            userIds[i] = 100001 + random.nextInt(TOTAL_USERS);
+        }
+
+        String fromIdSql = "SELECT id, channelId, seq, fromId, toId, contactType, msgType, msgTime, deleted, status " +
+                "FROM im_message.message WHERE fromId = %d ORDER BY msgTime DESC LIMIT " + QUERY_LIMIT;
+        String toIdSql = "SELECT id, channelId, seq, fromId, toId, contactType, msgType, msgTime, deleted, status " +
+                "FROM im_message.message WHERE toId = %d ORDER BY msgTime DESC LIMIT " + QUERY_LIMIT;
+
+        String disabled = " SETTINGS optimize_use_projections = 0, use_skip_indexes = 0";
+        String enabled = " SETTINGS optimize_use_projections = 1, use_skip_indexes = 1";
+
+        double fromIdBefore = runRounds(fromIdSql + disabled, userIds);
+        double fromIdAfter = runRounds(fromIdSql + enabled, userIds);
+        double toIdBefore = runRounds(toIdSql + disabled, userIds);
+        double toIdAfter = runRounds(toIdSql + enabled, userIds);
+
+        log.info("=== ClickHouse 查询基准结果（平均耗时，{} 轮） ===", QUERY_ROUNDS);
+        log.info("fromId 查询: 全表扫描 {} ms -> 投影/索引 {} ms", String.format("%.2f", fromIdBefore), String.format("%.2f", fromIdAfter));
+        log.info("toId 查询:   全表扫描 {} ms -> 跳数索引 {} ms", String.format("%.2f", toIdBefore), String.format("%.2f", toIdAfter));
+
+        explain("EXPLAIN indexes = 1 " + String.format(fromIdSql, userIds[0]));
+        explain("EXPLAIN indexes = 1 " + String.format(toIdSql, userIds[0]));
+    }
+
+    /**
+     * 清理基准数据集
+     */
+    @Test
+    public void cleanBenchmarkDataset() throws Exception {
+        try (Connection conn = clickHouseDataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM im_message.message WHERE startsWith(id, '" + ID_PREFIX + "')");
+        }
+        log.info("基准数据集已清理");
+    }
+
+    /**
+     * 执行多轮查询，返回平均耗时（毫秒）
+     */
+    private double runRounds(String sqlTemplate, long[] userIds) throws Exception {
+        long totalNanos = 0;
+        long totalRows = 0;
+
+        try (Connection conn = clickHouseDataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            for (long userId : userIds) {
+                long start = System.nanoTime();
+                try (ResultSet rs = stmt.executeQuery(String.format(sqlTemplate, userId))) {
+                    while (rs.next()) {
+                        totalRows++;
+                    }
+                }
+                totalNanos += System.nanoTime() - start;
+            }
+        }
+
+        log.debug("执行 {} 轮, 返回 {} 行: {}", userIds.length, totalRows, sqlTemplate);
+        return totalNanos / 1_000_000.0 / userIds.length;
+    }
+
+    private void explain(String sql) throws Exception {
+        StringBuilder plan = new StringBuilder();
+        try (Connection conn = clickHouseDataSource.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                plan.append(rs.getString(1)).append('\n');
+            }
+        }
+        log.info("{}\n{}", sql, plan);
+    }
+}
@@ -8,11 +8,16 @@ import io.bluemacaw.msgsvr.service.MessageService;
 import io.bluemacaw.msgsvr.util.CollectionNameUtil;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 
 import java.time.LocalDateTime;
 import java.util.Base64;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -21,6 +26,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 /**
  * 消息服务测试
  * 演示动态collection的使用
@@ -32,6 +39,9 @@ public class MessageServiceTest {
     @Resource
     private MessageService messageService;
 
+    @Resource
+    private MongoTemplate mongoTemplate;
+
     /**
      * 测试发送私聊消息
      */
@@ -196,6 +206,61 @@ public class MessageServiceTest {
         }
     }
 
+    /**
+     * 测试按用户可见范围分页查询历史消息（seq 区间收窄到 (joinVersion, leaveVersion]）
+     */
+    @Test
+    public void testQueryUserHistoryMessages() {
+        Long userId = 100L;
+        String channelId = "test_history_" + System.currentTimeMillis();
+        String collection = CollectionNameUtil.getCurrentMessageCollection();
+
+        // 当月写入 seq 1~20，用户可见区间为 (5, 15]
+        Date now = new Date();
+        for (long seq = 1; seq <= 20; seq++) {
+            mongoTemplate.insert(new Document("channel_id", channelId)
+                    .append("seq", seq)
+                    .append("msg_time", now)
+                    .append("content", "history " + seq), collection);
+        }
+        mongoTemplate.insert(new Document("user_id", userId)
+                .append("channel_id", channelId)
+                .append("join_version", 5L)
+                .append("join_time", now)
+                .append("leave_version", 15L)
+                .append("leave_time", now), "user_subscription");
+
+        try {
+            // 从最新消息开始：上界收窄到 leaveVersion
+            assertSeqs(List.of(15L, 14L, 13L, 12L, 11L),
+                    messageService.queryUserHistoryMessages(userId, channelId, null, 5));
+
+            // 游标超过 leaveVersion 时按 leaveVersion 收窄
+            assertSeqs(List.of(15L, 14L),
+                    messageService.queryUserHistoryMessages(userId, channelId, 19L, 2));
+
+            // 下界收窄到 joinVersion（不含）
+            assertSeqs(List.of(7L, 6L),
+                    messageService.queryUserHistoryMessages(userId, channelId, 8L, 10));
+
+            // 游标已经在加入之前
+            assertSeqs(List.of(),
+                    messageService.queryUserHistoryMessages(userId, channelId, 6L, 10));
+
+            // 没有订阅的用户看不到消息
+            assertSeqs(List.of(),
+                    messageService.queryUserHistoryMessages(userId + 1, channelId, null, 10));
+
+        } finally {
+            mongoTemplate.remove(Query.query(Criteria.where("channel_id").is(channelId)), collection);
+            mongoTemplate.remove(Query.query(Criteria.where("channel_id").is(channelId)), "user_subscription");
+        }
+    }
+
+    private static void assertSeqs(List<Long> expected, List<Message> messages) {
+        assertEquals(expected, messages.stream().map(Message::getSeq).toList());
+    }
+
     /**
      * 测试Collection名称工具类
      */
@@ -0,0 +1,190 @@
+package io.bluemacaw.msgsvr;
+
+import io.bluemacaw.msgsvr.entity.Message;
+import io.bluemacaw.msgsvr.entity.mq.MqMessage;
+import io.bluemacaw.msgsvr.entity.mq.MqMessageData;
+import io.bluemacaw.msgsvr.enums.ChannelType;
+import io.bluemacaw.msgsvr.service.MessageService;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 发送路径基准测试：事务模式(saveMessage) vs 非事务幂等模式(saveMessageIdempotent)
+ *
+ * 多个线程并发向同一个频道发送消息（最容易产生 WriteConflict 的场景），
+ * 失败的消息按 MQ 重新入队的方式原样重试，直到成功。
+ * 输出吞吐量、p50/p99 延迟（含重试）、失败重试次数。
+ *
+ * 幂等模式额外验证：对已保存的消息重复调用，返回同一个 seq，不产生新消息
+ */
+@Slf4j
+@SpringBootTest
+public class SendPathBenchmarkTest {
+
+    @Resource
+    private MessageService messageService;
+
+    // 基准配置
+    private static final int THREAD_COUNT = 16;              // 并发写入线程数
+    private static final int MESSAGES_PER_THREAD = 200;      // 每个线程发送的消息数
+    private static final int MAX_ATTEMPTS = 20;              // 单条消息最多重试次数
+
+    @Test
+    public void compareSendPaths() throws InterruptedException {
+        // 每个模式使用不同的频道，互不影响
+        BenchmarkResult transactional = runBenchmark("transactional", 900001L, 900002L,
+                messageService::saveMessage);
+        BenchmarkResult idempotent = runBenchmark("idempotent", 900003L, 900004L,
+                messageService::saveMessageIdempotent);
+
+        log.info("=== 发送路径基准结果（{} 线程 x {} 条，同一频道） ===", THREAD_COUNT, MESSAGES_PER_THREAD);
+        log.info("{}", transactional);
+        log.info("{}", idempotent);
+    }
+
+    @Test
+    public void testIdempotentRetry() {
+        MqMessage mqMessage = createPrivateChatMessage(900005L, 900006L, "retry-" + System.nanoTime());
+
+        Message first = messageService.saveMessageIdempotent(mqMessage);
+        Message retried = messageService.saveMessageIdempotent(mqMessage);
+
+        log.info("首次保存 seq={}, id={}; 重试返回 seq={}, id={}",
+                first.getSeq(), first.getId(), retried.getSeq(), retried.getId());
+        if (!first.getId().equals(retried.getId()) || !first.getSeq().equals(retried.getSeq())) {
+            throw new AssertionError("重试产生了新消息: " + first.getSeq() + " -> " + retried.getSeq());
+        }
+    }
+
+    private BenchmarkResult runBenchmark(String name, long fromId, long toId,
+                                         Function<MqMessage, Message> sender) throws InterruptedException {
+        // 预热：创建频道和订阅，排除首次创建的开销
+        sender.apply(createPrivateChatMessage(fromId, toId, name + "-warmup-" + System.nanoTime()));
+
+        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch endLatch = new CountDownLatch(THREAD_COUNT);
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger retryCount = new AtomicInteger(0);
+        AtomicInteger failCount = new AtomicInteger(0);
+
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int threadId = t;
+            executorService.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                        MqMessage mqMessage = createPrivateChatMessage(fromId, toId,
+                                name + "-" + threadId + "-" + i + "-" + System.nanoTime());
+                        long start = System.nanoTime();
+                        if (!sendWithRetry(sender, mqMessage, retryCount)) {
+                            failCount.incrementAndGet();
+                        }
+                        latencies.add(System.nanoTime() - start);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    endLatch.countDown();
+                }
+            });
+        }
+
+        long startTime = System.nanoTime();
+        startLatch.countDown();
+        endLatch.await(30, TimeUnit.MINUTES);
+        long elapsedNanos = System.nanoTime() - startTime;
+        executorService.shutdown();
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+
+        BenchmarkResult result = new BenchmarkResult();
+        result.name = name;
+        result.messages = sorted.size();
+        result.throughput = sorted.size() / (elapsedNanos / 1_000_000_000.0);
+        result.p50Ms = percentile(sorted, 0.50);
+        result.p99Ms = percentile(sorted, 0.99);
+        result.retries = retryCount.get();
+        result.failures = failCount.get();
+        return result;
+    }
+
+    /**
+     * 模拟 MQ 的 nack 重新入队：失败后原样重试同一条消息
+     */
+    private boolean sendWithRetry(Function<MqMessage, Message> sender, MqMessage mqMessage, AtomicInteger retryCount) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                sender.apply(mqMessage);
+                return true;
+            } catch (Exception e) {
+                retryCount.incrementAndGet();
+            }
+        }
+        return false;
+    }
+
+    private static double percentile(List<Long> sortedNanos, double percentile) {
+        if (sortedNanos.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.size()) - 1;
+        return sortedNanos.get(Math.max(index, 0)) / 1_000_000.0;
+    }
+
+    private MqMessage createPrivateChatMessage(Long fromId, Long toId, String clientMsgId) {
+        MqMessage mqMessage = new MqMessage();
+        mqMessage.setMsgType(1);
+
+        MqMessageData mqMessageData = new MqMessageData();
+        mqMessageData.setFromId(fromId);
+        mqMessageData.setFromCompanyId("");
+        mqMessageData.setFromCompany("Wind");
+        mqMessageData.setContactId(toId);
+        mqMessageData.setContactType(ChannelType.PRIVATE.getCode());
+        mqMessageData.setContactCompanyId("");
+        mqMessageData.setContactCompany("Wind");
+        mqMessageData.setMsgType(0);
+        mqMessageData.setContent("1.1|0|SGVsbG8sIHRoaXMgaXMgYSB0ZXN0IG1lc3NhZ2U=|text|14|0|0|");
+        mqMessageData.setContentVersion(1);
+        mqMessageData.setMsgTime(String.valueOf(System.currentTimeMillis()));
+        mqMessageData.setClientMsgId(clientMsgId);
+        mqMessageData.setClientInfo("PC/Windows");
+        mqMessageData.setOldMsgId("bench-" + clientMsgId);
+        mqMessageData.setDeleted(0);
+        mqMessageData.setStatus(0);
+
+        mqMessage.setMqMessageData(mqMessageData);
+        return mqMessage;
+    }
+
+    private static class BenchmarkResult {
+        private String name;
+        private int messages;
+        private double throughput;
+        private double p50Ms;
+        private double p99Ms;
+        private int retries;
+        private int failures;
+
+        @Override
+        public String toString() {
+            return String.format("%-14s 消息数: %d, 吞吐: %.1f msg/s, p50: %.2f ms, p99: %.2f ms, 重试: %d, 失败: %d",
+                    name, messages, throughput, p50Ms, p99Ms, retries, failures);
+        }
+    }
+}
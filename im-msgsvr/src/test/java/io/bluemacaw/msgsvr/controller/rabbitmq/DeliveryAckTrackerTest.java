@@ -0,0 +1,130 @@
+package io.bluemacaw.msgsvr.controller.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/**
+ * DeliveryAckTracker 单元测试（Channel 使用 mock，不需要 RabbitMQ）
+ */
+public class DeliveryAckTrackerTest {
+
+    @Test
+    public void testAckOnlyCompletedPrefix() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAckTracker tracker = new DeliveryAckTracker(channel);
+        tracker.register(1);
+        tracker.register(2);
+        tracker.register(3);
+
+        // 乱序完成：1 未完成时不能确认 2
+        tracker.complete(2);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        tracker.complete(1);
+        verify(channel).basicAck(2, true);
+        assertEquals(1, tracker.inFlightCount());
+
+        tracker.complete(3);
+        verify(channel).basicAck(3, true);
+        assertEquals(0, tracker.inFlightCount());
+    }
+
+    @Test
+    public void testAckPrefixWithTagGaps() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAckTracker tracker = new DeliveryAckTracker(channel);
+        tracker.register(1);
+        tracker.register(4);
+        tracker.register(9);
+
+        tracker.complete(4);
+        tracker.complete(9);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        tracker.complete(1);
+        verify(channel).basicAck(9, true);
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void testFailAfterPendingAcks() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAckTracker tracker = new DeliveryAckTracker(channel);
+        tracker.register(1);
+        tracker.register(2);
+        tracker.register(3);
+
+        // 2、3 已完成但被 1 挡住，1 失败后单独 nack，2、3 随后一次确认
+        tracker.complete(2);
+        tracker.complete(3);
+        tracker.fail(1);
+
+        InOrder inOrder = inOrder(channel);
+        inOrder.verify(channel).basicNack(1, false, true);
+        inOrder.verify(channel).basicAck(3, true);
+        verifyNoMoreInteractions(channel);
+        assertEquals(0, tracker.inFlightCount());
+    }
+
+    @Test
+    public void testFailInMiddleKeepsLaterPending() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAckTracker tracker = new DeliveryAckTracker(channel);
+        tracker.register(1);
+        tracker.register(2);
+        tracker.register(3);
+
+        tracker.fail(2);
+        verify(channel).basicNack(2, false, true);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        tracker.complete(1);
+        verify(channel).basicAck(1, true);
+
+        tracker.complete(3);
+        verify(channel).basicAck(3, true);
+    }
+
+    @Test
+    public void testUnknownTagIgnored() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAckTracker tracker = new DeliveryAckTracker(channel);
+        tracker.register(1);
+
+        // 未登记（或已确认）的 tag 不会重复 ack/nack
+        tracker.complete(5);
+        tracker.fail(6);
+        verifyNoMoreInteractions(channel);
+        assertEquals(1, tracker.inFlightCount());
+    }
+
+    @Test
+    public void testTagResetAfterRecovery() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAckTracker tracker = new DeliveryAckTracker(channel);
+        tracker.register(7);
+        tracker.register(8);
+        tracker.complete(7);
+        tracker.complete(8);
+        verify(channel).basicAck(8, true);
+
+        // Channel 恢复后 deliveryTag 从 1 重新计数
+        tracker.register(1);
+        tracker.register(2);
+        tracker.complete(1);
+        verify(channel).basicAck(1, true);
+        tracker.complete(2);
+        verify(channel).basicAck(2, true);
+        assertEquals(0, tracker.inFlightCount());
+    }
+}
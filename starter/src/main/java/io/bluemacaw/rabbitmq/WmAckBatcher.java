@@ -0,0 +1,147 @@
+package io.bluemacaw.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import io.bluemacaw.thread.WmThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 手动确认模式下的批量 ack
+ *
+ * 每个 Channel 累计 batchSize 条成功消息，或第一条待确认消息超过 batchInterval 毫秒后，
+ * 用 basicAck(lastTag, multiple=true) 一次确认；nack 前先确认该 Channel 上已累计的消息。
+ *
+ * 要求：同一个 Channel 上的消息按投递顺序处理完成（SimpleMessageListenerContainer 的每个 consumer
+ * 独占一个 Channel 且串行处理，满足该条件）；乱序完成的场景（如分道并行）不能使用。
+ *
+ * 未确认的消息在 Channel 关闭时会被 Broker 重新投递，消费者需要幂等。
+ * batchSize <= 1 时退化为逐条 basicAck。
+ *
+ * @author shzhou.michael
+ */
+@Slf4j
+public class WmAckBatcher {
+
+    private final int batchSize;
+    private final long batchInterval;
+    private final Map<Channel, PendingAck> pendingAcks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * 某个 Channel 上累计的待确认消息
+     */
+    private static final class PendingAck {
+        private long lastTag;
+        private int count;
+        private long firstAt;
+    }
+
+    public WmAckBatcher(int batchSize, long batchInterval) {
+        this.batchSize = batchSize;
+        this.batchInterval = Math.max(batchInterval, 10);
+
+        if (batchSize > 1) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new WmThreadFactory("mq-ack-batcher"));
+            scheduler.scheduleWithFixedDelay(this::flushExpired, this.batchInterval, this.batchInterval, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * 确认消息（可能延迟到批次满或超时后才发送）
+     */
+    public void ack(Channel channel, long deliveryTag) throws IOException {
+        if (batchSize <= 1) {
+            channel.basicAck(deliveryTag, false);
+            return;
+        }
+
+        PendingAck pending = pendingAcks.computeIfAbsent(channel, c -> new PendingAck());
+        synchronized (pending) {
+            if (pending.count == 0) {
+                pending.firstAt = System.currentTimeMillis();
+            }
+            // 按投递顺序完成，最后一次 ack 的 tag 就是最大值；不取历史最大值，
+            // Channel 恢复后 deliveryTag 重新计数，旧的 tag 会确认错误的消息
+            pending.lastTag = deliveryTag;
+            pending.count++;
+            if (pending.count >= batchSize) {
+                flush(channel, pending);
+            }
+        }
+    }
+
+    /**
+     * 拒绝消息（立即发送），先确认该 Channel 上已累计的消息
+     */
+    public void nack(Channel channel, long deliveryTag, boolean requeue) throws IOException {
+        PendingAck pending = pendingAcks.get(channel);
+        if (pending != null) {
+            synchronized (pending) {
+                flush(channel, pending);
+            }
+        }
+        channel.basicNack(deliveryTag, false, requeue);
+    }
+
+    /**
+     * 确认所有 Channel 上累计的消息（应用关闭时调用）
+     */
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        for (Map.Entry<Channel, PendingAck> entry : pendingAcks.entrySet()) {
+            synchronized (entry.getValue()) {
+                try {
+                    flush(entry.getKey(), entry.getValue());
+                } catch (Exception e) {
+                    log.warn("Failed to flush pending acks on shutdown", e);
+                }
+            }
+        }
+        pendingAcks.clear();
+    }
+
+    /**
+     * 定时确认超过 batchInterval 的批次，清理已关闭的 Channel
+     */
+    private void flushExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Channel, PendingAck> entry : pendingAcks.entrySet()) {
+            Channel channel = entry.getKey();
+            PendingAck pending = entry.getValue();
+            if (!channel.isOpen()) {
+                // Channel 关闭后未确认的消息会被重新投递
+                pendingAcks.remove(channel);
+                continue;
+            }
+            synchronized (pending) {
+                if (pending.count > 0 && now - pending.firstAt >= batchInterval) {
+                    try {
+                        flush(channel, pending);
+                    } catch (Exception e) {
+                        log.error("Failed to flush pending acks, lastTag: {}", pending.lastTag, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void flush(Channel channel, PendingAck pending) throws IOException {
+        if (pending.count == 0) {
+            return;
+        }
+        long lastTag = pending.lastTag;
+        pending.count = 0;
+        pending.lastTag = 0;
+        channel.basicAck(lastTag, true);
+    }
+}
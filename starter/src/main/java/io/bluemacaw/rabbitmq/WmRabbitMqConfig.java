@@ -1,8 +1,13 @@
 package io.bluemacaw.rabbitmq;
 
+import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.amqp.RabbitTemplateCustomizer;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -10,11 +15,59 @@ import org.springframework.context.annotation.Configuration;
 import java.util.UUID;
 
 /**
+ * RabbitMQ 公共配置
+ *
+ * 1. RabbitTemplate 发送时携带 traceId
+ * 2. 公共的监听容器工厂（LISTENER_CONTAINER_FACTORY）：prefetch、消费者数量自适应（wm.rabbitmq.listener.*）
+ * 3. 批量 ack（WmAckBatcher）
+ *
+ * ack-batch-size 不能超过 prefetch 的一半：未确认的消息占用预取额度，批次大于等于 prefetch 时
+ * consumer 取满 prefetch 条后收不到新消息，每批都要等 ack-batch-interval 超时才确认。超过时按 prefetch / 2 处理
+ *
+ * 消费者数量自适应使用 SimpleMessageListenerContainer 自带的扩缩容：
+ * - consumer 连续 consecutive-active-trigger 次取到消息（队列有积压）时增加一个 consumer，直到 max-concurrency
+ * - consumer 连续 consecutive-idle-trigger 次取不到消息（队列已空）时减少一个 consumer，直到 min-concurrency
+ * 需要保证顺序的监听器在 @RabbitListener 上指定 concurrency = "1"
+ *
  * @author shzhou.michael
  */
+@Slf4j
 @Configuration
 @ConditionalOnClass(RabbitTemplate.class)
 public class WmRabbitMqConfig {
+
+    /**
+     * 公共监听容器工厂的 bean 名称，用于 @RabbitListener(containerFactory = ...)
+     */
+    public static final String LISTENER_CONTAINER_FACTORY = "wmRabbitListenerContainerFactory";
+
+    @Value("${wm.rabbitmq.listener.prefetch:16}")
+    private int prefetch;
+
+    @Value("${wm.rabbitmq.listener.min-concurrency:1}")
+    private int minConcurrency;
+
+    @Value("${wm.rabbitmq.listener.max-concurrency:4}")
+    private int maxConcurrency;
+
+    @Value("${wm.rabbitmq.listener.consecutive-active-trigger:10}")
+    private int consecutiveActiveTrigger;
+
+    @Value("${wm.rabbitmq.listener.consecutive-idle-trigger:10}")
+    private int consecutiveIdleTrigger;
+
+    @Value("${wm.rabbitmq.listener.start-consumer-min-interval:10000}")
+    private long startConsumerMinInterval;
+
+    @Value("${wm.rabbitmq.listener.stop-consumer-min-interval:60000}")
+    private long stopConsumerMinInterval;
+
+    @Value("${wm.rabbitmq.listener.ack-batch-size:1}")
+    private int ackBatchSize;
+
+    @Value("${wm.rabbitmq.listener.ack-batch-interval:200}")
+    private long ackBatchInterval;
+
     @Bean
     public RabbitTemplateCustomizer customRabbitTemplate() {
         return rabbitTemplate -> {
@@ -30,12 +83,62 @@ public class WmRabbitMqConfig {
             });
 
             rabbitTemplate.setAfterReceivePostProcessors(message -> {
-                Boolean mqGeneratedTrace = message.getMessageProperties().getHeader("mq-generated-trace");
-                if (mqGeneratedTrace) {
+                Object mqGeneratedTrace = message.getMessageProperties().getHeader("mq-generated-trace");
+                if ("true".equals(String.valueOf(mqGeneratedTrace))) {
                     MDC.remove("traceId");
                 }
                 return message;
             });
         };
     }
+
+    /**
+     * 公共监听容器工厂
+     *
+     * 先应用 spring.rabbitmq.listener.simple 的全局配置（确认模式等），再覆盖 prefetch 和消费者数量
+     */
+    @Bean(name = LISTENER_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory wmRabbitListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+
+        int min = Math.max(minConcurrency, 1);
+        int max = Math.max(maxConcurrency, min);
+        factory.setPrefetchCount(prefetch);
+        factory.setConcurrentConsumers(min);
+        factory.setMaxConcurrentConsumers(max);
+        factory.setConsecutiveActiveTrigger(consecutiveActiveTrigger);
+        factory.setConsecutiveIdleTrigger(consecutiveIdleTrigger);
+        factory.setStartConsumerMinInterval(startConsumerMinInterval);
+        factory.setStopConsumerMinInterval(stopConsumerMinInterval);
+
+        log.info("RabbitMQ listener container factory initialized - prefetch: {}, concurrency: {}-{}, ackBatchSize: {}, ackBatchInterval: {}",
+                prefetch, min, max, effectiveAckBatchSize(), ackBatchInterval);
+        return factory;
+    }
+
+    /**
+     * 批量 ack，与公共监听容器工厂配合使用
+     */
+    @Bean(destroyMethod = "shutdown")
+    public WmAckBatcher wmAckBatcher() {
+        return new WmAckBatcher(effectiveAckBatchSize(), ackBatchInterval);
+    }
+
+    /**
+     * 批次不超过 prefetch 的一半（prefetch <= 0 表示不限制预取，不调整）
+     */
+    private int effectiveAckBatchSize() {
+        if (prefetch <= 0 || ackBatchSize <= 1) {
+            return ackBatchSize;
+        }
+        int limit = Math.max(prefetch / 2, 1);
+        if (ackBatchSize > limit) {
+            log.warn("wm.rabbitmq.listener.ack-batch-size {} exceeds half of prefetch {}, using {}",
+                    ackBatchSize, prefetch, limit);
+            return limit;
+        }
+        return ackBatchSize;
+    }
 }
@@ -0,0 +1,152 @@
+package io.bluemacaw.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * WmAckBatcher 单元测试（Channel 使用 mock，不需要 RabbitMQ）
+ */
+public class WmAckBatcherTest {
+
+    private WmAckBatcher batcher;
+
+    @AfterEach
+    public void tearDown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+    }
+
+    private static Channel openChannel() {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        return channel;
+    }
+
+    @Test
+    public void testAckWhenBatchFull() throws Exception {
+        batcher = new WmAckBatcher(3, 60000);
+        Channel channel = openChannel();
+
+        batcher.ack(channel, 1);
+        batcher.ack(channel, 2);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        batcher.ack(channel, 3);
+        verify(channel).basicAck(3, true);
+    }
+
+    @Test
+    public void testAckWithTagGaps() throws Exception {
+        // 中间的 tag 已单独 nack，multiple ack 只确认最后一个 tag
+        batcher = new WmAckBatcher(3, 60000);
+        Channel channel = openChannel();
+
+        batcher.ack(channel, 1);
+        batcher.ack(channel, 4);
+        batcher.ack(channel, 7);
+
+        verify(channel).basicAck(7, true);
+        verify(channel, never()).basicAck(4, true);
+    }
+
+    @Test
+    public void testNackFlushesPendingAcksFirst() throws Exception {
+        batcher = new WmAckBatcher(10, 60000);
+        Channel channel = openChannel();
+
+        batcher.ack(channel, 1);
+        batcher.ack(channel, 2);
+        batcher.nack(channel, 3, true);
+
+        InOrder inOrder = inOrder(channel);
+        inOrder.verify(channel).basicAck(2, true);
+        inOrder.verify(channel).basicNack(3, false, true);
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void testNackWithoutPendingAcks() throws Exception {
+        batcher = new WmAckBatcher(10, 60000);
+        Channel channel = openChannel();
+
+        batcher.nack(channel, 1, false);
+
+        verify(channel).basicNack(1, false, false);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void testChannelsBatchedSeparately() throws Exception {
+        batcher = new WmAckBatcher(10, 60000);
+        Channel first = openChannel();
+        Channel second = openChannel();
+
+        batcher.ack(first, 5);
+        batcher.ack(second, 1);
+        batcher.nack(second, 2, true);
+
+        // 另一个 Channel 的 nack 不会确认这个 Channel 上累计的消息
+        verify(first, never()).basicAck(anyLong(), anyBoolean());
+        verify(second).basicAck(1, true);
+
+        batcher.shutdown();
+        verify(first).basicAck(5, true);
+    }
+
+    @Test
+    public void testClosedChannelDroppedOnFlush() throws Exception {
+        batcher = new WmAckBatcher(10, 10);
+        Channel closed = mock(Channel.class);
+        when(closed.isOpen()).thenReturn(false);
+        Channel recovered = openChannel();
+
+        batcher.ack(closed, 8);
+        batcher.ack(recovered, 1);
+
+        // 定时确认只确认仍然打开的 Channel，已关闭的 Channel 上的消息由 Broker 重新投递
+        verify(recovered, timeout(1000)).basicAck(1, true);
+        verify(closed, never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void testTagResetAfterRecovery() throws Exception {
+        batcher = new WmAckBatcher(2, 60000);
+        Channel channel = openChannel();
+
+        batcher.ack(channel, 11);
+        batcher.ack(channel, 12);
+        verify(channel).basicAck(12, true);
+
+        // Channel 恢复后 deliveryTag 从 1 重新计数，不能沿用之前的最大 tag
+        batcher.ack(channel, 1);
+        batcher.ack(channel, 2);
+        verify(channel).basicAck(2, true);
+        verify(channel, never()).basicAck(13, true);
+    }
+
+    @Test
+    public void testAckImmediatelyWhenBatchSizeIsOne() throws Exception {
+        batcher = new WmAckBatcher(1, 60000);
+        Channel channel = openChannel();
+
+        batcher.ack(channel, 1);
+        batcher.ack(channel, 2);
+
+        InOrder inOrder = inOrder(channel);
+        inOrder.verify(channel).basicAck(1, false);
+        inOrder.verify(channel).basicAck(2, false);
+    }
+}